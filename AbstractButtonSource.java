@@ -1,63 +1,389 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.bytetech.robotics.metrics.Counter;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+
 public interface ButtonListener {
     void onButtonPressed(String buttonName);
 }
 
+public interface ButtonEventListener {
+    void onButtonEvent(ButtonEvent event);
+}
+
+/**
+ * A press or release of one button, timestamped with {@link System#nanoTime()} when the edge
+ * was captured. The button name is only resolved if {@link #getButtonName()} is called.
+ *
+ * <p>Events are reused by the thread that delivers them, so a listener that needs to keep one
+ * after its callback returns must take a {@link #copy()}.
+ */
+public final class ButtonEvent {
+    public enum Edge {
+        PRESS,
+        RELEASE
+    }
+
+    private AbstractButtonSource source;
+    private int buttonId;
+    private Edge edge;
+    private long timestampNanos;
+
+    ButtonEvent() {}
+
+    ButtonEvent set(AbstractButtonSource source, int buttonId, boolean pressed, long timestampNanos) {
+        this.source = source;
+        this.buttonId = buttonId;
+        this.edge = pressed ? Edge.PRESS : Edge.RELEASE;
+        this.timestampNanos = timestampNanos;
+        return this;
+    }
+
+    public AbstractButtonSource getSource() {
+        return source;
+    }
+
+    public int getSourceId() {
+        return source.getSourceId();
+    }
+
+    public int getButtonId() {
+        return buttonId;
+    }
+
+    public Edge getEdge() {
+        return edge;
+    }
+
+    public boolean isPress() {
+        return edge == Edge.PRESS;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * Nanoseconds between the edge being captured and now.
+     */
+    public long getLatencyNanos() {
+        return System.nanoTime() - timestampNanos;
+    }
+
+    public String getButtonName() {
+        return source.getButtonName(buttonId);
+    }
+
+    public ButtonEvent copy() {
+        return new ButtonEvent().set(source, buttonId, isPress(), timestampNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "ButtonEvent[source=" + getSourceId() + ", button=" + buttonId + ", edge=" + edge
+                + ", timestampNanos=" + timestampNanos + "]";
+    }
+}
+
 public interface GPIOPinAdapter {
     boolean readPinState(int pinNumber);
     void writePinState(int pinNumber, boolean state);
     String getPinName(int pinNumber);
+
+    /**
+     * Reads every pin set in {@code mask} and returns their states as a bitmask, bit {@code n}
+     * holding pin {@code n}. Adapters that can latch a whole bank in one register read should
+     * override this; the default falls back to one {@link #readPinState(int)} call per pin.
+     */
+    default long readPinStates(long mask) {
+        long states = 0L;
+        long remaining = mask;
+        while (remaining != 0L) {
+            int pinNumber = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            if (readPinState(pinNumber)) {
+                states |= 1L << pinNumber;
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Reads the whole bank (pins 0 to 63) in one call.
+     */
+    default long readBank() {
+        return readPinStates(-1L);
+    }
 }
 
 public abstract class AbstractButtonSource {
-    private List<ButtonListener> listeners = new ArrayList<>();
+    private static final AtomicInteger nextSourceId = new AtomicInteger();
+    // Edge timestamp to first listener, so a dispatcher's queueing delay is included
+    private static final LatencyHistogram dispatchLatency = MetricsRegistry.getDefault().histogram("button.dispatch");
+    private static final Counter eventCount = MetricsRegistry.getDefault().counter("button.events");
 
-    public void addButtonListener(ButtonListener listener) {
+    private final int sourceId = nextSourceId.getAndIncrement();
+
+    // Copy-on-write so listeners can be added or removed while events are being delivered
+    private final List<ButtonEventListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile ButtonEventDispatcher dispatcher;
+
+    // Reused for synchronous delivery on the scanning thread
+    private final ButtonEvent scratchEvent = new ButtonEvent();
+
+    protected GPIOPinAdapter gpioAdapter;
+
+    // Bit n set = button n is watched / was pressed on the previous scan. Buttons can be watched
+    // while the engine is scanning, so the engine's thread must see the mask change.
+    private volatile long buttonMask;
+    private long lastButtonStates;
+    private volatile DebounceFilter debounceFilter;
+
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    public void addButtonEventListener(ButtonEventListener listener) {
         listeners.add(listener);
     }
 
-    public void removeButtonListener(ButtonListener listener) {
+    public void removeButtonEventListener(ButtonEventListener listener) {
         listeners.remove(listener);
     }
 
-    protected void fireButtonPressedEvent(String buttonName) {
-        for (ButtonListener listener : listeners) {
-            listener.onButtonPressed(buttonName);
+    /**
+     * Adds a name based listener. It only sees presses, and the name is resolved per event.
+     */
+    public void addButtonListener(ButtonListener listener) {
+        listeners.add(new PressedNameAdapter(listener));
+    }
+
+    public void removeButtonListener(ButtonListener listener) {
+        listeners.remove(new PressedNameAdapter(listener));
+    }
+
+    /**
+     * Routes this source's events through {@code dispatcher} so listeners run on its consumer
+     * threads instead of the thread that detected the edge. Pass {@code null} to go back to
+     * synchronous delivery.
+     */
+    public void setDispatcher(ButtonEventDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public ButtonEventDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    protected void fireButtonEvent(int buttonId, boolean pressed, long timestampNanos) {
+        ButtonEventDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(this, buttonId, pressed, timestampNanos);
+        } else {
+            deliverButtonEvent(scratchEvent.set(this, buttonId, pressed, timestampNanos));
+        }
+    }
+
+    void deliverButtonEvent(ButtonEvent event) {
+        dispatchLatency.record(System.nanoTime() - event.getTimestampNanos());
+        eventCount.increment();
+        for (ButtonEventListener listener : listeners) {
+            listener.onButtonEvent(event);
+        }
+    }
+
+    /**
+     * Like {@link #deliverButtonEvent(ButtonEvent)}, but a listener that throws, even an
+     * {@code Error}, neither stops the others from seeing the event nor escapes to the caller.
+     * Used on dispatcher threads, which would otherwise die silently.
+     *
+     * @return the number of listeners that failed
+     */
+    int deliverButtonEventIsolated(ButtonEvent event) {
+        dispatchLatency.record(System.nanoTime() - event.getTimestampNanos());
+        eventCount.increment();
+        int failures = 0;
+        for (ButtonEventListener listener : listeners) {
+            try {
+                listener.onButtonEvent(event);
+            } catch (Throwable t) {
+                failures++;
+                System.err.println("Button listener failed for " + event + ": " + t);
+            }
         }
+        return failures;
     }
 
     public abstract void initialize(GPIOPinAdapter gpioAdapter);
+
+    /**
+     * Debounces raw readings before edges are detected. Pass {@code null} to turn it off.
+     */
+    public void setDebounceFilter(DebounceFilter debounceFilter) {
+        this.debounceFilter = debounceFilter;
+    }
+
+    public DebounceFilter getDebounceFilter() {
+        return debounceFilter;
+    }
+
+    boolean isSettling() {
+        DebounceFilter debounceFilter = this.debounceFilter;
+        return debounceFilter != null && debounceFilter.isSettling();
+    }
+
+    protected void watchButton(int buttonId) {
+        if (buttonId < 0 || buttonId >= Long.SIZE) {
+            throw new IllegalArgumentException("Button id out of range 0-63: " + buttonId);
+        }
+        buttonMask |= 1L << buttonId;
+    }
+
+    public long getButtonMask() {
+        return buttonMask;
+    }
+
+    /**
+     * Pins this source needs from the shared bank read. Sources that are not wired to GPIO
+     * return 0 and sample their own hardware in {@link #sampleButtonStates(long)}.
+     */
+    public long getPinMask() {
+        return buttonMask;
+    }
+
+    /**
+     * Returns the current state of every watched button as a bitmask. GPIO backed sources map
+     * button ids straight to pin numbers, so the default just masks the bank snapshot.
+     */
+    protected long sampleButtonStates(long bank) {
+        return bank & buttonMask;
+    }
+
+    /**
+     * Called once per pass by {@link ButtonPollingEngine}. Edges are found by XOR-ing against the
+     * previous snapshot, so a pass where nothing changed does no work beyond two long operations.
+     */
+    final void scan(long bank, long timestampNanos) {
+        long states = sampleButtonStates(bank);
+        DebounceFilter debounceFilter = this.debounceFilter;
+        if (debounceFilter != null) {
+            states = debounceFilter.filter(states, timestampNanos);
+        }
+        long changed = states ^ lastButtonStates;
+        if (changed == 0L) {
+            return;
+        }
+        lastButtonStates = states;
+        while (changed != 0L) {
+            int buttonId = Long.numberOfTrailingZeros(changed);
+            changed &= changed - 1;
+            fireButtonEvent(buttonId, (states >>> buttonId & 1L) != 0L, timestampNanos);
+        }
+    }
+
+    public abstract String getButtonName(int buttonId);
+
+    private static final class PressedNameAdapter implements ButtonEventListener {
+        private final ButtonListener delegate;
+
+        PressedNameAdapter(ButtonListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onButtonEvent(ButtonEvent event) {
+            if (event.isPress()) {
+                delegate.onButtonPressed(event.getButtonName());
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PressedNameAdapter && ((PressedNameAdapter) other).delegate.equals(delegate);
+        }
+
+        @Override
+        public int hashCode() {
+            return delegate.hashCode();
+        }
+    }
 }
 
 public class ControllerButtonSource extends AbstractButtonSource {
     // Implement methods for reading button states from a game controller
-    
-    private Map<Integer, Boolean> lastButtonStates = new HashMap<>();
+
+    public ControllerButtonSource(int... buttonIds) {
+        for (int buttonId : buttonIds) {
+            watchButton(buttonId);
+        }
+    }
 
     @Override
     public void initialize(GPIOPinAdapter gpioAdapter) {}
 
+    @Override
+    public long getPinMask() {
+        return 0L;
+    }
+
+    @Override
+    protected long sampleButtonStates(long bank) {
+        long states = 0L;
+        long remaining = getButtonMask();
+        while (remaining != 0L) {
+            int buttonId = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            if (isButtonPressed(buttonId)) {
+                states |= 1L << buttonId;
+            }
+        }
+        return states;
+    }
+
     public boolean isButtonPressed(int buttonId) {
         // Read button state from controller hardware
     }
 
+    @Override
     public String getButtonName(int buttonId) {
         // Return a human-readable name for the specified button
     }
-
-    @Override
-    protected void fireButtonPressedEvent(String buttonName) {
-        super.fireButtonPressedEvent(buttonName);
-    }
 }
 
 public class InputCableButtonSource extends AbstractButtonSource {
     // Implement methods for reading button states from input cables
-    
-    private Map<Integer, Boolean> lastButtonStates = new HashMap<>();
+
+    // Button id = cableNumber * BUTTONS_PER_CABLE + buttonIndex, so 8 cables fit one snapshot
+    public static final int BUTTONS_PER_CABLE = 8;
+
+    public void watchCableButton(int cableNumber, int buttonIndex) {
+        watchButton(cableNumber * BUTTONS_PER_CABLE + buttonIndex);
+    }
 
     @Override
     public void initialize(GPIOPinAdapter gpioAdapter) {}
 
+    @Override
+    public long getPinMask() {
+        return 0L;
+    }
+
+    @Override
+    protected long sampleButtonStates(long bank) {
+        long states = 0L;
+        long remaining = getButtonMask();
+        while (remaining != 0L) {
+            int buttonId = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            if (isButtonPressed(buttonId / BUTTONS_PER_CABLE, buttonId % BUTTONS_PER_CABLE)) {
+                states |= 1L << buttonId;
+            }
+        }
+        return states;
+    }
+
     public boolean isButtonPressed(int cableNumber, int buttonIndex) {
         // Read button state from input cable hardware
     }
@@ -67,19 +393,24 @@ public class InputCableButtonSource extends AbstractButtonSource {
     }
 
     @Override
-    protected void fireButtonPressedEvent(String buttonName) {
-        super.fireButtonPressedEvent(buttonName);
+    public String getButtonName(int buttonId) {
+        return getButtonName(buttonId / BUTTONS_PER_CABLE, buttonId % BUTTONS_PER_CABLE);
     }
 }
 
 public class CircuitSwitchButtonSource extends AbstractButtonSource {
     // Implement methods for reading button states from circuit switches
-    
-    private Map<Integer, Boolean> lastSwitchStates = new HashMap<>();
+
+    public CircuitSwitchButtonSource(int... switchNumbers) {
+        for (int switchNumber : switchNumbers) {
+            watchButton(switchNumber);
+        }
+    }
 
     @Override
     public void initialize(GPIOPinAdapter gpioAdapter) {
         // Configure GPIO pins to read switch states
+        this.gpioAdapter = gpioAdapter;
     }
 
     public boolean isSwitchClosed(int switchNumber) {
@@ -91,40 +422,42 @@ public class CircuitSwitchButtonSource extends AbstractButtonSource {
     }
 
     @Override
-    protected void fireButtonPressedEvent(String buttonName) {
-        super.fireButtonPressedEvent(buttonName);
+    public String getButtonName(int buttonId) {
+        return getSwitchName(buttonId);
     }
 }
 
 public class GPIOButtonSource extends AbstractButtonSource {
     // Implement methods for reading button states from GPIO pins
-    
-    private Map<Integer, Boolean> lastPinStates = new HashMap<>();
+
+    public GPIOButtonSource(int... pinNumbers) {
+        for (int pinNumber : pinNumbers) {
+            watchButton(pinNumber);
+        }
+    }
 
     @Override
     public void initialize(GPIOPinAdapter gpioAdapter) {
         // Configure GPIO pins to read button states
+        this.gpioAdapter = gpioAdapter;
     }
 
     public boolean isButtonPressed(int pinNumber) {
         return gpioAdapter.readPinState(pinNumber);
     }
 
+    @Override
     public String getButtonName(int pinNumber) {
         return gpioAdapter.getPinName(pinNumber);
     }
-
-    @Override
-    protected void fireButtonPressedEvent(String buttonName) {
-        super.fireButtonPressedEvent(buttonName);
-    }
 }
 
 // Example usage:
 public class Main {
     public static void main(String[] args) throws Exception {
-        RaspberryPiGPIOAdapter gpioAdapter = new RaspberryPiGPIOAdapter();
-        gpioAdapter.initialize();
+        // Pin levels come from edge interrupts; reads never touch the hardware
+        PinRegistry pins = new PinRegistry(new Pi4jPinBackend());
+        EdgeTriggeredGPIOAdapter gpioAdapter = new EdgeTriggeredGPIOAdapter(pins);
 
         ControllerButtonSource controllerButtons = new ControllerButtonSource();
         controllerButtons.addButtonListener(new ButtonListener() {
@@ -142,6 +475,7 @@ public class Main {
                 System.out.println("Input cable button " + buttonName + " was pressed.");
             }
         });
+        inputCableButtons.setDebounceFilter(DebounceFilter.integrator(4));
         inputCableButtons.initialize(gpioAdapter);
 
         CircuitSwitchButtonSource circuitSwitches = new CircuitSwitchButtonSource();
@@ -151,9 +485,10 @@ public class Main {
                 System.out.println("Circuit switch " + buttonName + " was toggled.");
             }
         });
+        circuitSwitches.setDebounceFilter(DebounceFilter.timeWindow(5_000_000L));
         circuitSwitches.initialize(gpioAdapter);
 
-        GPIOButtonSource gpioButtons = new GPIOButtonSource();
+        GPIOButtonSource gpioButtons = new GPIOButtonSource(17, 27);
         gpioButtons.addButtonListener(new ButtonListener() {
             @Override
             public void onButtonPressed(String buttonName) {
@@ -161,5 +496,39 @@ public class Main {
             }
         });
         gpioButtons.initialize(gpioAdapter);
+
+        // Event listeners get the primitive event and can measure input latency directly
+        gpioButtons.addButtonEventListener(new ButtonEventListener() {
+            @Override
+            public void onButtonEvent(ButtonEvent event) {
+                System.out.println("GPIO button " + event.getButtonId() + " " + event.getEdge()
+                        + " after " + event.getLatencyNanos() + " ns");
+            }
+        });
+
+        // Run listeners on a consumer thread so a slow one cannot delay edge detection
+        ButtonEventDispatcher dispatcher = new ButtonEventDispatcher(1024, 1);
+        dispatcher.start();
+        controllerButtons.setDispatcher(dispatcher);
+        inputCableButtons.setDispatcher(dispatcher);
+        circuitSwitches.setDispatcher(dispatcher);
+        gpioButtons.setDispatcher(dispatcher);
+
+        // Scan only when an edge arrives, falling back to 1 kHz while a debounce filter settles
+        EdgeTriggeredButtonEngine buttonEngine = new EdgeTriggeredButtonEngine(gpioAdapter, 1_000_000L);
+        buttonEngine.register(controllerButtons);
+        buttonEngine.register(inputCableButtons);
+        buttonEngine.register(circuitSwitches);
+        buttonEngine.register(gpioButtons);
+
+        long watchedPins = controllerButtons.getPinMask() | inputCableButtons.getPinMask()
+                | circuitSwitches.getPinMask() | gpioButtons.getPinMask();
+        for (int pin = 0; pin < Long.SIZE; pin++) {
+            if ((watchedPins >>> pin & 1L) != 0L) {
+                pins.input(pin, "button-" + pin).addStateListener(gpioAdapter::onEdge);
+                gpioAdapter.onEdge(pin, pins.readPinState(pin));
+            }
+        }
+        buttonEngine.start();
     }
 }
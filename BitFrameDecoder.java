@@ -0,0 +1,390 @@
+package com.bytetech.robotics.bits;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Layout of a framed bit stream: a sync word, a payload of up to 56 bits and an optional check
+ * (even parity bit or CRC-8, poly 0x07, over the payload bits). Fields are named bit ranges of
+ * the payload, counted from its most significant bit.
+ */
+public final class BitFrameFormat {
+    public enum Check {
+        NONE(0),
+        EVEN_PARITY(1),
+        CRC8(8);
+
+        final int bits;
+
+        Check(int bits) {
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * Bit range of the payload; {@link #extract(long)} is a shift and a mask.
+     */
+    public static final class Field {
+        private final String name;
+        private final int shift;
+        private final long mask;
+
+        Field(String name, int shift, int width) {
+            this.name = name;
+            this.shift = shift;
+            this.mask = width == 64 ? -1L : (1L << width) - 1;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long extract(long payload) {
+            return (payload >>> shift) & mask;
+        }
+
+        /**
+         * Extracts the field as a two's-complement signed value.
+         */
+        public long extractSigned(long payload) {
+            long value = extract(payload);
+            int width = Long.bitCount(mask);
+            return (value << (64 - width)) >> (64 - width);
+        }
+    }
+
+    private static final int[] CRC8_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC8_TABLE[i] = crc & 0xFF;
+        }
+    }
+
+    // Unsigned, so a 32-bit sync word with its top bit set compares equal to the shifted window
+    final long syncWord;
+    final int syncBits;
+    final int payloadBits;
+    final Check check;
+    private final List<Field> fields = new ArrayList<>();
+
+    public BitFrameFormat(int syncWord, int syncBits, int payloadBits, Check check) {
+        if (syncBits < 1 || syncBits > 32) {
+            throw new IllegalArgumentException("Sync word must be 1-32 bits: " + syncBits);
+        }
+        if (syncBits < 32 && syncWord >>> syncBits != 0) {
+            throw new IllegalArgumentException("Sync word 0x" + Integer.toHexString(syncWord)
+                    + " does not fit in " + syncBits + " bits");
+        }
+        if (payloadBits < 1 || payloadBits + check.bits > 64 || payloadBits > 56) {
+            throw new IllegalArgumentException("Payload must be 1-56 bits including the check: " + payloadBits);
+        }
+        if (payloadBits + check.bits < 8) {
+            throw new IllegalArgumentException("Payload and check must span at least one byte: " + payloadBits);
+        }
+        this.syncWord = syncWord & 0xFFFFFFFFL;
+        this.syncBits = syncBits;
+        this.payloadBits = payloadBits;
+        this.check = check;
+    }
+
+    public Field field(String name, int offset, int width) {
+        if (offset < 0 || width < 1 || offset + width > payloadBits) {
+            throw new IllegalArgumentException("Field " + name + " at " + offset + "+" + width
+                    + " does not fit a " + payloadBits + "-bit payload");
+        }
+        Field field = new Field(name, payloadBits - offset - width, width);
+        fields.add(field);
+        return field;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    public int getFrameBits() {
+        return syncBits + payloadBits + check.bits;
+    }
+
+    /**
+     * The check bits that belong with {@code payload}.
+     */
+    public int computeCheck(long payload) {
+        switch (check) {
+            case EVEN_PARITY:
+                return Long.bitCount(payload) & 1;
+            case CRC8:
+                return crc8(payload, payloadBits);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * CRC-8 over the low {@code bits} bits of {@code value}, most significant bit first. Leading
+     * bits that do not fill a byte are shifted in one at a time, the rest a byte at a time.
+     */
+    static int crc8(long value, int bits) {
+        int crc = 0;
+        int leading = bits & 7;
+        for (int bit = bits - 1; bit >= bits - leading; bit--) {
+            int in = (int) (value >>> bit) & 1;
+            int top = (crc >>> 7) ^ in;
+            crc = ((crc << 1) & 0xFF) ^ (top != 0 ? 0x07 : 0);
+        }
+        for (int shift = bits - leading - 8; shift >= 0; shift -= 8) {
+            crc = CRC8_TABLE[(crc ^ (int) (value >>> shift)) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * Appends sync word, payload and check to {@code out} (MSB first) starting at bit
+     * {@code bitOffset}; returns the bit offset after the frame. Used by tests and simulators.
+     */
+    public int encode(long payload, byte[] out, int bitOffset) {
+        bitOffset = putBits(out, bitOffset, syncWord, syncBits);
+        bitOffset = putBits(out, bitOffset, payload, payloadBits);
+        return putBits(out, bitOffset, computeCheck(payload), check.bits);
+    }
+
+    static int putBits(byte[] out, int bitOffset, long value, int bits) {
+        for (int bit = bits - 1; bit >= 0; bit--, bitOffset++) {
+            if (((value >>> bit) & 1) != 0) {
+                out[bitOffset >>> 3] |= (byte) (0x80 >>> (bitOffset & 7));
+            } else {
+                out[bitOffset >>> 3] &= (byte) ~(0x80 >>> (bitOffset & 7));
+            }
+        }
+        return bitOffset;
+    }
+}
+
+public interface BitFrameListener {
+    /**
+     * A frame that passed its check; pull fields out with {@link BitFrameFormat.Field#extract}.
+     */
+    void onFrame(long payload);
+
+    /**
+     * A frame that followed a sync word but failed its check. {@code raw} holds the whole frame,
+     * sync word included, MSB first; it is reused, so copy what must be kept.
+     */
+    void onInvalidFrame(byte[] raw, int bitLength);
+}
+
+/**
+ * Streaming decoder for {@link BitFrameFormat} frames. Bytes are shifted into a 64-bit window and
+ * all eight bit alignments are tested against the sync word at once, so hunting costs a few
+ * operations per byte rather than per bit. Once synced, the rest of the frame is gathered a byte
+ * at a time and checked in registers; only frames that fail their check are handed on as raw
+ * bytes. Bits between frames that do not form a sync word are noise and are skipped.
+ *
+ * <p>Not thread-safe: one decoder per stream.
+ */
+public class BitFrameDecoder {
+    private final BitFrameFormat format;
+    private final BitFrameListener listener;
+    private final long syncMask;
+    private final int frameBits;
+    private final byte[] rawScratch;
+
+    private boolean synced;
+    private long window;
+    private int windowBits;
+    private long frame;
+    private int frameBitCount;
+
+    private final AtomicLong bitsIn = new AtomicLong();
+    private final AtomicLong validFrames = new AtomicLong();
+    private final AtomicLong invalidFrames = new AtomicLong();
+
+    public BitFrameDecoder(BitFrameFormat format, BitFrameListener listener) {
+        this.format = format;
+        this.listener = listener;
+        this.syncMask = (1L << format.syncBits) - 1;
+        this.frameBits = format.payloadBits + format.check.bits;
+        this.rawScratch = new byte[(format.getFrameBits() + 7) / 8];
+    }
+
+    public void decode(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            accept(data[i] & 0xFF, 8);
+        }
+        bitsIn.addAndGet(8L * length);
+    }
+
+    /**
+     * Feeds whole 64-bit words, most significant byte first, as read from a DMA or PIO buffer.
+     */
+    public void decode(long[] words, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            long word = words[i];
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                accept((int) (word >>> shift) & 0xFF, 8);
+            }
+        }
+        bitsIn.addAndGet(64L * length);
+    }
+
+    /**
+     * Takes the low {@code count} bits of {@code bits}, oldest bit first.
+     */
+    private void accept(int bits, int count) {
+        if (!synced) {
+            hunt(bits, count);
+            return;
+        }
+        int needed = frameBits - frameBitCount;
+        if (count < needed) {
+            frame = (frame << count) | bits;
+            frameBitCount += count;
+            return;
+        }
+        int left = count - needed;
+        frame = (frame << needed) | (bits >>> left);
+        finishFrame();
+        if (left > 0) {
+            hunt(bits & ((1 << left) - 1), left);
+        }
+    }
+
+    private void hunt(int bits, int count) {
+        window = (window << count) | bits;
+        windowBits = Math.min(windowBits + count, 64);
+        // Try the earliest alignment first; k is how many of the new bits follow the sync word
+        for (int k = count - 1; k >= 0; k--) {
+            if (windowBits - k >= format.syncBits && ((window >>> k) & syncMask) == format.syncWord) {
+                synced = true;
+                frame = bits & ((1L << k) - 1);
+                frameBitCount = k;
+                windowBits = 0;
+                return;
+            }
+        }
+    }
+
+    private void finishFrame() {
+        synced = false;
+        int checkBits = format.check.bits;
+        long payload = frame >>> checkBits;
+        int check = (int) (frame & ((1L << checkBits) - 1));
+        if (format.computeCheck(payload) == check) {
+            validFrames.incrementAndGet();
+            listener.onFrame(payload);
+        } else {
+            invalidFrames.incrementAndGet();
+            int end = BitFrameFormat.putBits(rawScratch, 0, format.syncWord, format.syncBits);
+            BitFrameFormat.putBits(rawScratch, end, frame, frameBits);
+            listener.onInvalidFrame(rawScratch, format.getFrameBits());
+        }
+    }
+
+    public BitFrameFormat getFormat() {
+        return format;
+    }
+
+    public long getBitsIn() {
+        return bitsIn.get();
+    }
+
+    public long getValidFrames() {
+        return validFrames.get();
+    }
+
+    public long getInvalidFrames() {
+        return invalidFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BitFrameDecoder[bitsIn=" + getBitsIn() + ", valid=" + getValidFrames() + ", invalid="
+                + getInvalidFrames() + "]";
+    }
+}
+
+class BitFrameDecoderTest {
+    private final List<Long> payloads = new ArrayList<>();
+    private final List<byte[]> failures = new ArrayList<>();
+    private final BitFrameListener listener = new BitFrameListener() {
+        @Override
+        public void onFrame(long payload) {
+            payloads.add(payload);
+        }
+
+        @Override
+        public void onInvalidFrame(byte[] raw, int bitLength) {
+            failures.add(raw.clone());
+        }
+    };
+
+    @Test
+    public void testFramesAtOddBitOffsetsAmongNoise() {
+        BitFrameFormat format = new BitFrameFormat(0x2DD4, 16, 24, BitFrameFormat.Check.CRC8);
+        BitFrameFormat.Field channel = format.field("channel", 0, 4);
+        BitFrameFormat.Field value = format.field("value", 4, 20);
+        byte[] stream = new byte[32];
+        int bit = BitFrameFormat.putBits(stream, 0, 0b101, 3);
+        bit = format.encode(0x3ABCDEL, stream, bit);
+        bit = BitFrameFormat.putBits(stream, bit, 0b11, 2);
+        format.encode(0x100005L, stream, bit);
+
+        BitFrameDecoder decoder = new BitFrameDecoder(format, listener);
+        decoder.decode(stream, 0, stream.length);
+        assertEquals(2, payloads.size());
+        assertEquals(3, channel.extract(payloads.get(0)));
+        assertEquals(0xABCDE, value.extract(payloads.get(0)));
+        assertEquals(5, value.extract(payloads.get(1)));
+        assertEquals(0, decoder.getInvalidFrames());
+    }
+
+    @Test
+    public void testSyncWordWithTopBitSet() {
+        BitFrameFormat format = new BitFrameFormat(0xF0E1D2C3, 32, 16, BitFrameFormat.Check.CRC8);
+        byte[] stream = new byte[12];
+        int bit = BitFrameFormat.putBits(stream, 0, 0b1, 1);
+        format.encode(0xBEEFL, stream, bit);
+
+        BitFrameDecoder decoder = new BitFrameDecoder(format, listener);
+        decoder.decode(stream, 0, stream.length);
+        assertEquals(1, payloads.size());
+        assertEquals(0xBEEFL, (long) payloads.get(0));
+    }
+
+    @Test
+    public void testSyncWordWiderThanSyncBitsIsRejected() {
+        try {
+            new BitFrameFormat(0x1A5, 8, 16, BitFrameFormat.Check.NONE);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("does not fit"));
+        }
+    }
+
+    @Test
+    public void testFailedCheckIsReportedWithRawFrame() {
+        BitFrameFormat format = new BitFrameFormat(0xA5, 8, 15, BitFrameFormat.Check.EVEN_PARITY);
+        byte[] stream = new byte[4];
+        format.encode(0x1234L, stream, 0);
+        byte[] expected = stream.clone();
+        stream[2] ^= 0x10;
+        expected[2] ^= 0x10;
+
+        BitFrameDecoder decoder = new BitFrameDecoder(format, listener);
+        decoder.decode(stream, 0, stream.length);
+        assertEquals(0, payloads.size());
+        assertEquals(1, failures.size());
+        assertArrayEquals(new byte[] {expected[0], expected[1], expected[2]}, failures.get(0));
+    }
+}
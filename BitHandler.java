@@ -1,35 +1,96 @@
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import com.bytetech.robotics.bits.BitFrameDecoder;
+import com.bytetech.robotics.bits.BitFrameFormat;
+import com.bytetech.robotics.bits.BitFrameListener;
+import com.bytetech.robotics.metrics.Counter;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
 
 public class BitHandler {
 
-    public static void handleInvalidBits(String binaryString) {
-        System.err.println("Received unexpected binary string '" + binaryString + "'.");
+    // Overridable with -Dbithandler.endpoint=... so a robot can report to a local collector
+    private static final String DEFAULT_ENDPOINT = "https://declanminer2023.github.io/monitorJsonPayload.js";
+    private static final String REPORT_SOURCE = "bits";
+    // Reports that cannot be sent are kept here until the collector is reachable again
+    private static final String DEFAULT_SPOOL_DIRECTORY =
+            Paths.get(System.getProperty("user.home"), ".robotics", "report-spool").toString();
+    private static final int SPOOL_SEGMENT_SIZE = 1 << 20;
+    private static final long SPOOL_MAX_BYTES = 32L << 20;
+
+    private static final ErrorReportPipeline reports = createPipeline();
+    private static final LatencyHistogram reportLatency = MetricsRegistry.getDefault().histogram("bits.report");
+    private static final Counter invalidFrames = MetricsRegistry.getDefault().counter("bits.invalid");
 
+    private static ErrorReportPipeline createPipeline() {
+        URI endpoint = URI.create(System.getProperty("bithandler.endpoint", DEFAULT_ENDPOINT));
+        ErrorReportPipeline pipeline = new ErrorReportPipeline(new HttpReportSender(endpoint, 5000),
+                1024, 100, TimeUnit.MILLISECONDS.toNanos(250), 5,
+                TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(30));
         try {
-            sendReportToDebugCenter(binaryString);
-        } catch (Exception e) {
-            System.err.println("Failed to send error report to debugging center: " + e.getMessage());
+            pipeline.setSpool(new ReportSpool(Paths.get(System.getProperty("bithandler.spool", DEFAULT_SPOOL_DIRECTORY)),
+                    SPOOL_SEGMENT_SIZE, SPOOL_MAX_BYTES));
+        } catch (IOException e) {
+            System.err.println("Unable to open error report spool, undeliverable reports will be lost: "
+                    + e.getMessage());
         }
+        pipeline.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                pipeline.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "error-report-shutdown"));
+        return pipeline;
+    }
+
+    /**
+     * Reports an unexpected frame. Only queues the report, so it is safe to call from a decoder
+     * thread during a burst; see {@link #getReportPipeline()} for sent and dropped counts.
+     */
+    public static void handleInvalidBits(String binaryString) {
+        long start = System.nanoTime();
+        reports.submit(new ErrorReport(System.currentTimeMillis(), REPORT_SOURCE, binaryString));
+        invalidFrames.increment();
+        reportLatency.recordSince(start);
     }
 
-    private static void sendReportToDebugCenter(String binaryString) throws Exception {
-        CloseableHttpClient httpClient = HttpClients.createDefault();
-        HttpPost postRequest = new HttpPost("https://declanminer2023.github.io/monitorJsonPayload.js");
+    /**
+     * Reports a frame that failed its check. {@code raw} holds {@code bitLength} bits, most
+     * significant first, and may be reused by the caller once this returns. The bytes are
+     * reported as hex, padded with zero bits to a whole byte, and encoded on the pipeline's
+     * thread.
+     */
+    public static void handleInvalidBits(byte[] raw, int bitLength) {
+        long start = System.nanoTime();
+        reports.submit(new ErrorReport(System.currentTimeMillis(), REPORT_SOURCE, raw, 0, bitLength));
+        invalidFrames.increment();
+        reportLatency.recordSince(start);
+    }
 
-        String jsonPayload = String.format("{\"raw_data\": \"%s\"}", binaryString);
-        StringEntity entity = new StringEntity(jsonPayload, "UTF-8");
-        postRequest.setEntity(entity);
-        postRequest.setHeader("Accept", "application/json");
-        postRequest.setHeader("Content-type", "application/json");
+    /**
+     * A decoder for {@code format} that hands valid payloads to {@code onFrame} and reports only
+     * frames that fail their check.
+     */
+    public static BitFrameDecoder newDecoder(BitFrameFormat format, LongConsumer onFrame) {
+        return new BitFrameDecoder(format, new BitFrameListener() {
+            @Override
+            public void onFrame(long payload) {
+                onFrame.accept(payload);
+            }
 
-        CloseableHttpResponse response = httpClient.execute(postRequest);
-        try {
-            // Handle response
-        } finally {
-            response.close();
-        }
+            @Override
+            public void onInvalidFrame(byte[] raw, int bitLength) {
+                handleInvalidBits(raw, bitLength);
+            }
+        });
+    }
+
+    public static ErrorReportPipeline getReportPipeline() {
+        return reports;
     }
 }
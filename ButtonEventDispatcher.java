@@ -0,0 +1,321 @@
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hands button events from the detecting thread to one or more consumer threads through a
+ * preallocated, lock-free ring buffer. Publishing never blocks: when the ring is full the event
+ * is dropped and counted, so a slow listener can no longer hold up edge detection.
+ *
+ * <p>With more than one consumer, events from the same source may be delivered out of order.
+ * On JDK 21+ pass {@code Thread.ofVirtual().factory()} to run consumers as virtual threads.
+ */
+public class ButtonEventDispatcher {
+    private static final long DEFAULT_MAX_PARK_NANOS = 1_000_000L;
+
+    private final int mask;
+    private final int capacity;
+
+    // Slot n is free for the producer claiming position p when sequences[n] == p and holds a
+    // published event for the consumer claiming p when sequences[n] == p + 1
+    private final AtomicLongArray sequences;
+    private final AbstractButtonSource[] sources;
+    private final int[] buttonIds;
+    private final boolean[] pressedFlags;
+    private final long[] timestamps;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final ThreadFactory threadFactory;
+    private final Thread[] consumers;
+    private final AtomicIntegerArray parked;
+    private final long maxParkNanos;
+    private volatile boolean running;
+
+    public ButtonEventDispatcher(int capacity, int consumerCount) {
+        this(capacity, consumerCount, ButtonEventDispatcher::newConsumerThread, DEFAULT_MAX_PARK_NANOS);
+    }
+
+    public ButtonEventDispatcher(int capacity, int consumerCount, ThreadFactory threadFactory, long maxParkNanos) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        if (consumerCount < 1) {
+            throw new IllegalArgumentException("At least one consumer is required: " + consumerCount);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.sources = new AbstractButtonSource[capacity];
+        this.buttonIds = new int[capacity];
+        this.pressedFlags = new boolean[capacity];
+        this.timestamps = new long[capacity];
+        this.threadFactory = threadFactory;
+        this.consumers = new Thread[consumerCount];
+        this.parked = new AtomicIntegerArray(consumerCount);
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    private static Thread newConsumerThread(Runnable task) {
+        Thread thread = new Thread(task, "button-event-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < consumers.length; i++) {
+            final int consumerIndex = i;
+            consumers[i] = threadFactory.newThread(() -> consume(consumerIndex));
+            consumers[i].start();
+        }
+    }
+
+    /**
+     * Stops the consumers once they have drained whatever is still queued.
+     */
+    public void stop() throws InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        for (Thread consumer : consumers) {
+            LockSupport.unpark(consumer);
+        }
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+    }
+
+    /**
+     * Queues an event for delivery. Never blocks; returns {@code false} if the ring was full and
+     * the event was dropped.
+     */
+    public boolean publish(AbstractButtonSource source, int buttonId, boolean pressed, long timestampNanos) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0L) {
+                droppedCount.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        sources[index] = source;
+        buttonIds[index] = buttonId;
+        pressedFlags[index] = pressed;
+        timestamps[index] = timestampNanos;
+        sequences.set(index, position + 1);
+        queuedCount.incrementAndGet();
+        wakeConsumer();
+        return true;
+    }
+
+    private void wakeConsumer() {
+        for (int i = 0; i < consumers.length; i++) {
+            if (parked.get(i) == 1 && parked.compareAndSet(i, 1, 0)) {
+                LockSupport.unpark(consumers[i]);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delivers at most one queued event on the calling thread, filling in {@code event}.
+     *
+     * @return {@code false} if the ring was empty
+     */
+    boolean deliverNext(ButtonEvent event) {
+        long position = head.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0L) {
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = head.get();
+            } else if (difference < 0L) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+        AbstractButtonSource source = sources[index];
+        event.set(source, buttonIds[index], pressedFlags[index], timestamps[index]);
+        sources[index] = null;
+        sequences.set(index, position + capacity);
+
+        if (source.deliverButtonEventIsolated(event) == 0) {
+            deliveredCount.incrementAndGet();
+        } else {
+            failedCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void consume(int consumerIndex) {
+        ButtonEvent event = new ButtonEvent();
+        while (running) {
+            if (deliverNext(event)) {
+                continue;
+            }
+            parked.set(consumerIndex, 1);
+            // Re-check after advertising that we are parked so a concurrent publish is not missed
+            if (isEmpty() && running) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+            parked.set(consumerIndex, 0);
+        }
+        while (deliverNext(event)) {
+            // Drain what was queued before stop()
+        }
+    }
+
+    private boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Events waiting in the ring right now.
+     */
+    public long getBacklog() {
+        return Math.max(0L, tail.get() - head.get());
+    }
+
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
+
+class ButtonEventDispatcherTest {
+    private static final class TestButtonSource extends AbstractButtonSource {
+        @Override
+        public void initialize(GPIOPinAdapter gpioAdapter) {
+            this.gpioAdapter = gpioAdapter;
+        }
+
+        @Override
+        public String getButtonName(int buttonId) {
+            return "TEST" + buttonId;
+        }
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothing() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 20_000;
+        ButtonEventDispatcher dispatcher = new ButtonEventDispatcher(1 << 17, 2);
+        TestButtonSource source = new TestButtonSource();
+        source.setDispatcher(dispatcher);
+        AtomicLongArray seen = new AtomicLongArray(producers);
+        source.addButtonEventListener(event -> seen.incrementAndGet(event.getButtonId()));
+        dispatcher.start();
+
+        // An assertion failing on a producer thread would not fail the test, so count rejections
+        AtomicInteger rejected = new AtomicInteger();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int buttonId = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    if (!dispatcher.publish(source, buttonId, (i & 1) == 0, System.nanoTime())) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        dispatcher.stop();
+
+        assertEquals(0, rejected.get());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, seen.get(p));
+        }
+        assertEquals((long) producers * perProducer, dispatcher.getDeliveredCount());
+        assertEquals(0L, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void testFullRingDropsAndCounts() {
+        // Not started, so nothing drains the ring
+        ButtonEventDispatcher dispatcher = new ButtonEventDispatcher(4, 1);
+        TestButtonSource source = new TestButtonSource();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(dispatcher.publish(source, i, true, i));
+        }
+        assertFalse(dispatcher.publish(source, 4, true, 4));
+        assertFalse(dispatcher.publish(source, 5, true, 5));
+        assertEquals(4L, dispatcher.getQueuedCount());
+        assertEquals(2L, dispatcher.getDroppedCount());
+        assertEquals(4L, dispatcher.getBacklog());
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopOthersOrTheConsumer() throws InterruptedException {
+        ButtonEventDispatcher dispatcher = new ButtonEventDispatcher(16, 1);
+        TestButtonSource source = new TestButtonSource();
+        AtomicLong seen = new AtomicLong();
+        source.addButtonEventListener(event -> {
+            throw new AssertionError("listener bug");
+        });
+        source.addButtonEventListener(event -> seen.incrementAndGet());
+        dispatcher.start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(dispatcher.publish(source, 0, true, i));
+        }
+        dispatcher.stop();
+
+        assertEquals(3L, seen.get());
+        assertEquals(3L, dispatcher.getFailedCount());
+    }
+}
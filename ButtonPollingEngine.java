@@ -0,0 +1,266 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scans every registered {@link AbstractButtonSource} in a single pass. Each pass does one
+ * bulk {@link GPIOPinAdapter#readPinStates(long)} call covering the pins of all sources and hands
+ * the same snapshot to each of them, so the steady state (no edges) allocates nothing.
+ */
+public class ButtonPollingEngine implements Runnable {
+    private static final LatencyHistogram pinReadLatency = MetricsRegistry.getDefault().histogram("gpio.readPinStates");
+
+    private final GPIOPinAdapter gpioAdapter;
+    private final long periodNanos;
+
+    // Copy-on-write so the scan loop can iterate without locking or allocating an iterator
+    private volatile AbstractButtonSource[] sources = new AbstractButtonSource[0];
+
+    private volatile boolean running;
+    private Thread pollingThread;
+    private volatile long scanCount;
+    private long nextDeadline;
+
+    public ButtonPollingEngine(GPIOPinAdapter gpioAdapter, long periodNanos) {
+        if (periodNanos <= 0L) {
+            throw new IllegalArgumentException("Polling period must be positive: " + periodNanos);
+        }
+        this.gpioAdapter = gpioAdapter;
+        this.periodNanos = periodNanos;
+    }
+
+    public synchronized void register(AbstractButtonSource source) {
+        AbstractButtonSource[] updated = Arrays.copyOf(sources, sources.length + 1);
+        updated[updated.length - 1] = source;
+        sources = updated;
+    }
+
+    public synchronized void unregister(AbstractButtonSource source) {
+        AbstractButtonSource[] current = sources;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == source) {
+                AbstractButtonSource[] updated = new AbstractButtonSource[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                sources = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one pass: a single bank read followed by edge detection in every source. The pins are
+     * collected on every pass, so buttons a source starts watching after registration are read.
+     */
+    public void scanOnce() {
+        long mask = 0L;
+        for (AbstractButtonSource source : sources) {
+            mask |= source.getPinMask();
+        }
+        long readStart = System.nanoTime();
+        long bank = mask == 0L ? 0L : gpioAdapter.readPinStates(mask);
+        long timestampNanos = System.nanoTime();
+        pinReadLatency.record(timestampNanos - readStart);
+        scanSources(bank, timestampNanos);
+    }
+
+    /**
+     * Runs edge detection in every source against a bank snapshot taken at {@code timestampNanos}.
+     */
+    protected void scanSources(long bank, long timestampNanos) {
+        for (AbstractButtonSource source : sources) {
+            source.scan(bank, timestampNanos);
+        }
+        scanCount++;
+    }
+
+    public long getScanCount() {
+        return scanCount;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * True while any source's debounce filter is waiting for a reading to settle.
+     */
+    protected boolean isSettling() {
+        for (AbstractButtonSource source : sources) {
+            if (source.isSettling()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True while any source reads no GPIO pins, such as a controller or input cable source, and
+     * so has to be scanned at the polling period rather than on pin edges.
+     */
+    protected boolean hasPinlessSources() {
+        for (AbstractButtonSource source : sources) {
+            if (source.getPinMask() == 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans as a task on {@code controlLoop}, at this engine's period, instead of on a thread of
+     * its own. Use either this or {@link #start()}, not both.
+     */
+    public ControlLoopScheduler.Task schedule(ControlLoopScheduler controlLoop) {
+        return controlLoop.schedule(getClass().getSimpleName(), periodNanos, deadline -> scanOnce());
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        pollingThread = new Thread(this, getClass().getSimpleName());
+        pollingThread.setDaemon(true);
+        pollingThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = pollingThread;
+            pollingThread = null;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        nextDeadline = System.nanoTime();
+        while (running) {
+            scanOnce();
+            awaitNextScan();
+        }
+    }
+
+    /**
+     * Blocks the polling thread until the next pass is due.
+     */
+    protected void awaitNextScan() {
+        nextDeadline += periodNanos;
+        long remaining = nextDeadline - System.nanoTime();
+        if (remaining > 0L) {
+            LockSupport.parkNanos(remaining);
+        } else {
+            // Fell behind; start a fresh schedule instead of bursting to catch up
+            nextDeadline = System.nanoTime();
+        }
+    }
+}
+
+class ButtonPollingEngineTest {
+    private FakeGPIOAdapter gpioAdapter;
+    private GPIOButtonSource gpioButtons;
+    private ButtonPollingEngine pollingEngine;
+    private List<String> pressed;
+
+    @Before
+    public void setup() {
+        gpioAdapter = new FakeGPIOAdapter();
+        pressed = new ArrayList<>();
+        gpioButtons = new GPIOButtonSource(3, 17);
+        gpioButtons.addButtonListener(pressed::add);
+        gpioButtons.initialize(gpioAdapter);
+        pollingEngine = new ButtonPollingEngine(gpioAdapter, 1_000_000L);
+        pollingEngine.register(gpioButtons);
+    }
+
+    @Test
+    public void testRisingEdgesFireOncePerPress() {
+        gpioAdapter.bank = 1L << 3;
+        pollingEngine.scanOnce();
+        pollingEngine.scanOnce();
+        assertEquals(Arrays.asList("pin3"), pressed);
+
+        gpioAdapter.bank = (1L << 3) | (1L << 17) | (1L << 40);
+        pollingEngine.scanOnce();
+        assertEquals(Arrays.asList("pin3", "pin17"), pressed);
+
+        gpioAdapter.bank = 0L;
+        pollingEngine.scanOnce();
+        assertEquals(2, pressed.size());
+    }
+
+    @Test
+    public void testEventsCarryEdgeAndButtonId() {
+        List<ButtonEvent> events = new ArrayList<>();
+        gpioButtons.addButtonEventListener(event -> events.add(event.copy()));
+
+        gpioAdapter.bank = 1L << 17;
+        pollingEngine.scanOnce();
+        gpioAdapter.bank = 0L;
+        pollingEngine.scanOnce();
+
+        assertEquals(2, events.size());
+        assertEquals(17, events.get(0).getButtonId());
+        assertEquals(ButtonEvent.Edge.PRESS, events.get(0).getEdge());
+        assertEquals(ButtonEvent.Edge.RELEASE, events.get(1).getEdge());
+        assertEquals(gpioButtons.getSourceId(), events.get(1).getSourceId());
+        assertTrue(events.get(1).getTimestampNanos() >= events.get(0).getTimestampNanos());
+    }
+
+    @Test
+    public void testOnlyWatchedPinsAreRead() {
+        pollingEngine.scanOnce();
+        assertEquals((1L << 3) | (1L << 17), gpioAdapter.lastMask);
+    }
+
+    @Test
+    public void testButtonWatchedAfterRegistrationIsRead() {
+        gpioButtons.watchButton(22);
+        gpioAdapter.bank = 1L << 22;
+        pollingEngine.scanOnce();
+        assertEquals((1L << 3) | (1L << 17) | (1L << 22), gpioAdapter.lastMask);
+        assertEquals(Arrays.asList("pin22"), pressed);
+    }
+
+    private static class FakeGPIOAdapter implements GPIOPinAdapter {
+        long bank;
+        long lastMask;
+
+        @Override
+        public boolean readPinState(int pinNumber) {
+            return (bank >>> pinNumber & 1L) != 0L;
+        }
+
+        @Override
+        public void writePinState(int pinNumber, boolean state) {}
+
+        @Override
+        public String getPinName(int pinNumber) {
+            return "pin" + pinNumber;
+        }
+
+        @Override
+        public long readPinStates(long mask) {
+            lastMask = mask;
+            return bank & mask;
+        }
+    }
+}
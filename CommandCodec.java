@@ -0,0 +1,372 @@
+package com.bytetech.robotics.interfaces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A typed device command. Instances are mutable so a control loop can reuse one per channel
+ * instead of allocating a command per send.
+ */
+public final class BinaryCommand {
+    private int opcode;
+    private int channel;
+    private int sequence;
+    private int value;
+
+    public BinaryCommand set(int opcode, int channel, int value) {
+        this.opcode = opcode;
+        this.channel = channel;
+        this.value = value;
+        return this;
+    }
+
+    public BinaryCommand motorSpeed(int channel, int speed) {
+        return set(CommandCodec.OP_MOTOR_SPEED, channel, speed);
+    }
+
+    public BinaryCommand servoPosition(int channel, int position) {
+        return set(CommandCodec.OP_SERVO_POSITION, channel, position);
+    }
+
+    public BinaryCommand sensorRead(int channel) {
+        return set(CommandCodec.OP_SENSOR_READ, channel, 0);
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "BinaryCommand[opcode=0x" + Integer.toHexString(opcode) + ", channel=" + channel + ", sequence="
+                + sequence + ", value=" + value + "]";
+    }
+}
+
+/**
+ * Encodes and decodes the binary command format, version 1:
+ *
+ * <pre>
+ * 0      sync 0xA5
+ * 1      version
+ * 2      opcode
+ * 3      channel
+ * 4..5   sequence (u16, big endian)
+ * 6      payload length
+ * 7..    payload
+ * last   CRC-8 (poly 0x07) over bytes 1 .. end of payload
+ * </pre>
+ *
+ * A motor speed command is 10 bytes on the wire against 13 or more for the text form, and
+ * encoding or decoding touches only the caller's buffer.
+ */
+public class CommandCodec {
+    public static final int SYNC = 0xA5;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 7;
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + 255 + 1;
+
+    public static final int OP_MOTOR_SPEED = 0x01;
+    public static final int OP_SERVO_POSITION = 0x02;
+    public static final int OP_SENSOR_READ = 0x03;
+    // Replies set the high bit of the opcode they answer
+    public static final int OP_REPLY = 0x80;
+
+    private static final int[] CRC8_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC8_TABLE[i] = crc & 0xFF;
+        }
+    }
+
+    private final AtomicLong corruptFrameCount = new AtomicLong();
+    private final AtomicLong unsupportedVersionCount = new AtomicLong();
+
+    static int payloadSize(int opcode) {
+        switch (opcode & ~OP_REPLY) {
+            case OP_MOTOR_SPEED:
+            case OP_SERVO_POSITION:
+                return 2;
+            case OP_SENSOR_READ:
+                return (opcode & OP_REPLY) != 0 ? 4 : 0;
+            default:
+                throw new IllegalArgumentException("Unknown opcode 0x" + Integer.toHexString(opcode));
+        }
+    }
+
+    /**
+     * Writes {@code command} into {@code out} and returns the frame length.
+     */
+    public int encode(BinaryCommand command, ByteBuffer out) {
+        int opcode = command.getOpcode();
+        int payloadSize = payloadSize(opcode);
+        int start = out.position();
+        out.put((byte) SYNC);
+        out.put((byte) VERSION);
+        out.put((byte) opcode);
+        out.put((byte) command.getChannel());
+        out.putShort((short) command.getSequence());
+        out.put((byte) payloadSize);
+        if (payloadSize == 2) {
+            out.putShort((short) command.getValue());
+        } else if (payloadSize == 4) {
+            out.putInt(command.getValue());
+        }
+        out.put((byte) crc8(out, start + 1, out.position()));
+        return out.position() - start;
+    }
+
+    /**
+     * Decodes the next frame in {@code in} into {@code into}. Bytes before a sync byte and frames
+     * that fail the CRC are skipped and counted.
+     *
+     * @return {@code false} if {@code in} does not yet hold a whole frame; its position is left
+     *         at the start of the partial frame
+     */
+    public boolean decode(ByteBuffer in, BinaryCommand into) {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            if ((in.get(start) & 0xFF) != SYNC) {
+                in.position(start + 1);
+                continue;
+            }
+            if (in.remaining() < HEADER_SIZE) {
+                return false;
+            }
+            int payloadSize = in.get(start + 6) & 0xFF;
+            int frameSize = HEADER_SIZE + payloadSize + 1;
+            if (in.remaining() < frameSize) {
+                return false;
+            }
+            int end = start + frameSize;
+            if ((in.get(end - 1) & 0xFF) != crc8(in, start + 1, end - 1)) {
+                corruptFrameCount.incrementAndGet();
+                in.position(start + 1);
+                continue;
+            }
+            in.position(end);
+            if ((in.get(start + 1) & 0xFF) != VERSION) {
+                unsupportedVersionCount.incrementAndGet();
+                continue;
+            }
+
+            int opcode = in.get(start + 2) & 0xFF;
+            int value;
+            if (payloadSize == 2) {
+                value = in.getShort(start + 7);
+            } else if (payloadSize == 4) {
+                value = in.getInt(start + 7);
+            } else {
+                value = 0;
+            }
+            into.set(opcode, in.get(start + 3) & 0xFF, value);
+            into.setSequence(in.getShort(start + 4) & 0xFFFF);
+            return true;
+        }
+        return false;
+    }
+
+    private static int crc8(ByteBuffer buffer, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[(crc ^ buffer.get(i)) & 0xFF];
+        }
+        return crc;
+    }
+
+    public long getCorruptFrameCount() {
+        return corruptFrameCount.get();
+    }
+
+    public long getUnsupportedVersionCount() {
+        return unsupportedVersionCount.get();
+    }
+}
+
+/**
+ * {@link CommandLink} that speaks the binary format over a pair of byte channels (a serial port,
+ * a Bluetooth socket). Each command is encoded into one reusable direct buffer. Only
+ * {@link BinaryCommand} commands are accepted; each reply is decoded into a fresh BinaryCommand
+ * because it becomes the value of the caller's future.
+ */
+public class BinaryCommandLink implements CommandLink {
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+    private final CommandCodec codec = new CommandCodec();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(CommandCodec.MAX_FRAME_SIZE);
+
+    // Written under the pipeline's send lock, read by the reader thread
+    private volatile int lastSentSequence;
+    private volatile Thread readerThread;
+
+    public BinaryCommandLink(ReadableByteChannel input, WritableByteChannel output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    @Override
+    public void open(ReplyHandler replyHandler) {
+        Thread thread = new Thread(() -> readReplies(replyHandler), "binary-command-link");
+        thread.setDaemon(true);
+        readerThread = thread;
+        thread.start();
+    }
+
+    private void readReplies(ReplyHandler replyHandler) {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(CommandCodec.MAX_FRAME_SIZE * 4);
+        try {
+            while (input.read(receiveBuffer) >= 0) {
+                receiveBuffer.flip();
+                BinaryCommand reply = new BinaryCommand();
+                while (codec.decode(receiveBuffer, reply)) {
+                    replyHandler.onReply(fullSequence(reply.getSequence()), reply);
+                    reply = new BinaryCommand();
+                }
+                receiveBuffer.compact();
+            }
+            if (readerThread != null) {
+                replyHandler.onFailure(new IOException("Device closed the link"));
+            }
+        } catch (IOException e) {
+            if (readerThread != null) {
+                replyHandler.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Widens a 16 bit wire sequence back to the pipeline's int sequence. The in-flight window is
+     * far smaller than 65536, so the nearest sequence at or before the last one sent is the match.
+     */
+    private int fullSequence(int wireSequence) {
+        return fullSequence(lastSentSequence, wireSequence);
+    }
+
+    /** The pipeline wraps its sequences to stay non-negative, so the match wraps the same way. */
+    static int fullSequence(int lastSent, int wireSequence) {
+        return (lastSent - ((lastSent - wireSequence) & 0xFFFF)) & Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void send(int sequence, Object command) throws IOException {
+        if (!(command instanceof BinaryCommand)) {
+            throw new IllegalArgumentException("Expected a BinaryCommand but got " + command);
+        }
+        BinaryCommand binaryCommand = (BinaryCommand) command;
+        binaryCommand.setSequence(sequence & 0xFFFF);
+        lastSentSequence = sequence;
+        sendBuffer.clear();
+        codec.encode(binaryCommand, sendBuffer);
+        sendBuffer.flip();
+        while (sendBuffer.hasRemaining()) {
+            output.write(sendBuffer);
+        }
+    }
+
+    @Override
+    public void close() {
+        Thread thread = readerThread;
+        readerThread = null;
+        try {
+            input.close();
+            output.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close command link: " + e.getMessage());
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public CommandCodec getCodec() {
+        return codec;
+    }
+}
+
+class CommandCodecTest {
+    private final CommandCodec codec = new CommandCodec();
+
+    @Test
+    public void testRoundTripWithResync() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) 0x42);
+        BinaryCommand command = new BinaryCommand().motorSpeed(3, -750);
+        command.setSequence(40000);
+        assertEquals(10, codec.encode(command, buffer));
+        codec.encode(new BinaryCommand().sensorRead(1), buffer);
+        buffer.flip();
+
+        BinaryCommand decoded = new BinaryCommand();
+        assertTrue(codec.decode(buffer, decoded));
+        assertEquals(CommandCodec.OP_MOTOR_SPEED, decoded.getOpcode());
+        assertEquals(3, decoded.getChannel());
+        assertEquals(-750, decoded.getValue());
+        assertEquals(40000, decoded.getSequence());
+
+        assertTrue(codec.decode(buffer, decoded));
+        assertEquals(CommandCodec.OP_SENSOR_READ, decoded.getOpcode());
+        assertFalse(codec.decode(buffer, decoded));
+    }
+
+    @Test
+    public void testReplySequenceWidensAcrossThePipelineWrap() {
+        assertEquals(70000, BinaryCommandLink.fullSequence(70001, 70000 & 0xFFFF));
+        // The pipeline sent MAX_VALUE and then wrapped to 0 and 1
+        assertEquals(Integer.MAX_VALUE, BinaryCommandLink.fullSequence(1, Integer.MAX_VALUE & 0xFFFF));
+        assertEquals(0, BinaryCommandLink.fullSequence(1, 0));
+        assertEquals(1, BinaryCommandLink.fullSequence(1, 1));
+    }
+
+    @Test
+    public void testCorruptFrameIsSkipped() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        codec.encode(new BinaryCommand().servoPosition(2, 900), buffer);
+        buffer.put(8, (byte) (buffer.get(8) ^ 0x10));
+        codec.encode(new BinaryCommand().servoPosition(2, 450), buffer);
+        buffer.flip();
+
+        BinaryCommand decoded = new BinaryCommand();
+        assertTrue(codec.decode(buffer, decoded));
+        assertEquals(450, decoded.getValue());
+        assertEquals(1L, codec.getCorruptFrameCount());
+    }
+
+    @Test
+    public void testPartialFrameWaitsForMoreBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        codec.encode(new BinaryCommand().motorSpeed(0, 50), buffer);
+        buffer.flip();
+        buffer.limit(6);
+        assertFalse(codec.decode(buffer, new BinaryCommand()));
+        assertEquals(0, buffer.position());
+    }
+}
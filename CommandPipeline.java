@@ -0,0 +1,601 @@
+package com.bytetech.robotics.interfaces;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import com.bytetech.robotics.interfaces.Interfaces.DeviceInterface;
+import com.bytetech.robotics.metrics.Counter;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The wire side of a pipelined device: sends commands and reports replies.
+ */
+public interface CommandLink {
+    /**
+     * Replies from a line protocol that carries no sequence number use this value and are matched
+     * to the oldest outstanding command. Sequence numbers handed to {@link #send} are never
+     * negative, so this value cannot clash with one.
+     */
+    int UNSEQUENCED = -1;
+
+    interface ReplyHandler {
+        void onReply(int sequence, Object reply);
+        void onFailure(IOException cause);
+    }
+
+    void open(ReplyHandler replyHandler) throws IOException;
+
+    void send(int sequence, Object command) throws IOException;
+
+    void close();
+}
+
+/**
+ * Keeps up to {@code window} commands in flight on one {@link CommandLink} and completes each
+ * command's future when its reply arrives. Commands go out in sequence order, so links whose
+ * firmware answers in order need no protocol change.
+ *
+ * <p>A command that times out is failed at once, but until the link has shown that it numbers
+ * its replies, the command keeps its place in the reply order and its window slot: a late,
+ * unsequenced reply to it is then discarded as a stray instead of being handed to the next
+ * command. While the window is full, {@link #submit} waits at most the reply timeout.
+ */
+public class CommandPipeline {
+    // Shared by every pipeline in the process; the per-instance counters below stay for callers
+    private static final LatencyHistogram ackLatency = MetricsRegistry.getDefault().histogram("command.ack");
+    private static final Counter sentTotal = MetricsRegistry.getDefault().counter("command.sent");
+    private static final Counter failedTotal = MetricsRegistry.getDefault().counter("command.failed");
+
+    private final CommandLink link;
+    private final int window;
+    private final int mask;
+    private final Duration replyTimeout;
+    private final Semaphore permits;
+    private final AtomicReferenceArray<CompletableFuture<Object>> inFlight;
+    private final int[] inFlightSequences;
+    private final long[] inFlightSentNanos;
+    private final Object sendLock = new Object();
+
+    // Sequences still awaiting a reply, oldest first, guarded by outstandingLock. Unsequenced
+    // replies are matched against the head; sends that fail leave it, and so do commands that time
+    // out once replies are known to carry sequence numbers.
+    private final int[] outstandingSequences;
+    private int outstandingHead;
+    private int outstandingCount;
+    private final Object outstandingLock = new Object();
+
+    private int nextSequence;
+    private volatile boolean open;
+    // Set by the first reply that carries a sequence number
+    private volatile boolean sequencedReplies;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong strayReplyCount = new AtomicLong();
+
+    public CommandPipeline(CommandLink link, int window, Duration replyTimeout) {
+        if (window < 1 || Integer.bitCount(window) != 1) {
+            throw new IllegalArgumentException("Window must be a power of two: " + window);
+        }
+        this.link = link;
+        this.window = window;
+        this.mask = window - 1;
+        this.replyTimeout = replyTimeout;
+        this.permits = new Semaphore(window);
+        this.inFlight = new AtomicReferenceArray<>(window);
+        this.inFlightSequences = new int[window];
+        this.inFlightSentNanos = new long[window];
+        this.outstandingSequences = new int[window];
+    }
+
+    public void open() throws IOException {
+        synchronized (sendLock) {
+            nextSequence = 0;
+            link.open(new CommandLink.ReplyHandler() {
+                @Override
+                public void onReply(int sequence, Object reply) {
+                    handleReply(sequence, reply);
+                }
+
+                @Override
+                public void onFailure(IOException cause) {
+                    failOutstanding(cause);
+                }
+            });
+            open = true;
+        }
+    }
+
+    public void close() {
+        synchronized (sendLock) {
+            open = false;
+            link.close();
+        }
+        failOutstanding(new IOException("Command pipeline closed"));
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Sends {@code command} and returns a future for its reply. Blocks only while the in-flight
+     * window is full, which is the back-pressure that keeps the link from being overrun.
+     */
+    public CompletableFuture<Object> submit(Object command) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        try {
+            if (replyTimeout == null) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(replyTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                // Every slot is held by a command still waiting for its reply, perhaps a late one
+                failedCount.incrementAndGet();
+                failedTotal.increment();
+                future.completeExceptionally(new TimeoutException("No free slot in the command window"));
+                return future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        int sequence;
+        synchronized (sendLock) {
+            if (!open) {
+                permits.release();
+                future.completeExceptionally(new IOException("Command pipeline is not open"));
+                return future;
+            }
+            sequence = nextSequence;
+            // Wrap within the non-negative range; window divides it, so slots keep rotating
+            nextSequence = (nextSequence + 1) & Integer.MAX_VALUE;
+            inFlightSequences[sequence & mask] = sequence;
+            inFlightSentNanos[sequence & mask] = System.nanoTime();
+            // Tracked before sending so a reply racing send() already finds it
+            trackOutstanding(sequence);
+            inFlight.set(sequence & mask, future);
+            submittedCount.incrementAndGet();
+            sentTotal.increment();
+            try {
+                link.send(sequence, command);
+            } catch (IOException e) {
+                retire(sequence, future);
+                failedCount.incrementAndGet();
+                failedTotal.increment();
+                future.completeExceptionally(e);
+                return future;
+            }
+        }
+
+        if (replyTimeout != null) {
+            final int timedSequence = sequence;
+            future.orTimeout(replyTimeout.toNanos(), TimeUnit.NANOSECONDS).whenComplete((reply, error) -> {
+                if (!(error instanceof TimeoutException)) {
+                    return;
+                }
+                failedCount.incrementAndGet();
+                failedTotal.increment();
+                // Without sequence numbers the late reply can only be told apart by its position,
+                // so the slot stays until that reply (or a link failure) retires it
+                if (sequencedReplies) {
+                    retire(timedSequence, future);
+                }
+            });
+        }
+        return future;
+    }
+
+    private void handleReply(int sequence, Object reply) {
+        if (sequence == CommandLink.UNSEQUENCED) {
+            sequence = oldestOutstanding();
+            if (sequence == CommandLink.UNSEQUENCED) {
+                strayReplyCount.incrementAndGet();
+                return;
+            }
+        } else if (!sequencedReplies) {
+            sequencedReplies = true;
+            retireTimedOut();
+        }
+        CompletableFuture<Object> future = inFlight.get(sequence & mask);
+        // Read before retire frees the slot for the next command
+        long sentNanos = inFlightSentNanos[sequence & mask];
+        // A late reply to a timed-out command must not complete the command now using its slot
+        if (future == null || inFlightSequences[sequence & mask] != sequence || !retire(sequence, future)) {
+            strayReplyCount.incrementAndGet();
+            return;
+        }
+        // The command timed out and kept its place only so this reply would not shift the others
+        if (!future.complete(reply)) {
+            strayReplyCount.incrementAndGet();
+            return;
+        }
+        ackLatency.recordSince(sentNanos);
+        completedCount.incrementAndGet();
+    }
+
+    /**
+     * Frees the slots of commands that timed out while waiting for their late replies, once the
+     * link turns out to number its replies and those can no longer be mistaken for others.
+     */
+    private void retireTimedOut() {
+        for (int i = 0; i < window; i++) {
+            CompletableFuture<Object> future = inFlight.get(i);
+            if (future != null && future.isDone()) {
+                retire(inFlightSequences[i], future);
+            }
+        }
+    }
+
+    /**
+     * Frees the window slot held by {@code future}. Only the caller that actually frees it gets
+     * {@code true}, so the permit is released exactly once whether the reply or the timeout wins.
+     */
+    private boolean retire(int sequence, CompletableFuture<Object> future) {
+        if (inFlight.compareAndSet(sequence & mask, future, null)) {
+            untrackOutstanding(sequence);
+            permits.release();
+            return true;
+        }
+        return false;
+    }
+
+    private void trackOutstanding(int sequence) {
+        synchronized (outstandingLock) {
+            outstandingSequences[(outstandingHead + outstandingCount) & mask] = sequence;
+            outstandingCount++;
+        }
+    }
+
+    private int oldestOutstanding() {
+        synchronized (outstandingLock) {
+            return outstandingCount == 0 ? CommandLink.UNSEQUENCED : outstandingSequences[outstandingHead];
+        }
+    }
+
+    /**
+     * Removes {@code sequence} from the outstanding FIFO. Replies normally retire the head, so the
+     * shift only runs after a send failure or a timeout in the middle of the window.
+     */
+    private void untrackOutstanding(int sequence) {
+        synchronized (outstandingLock) {
+            for (int i = 0; i < outstandingCount; i++) {
+                if (outstandingSequences[(outstandingHead + i) & mask] != sequence) {
+                    continue;
+                }
+                if (i == 0) {
+                    outstandingHead = (outstandingHead + 1) & mask;
+                } else {
+                    for (int j = i + 1; j < outstandingCount; j++) {
+                        outstandingSequences[(outstandingHead + j - 1) & mask] =
+                                outstandingSequences[(outstandingHead + j) & mask];
+                    }
+                }
+                outstandingCount--;
+                return;
+            }
+        }
+    }
+
+    private void failOutstanding(IOException cause) {
+        for (int i = 0; i < window; i++) {
+            CompletableFuture<Object> future = inFlight.getAndSet(i, null);
+            if (future != null) {
+                // Read before the permit lets a new command reuse the slot
+                untrackOutstanding(inFlightSequences[i]);
+                permits.release();
+                // A command that already timed out was counted then
+                if (future.completeExceptionally(cause)) {
+                    failedCount.incrementAndGet();
+                    failedTotal.increment();
+                }
+            }
+        }
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getInFlightCount() {
+        return window - permits.availablePermits();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getStrayReplyCount() {
+        return strayReplyCount.get();
+    }
+}
+
+/**
+ * Base for devices that talk over a {@link CommandLink}. Without a link the device behaves like
+ * the old stubs: never connected, and commands return {@code null}.
+ */
+public abstract class PipelinedDeviceInterface implements DeviceInterface {
+    public static final int DEFAULT_WINDOW = 8;
+    public static final Duration DEFAULT_REPLY_TIMEOUT = Duration.ofSeconds(2);
+
+    private final CommandPipeline pipeline;
+
+    protected PipelinedDeviceInterface() {
+        this.pipeline = null;
+    }
+
+    protected PipelinedDeviceInterface(CommandLink link, int window) {
+        this.pipeline = new CommandPipeline(link, window, DEFAULT_REPLY_TIMEOUT);
+    }
+
+    @Override
+    public void connect() {
+        if (pipeline == null) {
+            return;
+        }
+        try {
+            pipeline.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to connect: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return pipeline != null && pipeline.isOpen();
+    }
+
+    @Override
+    public Object executeCommand(Object command) {
+        if (pipeline == null) {
+            return null;
+        }
+        return submitCommand(command).join();
+    }
+
+    @Override
+    public CompletableFuture<Object> submitCommand(Object command) {
+        if (pipeline == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return pipeline.submit(command);
+    }
+
+    public CommandPipeline getPipeline() {
+        return pipeline;
+    }
+}
+
+/**
+ * In-JVM stand-in for a serial device: answers every command, in order and without a sequence
+ * number, after a fixed delay, the same way the Arduino firmware's line protocol does.
+ */
+public class LoopbackCommandLink implements CommandLink {
+    private final Function<Object, Object> responder;
+    private final long replyDelayNanos;
+    private final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+    private volatile Thread replyThread;
+
+    public LoopbackCommandLink(Function<Object, Object> responder, Duration replyDelay) {
+        this.responder = responder;
+        this.replyDelayNanos = replyDelay.toNanos();
+    }
+
+    @Override
+    public void open(ReplyHandler replyHandler) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Object command = received.take();
+                    if (replyDelayNanos > 0L) {
+                        TimeUnit.NANOSECONDS.sleep(replyDelayNanos);
+                    }
+                    replyHandler.onReply(UNSEQUENCED, responder.apply(command));
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }, "loopback-command-link");
+        thread.setDaemon(true);
+        replyThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void send(int sequence, Object command) throws IOException {
+        if (replyThread == null) {
+            throw new IOException("Loopback link is not open");
+        }
+        received.add(command);
+    }
+
+    @Override
+    public void close() {
+        Thread thread = replyThread;
+        replyThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        received.clear();
+    }
+}
+
+class CommandPipelineTest {
+    private CommandPipeline pipeline;
+
+    @Before
+    public void setup() throws IOException {
+        pipeline = new CommandPipeline(new LoopbackCommandLink(command -> "ack:" + command, Duration.ofMillis(1)),
+                4, Duration.ofSeconds(5));
+        pipeline.open();
+    }
+
+    @After
+    public void teardown() {
+        pipeline.close();
+    }
+
+    @Test
+    public void testRepliesMatchCommandsInOrder() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[32];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = pipeline.submit(i);
+            assertTrue(pipeline.getInFlightCount() <= pipeline.getWindow());
+        }
+        for (int i = 0; i < futures.length; i++) {
+            assertEquals("ack:" + i, futures[i].join());
+        }
+        assertEquals(32L, pipeline.getCompletedCount());
+        assertEquals(0, pipeline.getInFlightCount());
+    }
+
+    @Test
+    public void testCloseFailsOutstandingCommands() {
+        CommandPipeline slow = new CommandPipeline(new LoopbackCommandLink(command -> command, Duration.ofSeconds(10)),
+                2, null);
+        try {
+            slow.open();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        CompletableFuture<Object> future = slow.submit("stop");
+        slow.close();
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, slow.getInFlightCount());
+    }
+
+    @Test
+    public void testFailedSendDoesNotShiftUnsequencedReplies() throws IOException {
+        ScriptedCommandLink link = new ScriptedCommandLink();
+        CommandPipeline scripted = new CommandPipeline(link, 4, null);
+        scripted.open();
+        CompletableFuture<Object> first = scripted.submit("a");
+        link.failSends = true;
+        CompletableFuture<Object> failed = scripted.submit("b");
+        link.failSends = false;
+        CompletableFuture<Object> third = scripted.submit("c");
+
+        link.reply("A");
+        link.reply("C");
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals("A", first.join());
+        assertEquals("C", third.join());
+        assertEquals(0L, scripted.getStrayReplyCount());
+    }
+
+    @Test
+    public void testLateReplyToTimedOutCommandIsNotGivenToTheNext() throws Exception {
+        ScriptedCommandLink link = new ScriptedCommandLink();
+        CommandPipeline scripted = new CommandPipeline(link, 4, Duration.ofMillis(20));
+        scripted.open();
+        CompletableFuture<Object> timedOut = scripted.submit("a");
+        while (scripted.getFailedCount() == 0L) {
+            Thread.sleep(5);
+        }
+        assertTrue(timedOut.isCompletedExceptionally());
+
+        CompletableFuture<Object> next = scripted.submit("b");
+        link.reply("A, late");
+        assertFalse(next.isDone());
+        assertEquals(1L, scripted.getStrayReplyCount());
+        link.reply("B");
+        assertEquals("B", next.join());
+        assertEquals(0, scripted.getInFlightCount());
+    }
+
+    @Test
+    public void testFullWindowOfTimedOutCommandsFailsNewSubmits() throws Exception {
+        ScriptedCommandLink link = new ScriptedCommandLink();
+        CommandPipeline scripted = new CommandPipeline(link, 1, Duration.ofMillis(20));
+        scripted.open();
+        CompletableFuture<Object> silent = scripted.submit("a");
+        // The only slot stays with "a" until its reply turns up
+        CompletableFuture<Object> blocked = scripted.submit("b");
+        assertTrue(blocked.isCompletedExceptionally());
+        while (!silent.isDone()) {
+            Thread.sleep(5);
+        }
+
+        link.reply("A, late");
+        CompletableFuture<Object> next = scripted.submit("c");
+        link.reply("C");
+        assertEquals("C", next.join());
+    }
+
+    @Test
+    public void testLinkFailureResetsTheReplyOrder() throws IOException {
+        ScriptedCommandLink link = new ScriptedCommandLink();
+        CommandPipeline scripted = new CommandPipeline(link, 4, null);
+        scripted.open();
+        CompletableFuture<Object> lost = scripted.submit("a");
+        link.handler.onFailure(new IOException("unplugged"));
+        assertTrue(lost.isCompletedExceptionally());
+
+        link.reply("late");
+        assertEquals(1L, scripted.getStrayReplyCount());
+        scripted.open();
+        CompletableFuture<Object> next = scripted.submit("b");
+        link.reply("B");
+        assertEquals("B", next.join());
+    }
+
+    /**
+     * Unsequenced link whose replies and send failures are driven by the test thread.
+     */
+    private static class ScriptedCommandLink implements CommandLink {
+        volatile ReplyHandler handler;
+        volatile boolean failSends;
+
+        @Override
+        public void open(ReplyHandler replyHandler) {
+            handler = replyHandler;
+        }
+
+        @Override
+        public void send(int sequence, Object command) throws IOException {
+            assertTrue(sequence >= 0);
+            if (failSends) {
+                throw new IOException("Send failed");
+            }
+        }
+
+        void reply(Object reply) {
+            handler.onReply(UNSEQUENCED, reply);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,486 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.bytetech.robotics.metrics.Counter;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One cycle of a periodic control task. {@code deadlineNanos} is the cycle's scheduled start on
+ * the {@link System#nanoTime()} clock, not the time it actually started, so a PID loop can use
+ * the exact period as its time step.
+ */
+public interface ControlTask {
+    void run(long deadlineNanos) throws Exception;
+}
+
+public interface OverrunListener {
+    /**
+     * Called on the loop thread after {@code task} finished past its next deadline.
+     * {@code missedCycles} were skipped to get back on schedule. Keep it short and allocation
+     * free; the metrics registry already counts every overrun.
+     */
+    void onOverrun(ControlLoopScheduler.Task task, long overrunNanos, long missedCycles);
+}
+
+/**
+ * Runs control tasks at fixed rates on one dedicated thread. Every task keeps a deadline on a
+ * fixed grid from {@link #start()}, so periods do not drift the way {@code Thread.sleep} loops do,
+ * and the task with the earliest deadline runs next; on ties the one registered first wins, so
+ * register the fastest loops first. The thread parks until {@code spinNanos} before a deadline
+ * and spins the rest of the way, trading a little CPU for microsecond wake-up jitter.
+ *
+ * <p>A cycle that ends after its next deadline is an overrun: the cycles it ran into are skipped
+ * rather than run back to back, and the overrun is counted in {@code control.<task>.overruns}.
+ * Start lateness and execution time go into the {@code control.<task>.lateness} and
+ * {@code control.<task>.exec} histograms. The loop itself allocates nothing.
+ *
+ * <pre>
+ * ControlLoopScheduler controlLoop = new ControlLoopScheduler();
+ * controlLoop.setCpuAffinity(3); // a core kept free with isolcpus=3
+ * pollingEngine.schedule(controlLoop);
+ * controlLoop.scheduleAtRate("pid", 1000, deadline -&gt; pid.update(deadline));
+ * motorSetpoints.schedule(controlLoop, 100);
+ * controlLoop.start();
+ * </pre>
+ */
+public class ControlLoopScheduler implements Runnable {
+    public static final long DEFAULT_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    // How long an empty loop waits before looking for newly scheduled tasks
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Logger logger = Logger.getLogger(ControlLoopScheduler.class.getName());
+
+    /**
+     * A scheduled task and its run statistics.
+     */
+    public static final class Task {
+        private final String name;
+        private final long periodNanos;
+        private final ControlTask task;
+        private final LatencyHistogram latenessHistogram;
+        private final LatencyHistogram execHistogram;
+        private final Counter overrunCounter;
+        // Only touched on the loop thread once the task is scheduled
+        private long nextDeadlineNanos;
+
+        private final AtomicLong runCount = new AtomicLong();
+        private final AtomicLong overrunCount = new AtomicLong();
+        private final AtomicLong missedCycleCount = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+        private final AtomicLong maxExecNanos = new AtomicLong();
+
+        Task(String name, long periodNanos, ControlTask task, MetricsRegistry metrics) {
+            this.name = name;
+            this.periodNanos = periodNanos;
+            this.task = task;
+            this.latenessHistogram = metrics.histogram("control." + name + ".lateness");
+            this.execHistogram = metrics.histogram("control." + name + ".exec");
+            this.overrunCounter = metrics.counter("control." + name + ".overruns");
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getPeriodNanos() {
+            return periodNanos;
+        }
+
+        public long getRunCount() {
+            return runCount.get();
+        }
+
+        public long getOverrunCount() {
+            return overrunCount.get();
+        }
+
+        public long getMissedCycleCount() {
+            return missedCycleCount.get();
+        }
+
+        public long getFailureCount() {
+            return failureCount.get();
+        }
+
+        public long getMaxExecNanos() {
+            return maxExecNanos.get();
+        }
+
+        public LatencyHistogram getLatenessHistogram() {
+            return latenessHistogram;
+        }
+
+        @Override
+        public String toString() {
+            return "Task[" + name + ", periodNanos=" + periodNanos + ", runs=" + getRunCount() + ", overruns="
+                    + getOverrunCount() + ", missed=" + getMissedCycleCount() + ", failures=" + getFailureCount()
+                    + ", maxExecNanos=" + getMaxExecNanos() + "]";
+        }
+    }
+
+    private final String name;
+    private final long spinNanos;
+    private final MetricsRegistry metrics;
+
+    // Copy-on-write so the loop can iterate without locking or allocating an iterator
+    private volatile Task[] tasks = new Task[0];
+    private volatile OverrunListener overrunListener;
+    private volatile int cpuAffinity = -1;
+    private volatile boolean pinned;
+
+    private volatile boolean running;
+    private Thread loopThread;
+    private final AtomicLong cycleCount = new AtomicLong();
+
+    public ControlLoopScheduler() {
+        this("control-loop", DEFAULT_SPIN_NANOS, MetricsRegistry.getDefault());
+    }
+
+    public ControlLoopScheduler(String name, long spinNanos, MetricsRegistry metrics) {
+        if (spinNanos < 0L) {
+            throw new IllegalArgumentException("Spin time must not be negative: " + spinNanos);
+        }
+        this.name = name;
+        this.spinNanos = spinNanos;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs {@code task} every {@code periodNanos}. Tasks added while the loop is running first
+     * run straight away and then on their own grid from there.
+     */
+    public synchronized Task schedule(String taskName, long periodNanos, ControlTask task) {
+        if (periodNanos <= 0L) {
+            throw new IllegalArgumentException("Period must be positive: " + periodNanos);
+        }
+        for (Task existing : tasks) {
+            if (existing.name.equals(taskName)) {
+                throw new IllegalArgumentException("Task already scheduled: " + taskName);
+            }
+        }
+        Task scheduled = new Task(taskName, periodNanos, task, metrics);
+        scheduled.nextDeadlineNanos = System.nanoTime();
+        Task[] updated = Arrays.copyOf(tasks, tasks.length + 1);
+        updated[updated.length - 1] = scheduled;
+        tasks = updated;
+        LockSupport.unpark(loopThread);
+        return scheduled;
+    }
+
+    /**
+     * Runs {@code task} {@code rateHz} times a second, e.g. 1000 for a 1 kHz loop.
+     */
+    public Task scheduleAtRate(String taskName, double rateHz, ControlTask task) {
+        if (!(rateHz > 0.0)) {
+            throw new IllegalArgumentException("Rate must be positive: " + rateHz);
+        }
+        return schedule(taskName, Math.round(TimeUnit.SECONDS.toNanos(1) / rateHz), task);
+    }
+
+    /**
+     * Removes {@code task}. A cycle that is already running is allowed to finish.
+     */
+    public synchronized void cancel(Task task) {
+        Task[] current = tasks;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == task) {
+                Task[] updated = new Task[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                tasks = updated;
+                return;
+            }
+        }
+    }
+
+    public void setOverrunListener(OverrunListener overrunListener) {
+        this.overrunListener = overrunListener;
+    }
+
+    /**
+     * Pins the loop thread to {@code cpu} when it starts, ideally a core the kernel keeps other
+     * work off ({@code isolcpus=} or a cpuset). Pass -1 to leave it unpinned. Pinning needs Linux
+     * and {@code taskset}; without them the loop runs unpinned and logs a warning.
+     */
+    public void setCpuAffinity(int cpu) {
+        if (cpu < -1) {
+            throw new IllegalArgumentException("CPU must be -1 or a core number: " + cpu);
+        }
+        this.cpuAffinity = cpu;
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        // Put every task on a common grid so harmonic rates line up
+        long now = System.nanoTime();
+        for (Task task : tasks) {
+            task.nextDeadlineNanos = now;
+        }
+        running = true;
+        loopThread = new Thread(this, name);
+        loopThread.setDaemon(true);
+        loopThread.setPriority(Thread.MAX_PRIORITY);
+        loopThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = loopThread;
+            loopThread = null;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread.join();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        int cpu = cpuAffinity;
+        if (cpu >= 0) {
+            pinned = pinCurrentThread(cpu);
+        }
+        while (running) {
+            Task[] current = tasks;
+            Task next = null;
+            for (Task task : current) {
+                if (next == null || task.nextDeadlineNanos - next.nextDeadlineNanos < 0L) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            long deadline = next.nextDeadlineNanos;
+            if (!awaitDeadline(deadline, current)) {
+                continue;
+            }
+            runCycle(next, deadline);
+        }
+    }
+
+    /**
+     * Parks, then spins, until {@code deadline}. Returns {@code false} if the loop was stopped or
+     * the task set changed meanwhile, so the caller picks again.
+     */
+    private boolean awaitDeadline(long deadline, Task[] current) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0L) {
+            if (!running || tasks != current) {
+                return false;
+            }
+            if (remaining > spinNanos) {
+                LockSupport.parkNanos(remaining - spinNanos);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        return running;
+    }
+
+    private void runCycle(Task task, long deadline) {
+        long start = System.nanoTime();
+        task.latenessHistogram.record(start - deadline);
+        try {
+            task.task.run(deadline);
+        } catch (Exception e) {
+            // Counting is enough on repeat failures; logging every cycle would swamp the loop
+            if (task.failureCount.getAndIncrement() == 0L) {
+                logger.log(Level.WARNING, "Control task " + task.name + " failed: " + e.getMessage(), e);
+            }
+        }
+        long end = System.nanoTime();
+        long exec = end - start;
+        task.execHistogram.record(exec);
+        long max;
+        while (exec > (max = task.maxExecNanos.get()) && !task.maxExecNanos.compareAndSet(max, exec)) {
+            // Retry until the max holds the larger value
+        }
+        task.runCount.incrementAndGet();
+        cycleCount.incrementAndGet();
+
+        long nextDeadline = deadline + task.periodNanos;
+        long overrun = end - nextDeadline;
+        if (overrun > 0L) {
+            // Stay on the grid: skip the cycles this one ran into instead of bursting to catch up
+            long missed = overrun / task.periodNanos + 1;
+            nextDeadline += missed * task.periodNanos;
+            task.overrunCount.incrementAndGet();
+            task.missedCycleCount.addAndGet(missed);
+            task.overrunCounter.increment();
+            OverrunListener listener = overrunListener;
+            if (listener != null) {
+                listener.onOverrun(task, overrun, missed);
+            }
+        }
+        task.nextDeadlineNanos = nextDeadline;
+    }
+
+    /**
+     * The calling thread's kernel thread id, read from {@code /proc/thread-self}, or -1 where
+     * there is no such link.
+     */
+    static long nativeThreadId() {
+        try {
+            // Links to "<pid>/task/<tid>"
+            Path link = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+            return Long.parseLong(link.getFileName().toString());
+        } catch (IOException | UnsupportedOperationException | NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Restricts the calling thread to {@code cpu} with {@code taskset}. Returns whether it worked.
+     */
+    static boolean pinCurrentThread(int cpu) {
+        long tid = nativeThreadId();
+        if (tid < 0L) {
+            logger.warning("Cannot pin control loop to CPU " + cpu + ": no /proc/thread-self");
+            return false;
+        }
+        try {
+            Process taskset = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu), Long.toString(tid))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (taskset.waitFor(5, TimeUnit.SECONDS) && taskset.exitValue() == 0) {
+                return true;
+            }
+            taskset.destroy();
+            logger.warning("Cannot pin control loop to CPU " + cpu + ": taskset failed");
+        } catch (IOException e) {
+            logger.warning("Cannot pin control loop to CPU " + cpu + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    public Task[] getTasks() {
+        return tasks.clone();
+    }
+
+    public long getCycleCount() {
+        return cycleCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ControlLoopScheduler[" + name + ", cycles=" + getCycleCount() + ", pinned=" + isPinned()
+                + ", tasks=" + Arrays.toString(tasks) + "]";
+    }
+}
+
+class ControlLoopSchedulerTest {
+    private static ControlLoopScheduler newScheduler() {
+        return new ControlLoopScheduler("test-loop", ControlLoopScheduler.DEFAULT_SPIN_NANOS, new MetricsRegistry());
+    }
+
+    @Test
+    public void testTasksRunAtTheirRatesOnAFixedGrid() throws Exception {
+        ControlLoopScheduler scheduler = newScheduler();
+        long[] firstDeadline = {-1L};
+        AtomicLong offGrid = new AtomicLong();
+        ControlLoopScheduler.Task fast = scheduler.scheduleAtRate("fast", 1000, deadline -> {
+            if (firstDeadline[0] < 0L) {
+                firstDeadline[0] = deadline;
+            } else if ((deadline - firstDeadline[0]) % 1_000_000L != 0L) {
+                offGrid.incrementAndGet();
+            }
+        });
+        ControlLoopScheduler.Task slow = scheduler.scheduleAtRate("slow", 100, deadline -> { });
+        long started = System.nanoTime();
+        scheduler.start();
+        Thread.sleep(300);
+        scheduler.stop();
+        // Measured rather than assumed, since a loaded machine can oversleep or start the loop late
+        long elapsed = System.nanoTime() - started;
+
+        assertEquals(0, offGrid.get());
+        assertCyclesCover(fast, elapsed);
+        assertCyclesCover(slow, elapsed);
+    }
+
+    /**
+     * Every slot on the task's grid was either run or counted as missed: no more than the elapsed
+     * time holds, and no fewer than three quarters of it, allowing for a slow thread start.
+     */
+    private static void assertCyclesCover(ControlLoopScheduler.Task task, long elapsedNanos) {
+        long slots = elapsedNanos / task.getPeriodNanos();
+        long cycles = task.getRunCount() + task.getMissedCycleCount();
+        assertTrue(task.getName() + ": " + cycles + " cycles in " + slots + " slots",
+                cycles >= slots * 3 / 4 && cycles <= slots + 2);
+    }
+
+    @Test
+    public void testOverrunSkipsMissedCyclesAndReports() throws Exception {
+        ControlLoopScheduler scheduler = newScheduler();
+        AtomicLong reported = new AtomicLong();
+        scheduler.setOverrunListener((task, overrunNanos, missedCycles) -> reported.addAndGet(missedCycles));
+        AtomicLong runs = new AtomicLong();
+        ControlLoopScheduler.Task task = scheduler.scheduleAtRate("slowCycle", 1000, deadline -> {
+            if (runs.incrementAndGet() % 10 == 0) {
+                Thread.sleep(3);
+            }
+        });
+        scheduler.start();
+        Thread.sleep(200);
+        scheduler.stop();
+
+        assertTrue(task.getOverrunCount() > 0);
+        assertEquals(task.getMissedCycleCount(), reported.get());
+        // Every 3 ms stall runs into at least two of the following 1 ms slots
+        assertTrue(task.getMissedCycleCount() >= 2 * task.getOverrunCount());
+    }
+
+    @Test
+    public void testLoopDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        ControlLoopScheduler scheduler = newScheduler();
+        AtomicLong loopThreadId = new AtomicLong();
+        long[] sink = new long[1];
+        scheduler.scheduleAtRate("fast", 10_000, deadline -> loopThreadId.set(Thread.currentThread().getId()));
+        scheduler.scheduleAtRate("slow", 1000, deadline -> sink[0] += deadline);
+        scheduler.start();
+        try {
+            Thread.sleep(100);
+            long before = allocations.getThreadAllocatedBytes(loopThreadId.get());
+            Thread.sleep(200);
+            long allocated = allocations.getThreadAllocatedBytes(loopThreadId.get()) - before;
+            assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        } finally {
+            scheduler.stop();
+        }
+    }
+}
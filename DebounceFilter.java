@@ -0,0 +1,172 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Per-button debounce stage that runs inside the scan loop on bitmask snapshots. A button only
+ * changes state once its raw reading has disagreed with the stable state for a whole time window
+ * ({@link Mode#TIME_WINDOW}) or for N consecutive samples ({@link Mode#INTEGRATOR}). Readings that
+ * flip back before that are suppressed and counted as glitches.
+ *
+ * <p>{@link #filter(long, long)} must only be called from the scanning thread.
+ */
+public class DebounceFilter {
+    public enum Mode {
+        TIME_WINDOW,
+        INTEGRATOR
+    }
+
+    private final Mode mode;
+
+    // Indexed by button id; only the entry matching the mode is used
+    private final long[] windowNanos = new long[Long.SIZE];
+    private final int[] requiredSamples = new int[Long.SIZE];
+
+    private final long[] pendingSince = new long[Long.SIZE];
+    private final int[] sampleCounts = new int[Long.SIZE];
+    private final AtomicLongArray glitchCounts = new AtomicLongArray(Long.SIZE);
+
+    private long stableStates;
+    private long pendingMask;
+
+    private DebounceFilter(Mode mode) {
+        this.mode = mode;
+    }
+
+    public static DebounceFilter timeWindow(long windowNanos) {
+        DebounceFilter filter = new DebounceFilter(Mode.TIME_WINDOW);
+        Arrays.fill(filter.windowNanos, windowNanos);
+        return filter;
+    }
+
+    public static DebounceFilter integrator(int requiredSamples) {
+        if (requiredSamples < 1) {
+            throw new IllegalArgumentException("At least one sample is required: " + requiredSamples);
+        }
+        DebounceFilter filter = new DebounceFilter(Mode.INTEGRATOR);
+        Arrays.fill(filter.requiredSamples, requiredSamples);
+        return filter;
+    }
+
+    public DebounceFilter setWindowNanos(int buttonId, long windowNanos) {
+        this.windowNanos[buttonId] = windowNanos;
+        return this;
+    }
+
+    public DebounceFilter setRequiredSamples(int buttonId, int requiredSamples) {
+        if (requiredSamples < 1) {
+            throw new IllegalArgumentException("At least one sample is required: " + requiredSamples);
+        }
+        this.requiredSamples[buttonId] = requiredSamples;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Feeds one raw snapshot and returns the debounced one.
+     */
+    public long filter(long rawStates, long timestampNanos) {
+        long differing = rawStates ^ stableStates;
+
+        // Pending buttons that went back to their stable state were bounce
+        long glitches = pendingMask & ~differing;
+        if (glitches != 0L) {
+            pendingMask &= ~glitches;
+            while (glitches != 0L) {
+                glitchCounts.incrementAndGet(Long.numberOfTrailingZeros(glitches));
+                glitches &= glitches - 1;
+            }
+        }
+        if (differing == 0L) {
+            return stableStates;
+        }
+
+        long newlyPending = differing & ~pendingMask;
+        pendingMask |= newlyPending;
+
+        long settled = 0L;
+        long remaining = pendingMask;
+        while (remaining != 0L) {
+            int buttonId = Long.numberOfTrailingZeros(remaining);
+            long bit = 1L << buttonId;
+            remaining &= remaining - 1;
+
+            if ((newlyPending & bit) != 0L) {
+                pendingSince[buttonId] = timestampNanos;
+                sampleCounts[buttonId] = 1;
+            } else {
+                sampleCounts[buttonId]++;
+            }
+            boolean stable = mode == Mode.TIME_WINDOW
+                    ? timestampNanos - pendingSince[buttonId] >= windowNanos[buttonId]
+                    : sampleCounts[buttonId] >= requiredSamples[buttonId];
+            if (stable) {
+                settled |= bit;
+            }
+        }
+
+        stableStates ^= settled;
+        pendingMask &= ~settled;
+        return stableStates;
+    }
+
+    public long getStableStates() {
+        return stableStates;
+    }
+
+    /**
+     * True while at least one button is waiting for its reading to settle.
+     */
+    public boolean isSettling() {
+        return pendingMask != 0L;
+    }
+
+    public long getGlitchCount(int buttonId) {
+        return glitchCounts.get(buttonId);
+    }
+
+    public long getTotalGlitchCount() {
+        long total = 0L;
+        for (int i = 0; i < Long.SIZE; i++) {
+            total += glitchCounts.get(i);
+        }
+        return total;
+    }
+
+    public void resetGlitchCounts() {
+        for (int i = 0; i < Long.SIZE; i++) {
+            glitchCounts.set(i, 0L);
+        }
+    }
+}
+
+class DebounceFilterTest {
+
+    @Test
+    public void testIntegratorNeedsConsecutiveSamples() {
+        DebounceFilter filter = DebounceFilter.integrator(3);
+        assertEquals(0L, filter.filter(1L, 0L));
+        assertEquals(0L, filter.filter(0L, 1L));
+        assertEquals(1L, filter.getGlitchCount(0));
+
+        assertEquals(0L, filter.filter(1L, 2L));
+        assertEquals(0L, filter.filter(1L, 3L));
+        assertEquals(1L, filter.filter(1L, 4L));
+        assertEquals(1L, filter.getTotalGlitchCount());
+    }
+
+    @Test
+    public void testTimeWindowPerButton() {
+        DebounceFilter filter = DebounceFilter.timeWindow(5_000_000L).setWindowNanos(4, 0L);
+        long raw = (1L << 2) | (1L << 4);
+        assertEquals(1L << 4, filter.filter(raw, 0L));
+        assertEquals(1L << 4, filter.filter(raw, 4_000_000L));
+        assertEquals(raw, filter.filter(raw, 5_000_000L));
+        assertEquals(0L, filter.getTotalGlitchCount());
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A {@link GPIOPinAdapter} that is fed by edge events instead of being polled. Reads are served
+ * from the last known state word and never touch the hardware, and every edge is also queued with
+ * its timestamp so a scan engine can replay short pulses that a state snapshot would miss.
+ *
+ * <p>Edges come in two ways. On hardware, push them in through {@link #onEdge(int, boolean)}, for
+ * example from a {@link PinStateListener} on a {@link PinRegistry} input. Alternatively, a reader
+ * thread per line can block on a channel carrying Linux {@code gpioevent_data} records. That
+ * channel can be a pipe or FIFO, as in the tests, or one handed over by native code holding the
+ * line-event fd; that fd only comes from the {@code GPIO_GET_LINEEVENT_IOCTL} ioctl and cannot be
+ * opened by path. {@link #close()} stops every reader and closes its channel.
+ */
+public class EdgeTriggeredGPIOAdapter implements GPIOPinAdapter, AutoCloseable {
+    // struct gpioevent_data { __u64 timestamp; __u32 id; } padded to 16 bytes
+    static final int EVENT_RECORD_SIZE = 16;
+    static final int GPIOEVENT_EVENT_RISING_EDGE = 0x01;
+    static final int GPIOEVENT_EVENT_FALLING_EDGE = 0x02;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static final class LineWatch {
+        final ReadableByteChannel channel;
+        final Thread reader;
+
+        LineWatch(ReadableByteChannel channel, Thread reader) {
+            this.channel = channel;
+            this.reader = reader;
+        }
+    }
+
+    private final GPIOPinAdapter delegate;
+    private final AtomicLong pinStates = new AtomicLong();
+    private final AtomicLong edgeCount = new AtomicLong();
+    private final AtomicLong droppedEdgeCount = new AtomicLong();
+    private final Map<Integer, LineWatch> watches = new ConcurrentHashMap<>();
+    private volatile Thread waiter;
+
+    // Edge queue: the state word just after each edge and when it happened, guarded by this
+    private final long[] queuedStates;
+    private final long[] queuedTimestamps;
+    private long queueHead;
+    private long queueTail;
+
+    public EdgeTriggeredGPIOAdapter(GPIOPinAdapter delegate) {
+        this(delegate, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public EdgeTriggeredGPIOAdapter(GPIOPinAdapter delegate, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.delegate = delegate;
+        this.queuedStates = new long[queueCapacity];
+        this.queuedTimestamps = new long[queueCapacity];
+    }
+
+    /**
+     * Starts watching {@code pinNumber} through a FIFO or file of {@code gpioevent_data} records
+     * at {@code eventFile}.
+     */
+    public Thread watchEventFile(int pinNumber, Path eventFile) throws IOException {
+        return watchLine(pinNumber, FileChannel.open(eventFile, StandardOpenOption.READ));
+    }
+
+    /**
+     * Starts watching {@code pinNumber} through {@code events}. The line's current level is read
+     * once from the underlying adapter so the state word starts out correct. The channel is
+     * closed by {@link #unwatchLine(int)} or {@link #close()}.
+     */
+    public Thread watchLine(int pinNumber, ReadableByteChannel events) {
+        if (watches.containsKey(pinNumber)) {
+            throw new IllegalStateException("Pin " + pinNumber + " is already watched");
+        }
+        onEdge(pinNumber, delegate.readPinState(pinNumber));
+        Thread reader = new Thread(() -> readEvents(pinNumber, events), "gpio-edge-" + pinNumber);
+        reader.setDaemon(true);
+        watches.put(pinNumber, new LineWatch(events, reader));
+        reader.start();
+        return reader;
+    }
+
+    /**
+     * Stops the reader for {@code pinNumber} and closes its channel.
+     */
+    public void unwatchLine(int pinNumber) throws InterruptedException {
+        LineWatch watch = watches.remove(pinNumber);
+        if (watch == null) {
+            return;
+        }
+        try {
+            // Closing an interruptible channel wakes a reader blocked in read()
+            watch.channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close event channel for pin " + pinNumber + ": " + e.getMessage());
+        }
+        watch.reader.interrupt();
+        watch.reader.join();
+    }
+
+    /**
+     * Stops every reader and closes its channel.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        for (Integer pinNumber : watches.keySet()) {
+            unwatchLine(pinNumber);
+        }
+    }
+
+    private void readEvents(int pinNumber, ReadableByteChannel events) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(EVENT_RECORD_SIZE * 64).order(ByteOrder.LITTLE_ENDIAN);
+        try (ReadableByteChannel channel = events) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.remaining() >= EVENT_RECORD_SIZE) {
+                    int position = buffer.position();
+                    int id = buffer.getInt(position + 8);
+                    if (id == GPIOEVENT_EVENT_RISING_EDGE) {
+                        onEdge(pinNumber, true);
+                    } else if (id == GPIOEVENT_EVENT_FALLING_EDGE) {
+                        onEdge(pinNumber, false);
+                    }
+                    buffer.position(position + EVENT_RECORD_SIZE);
+                }
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            if (watches.containsKey(pinNumber)) {
+                System.err.println("Stopped watching pin " + pinNumber + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records a new level for {@code pinNumber}, queues the edge and wakes the thread waiting in
+     * {@link #awaitChange(long, long)}. When the queue is full the edge is only counted as
+     * dropped; the state word still takes it.
+     */
+    public void onEdge(int pinNumber, boolean high) {
+        long timestampNanos = System.nanoTime();
+        long bit = 1L << pinNumber;
+        synchronized (this) {
+            long current = pinStates.get();
+            long updated = high ? current | bit : current & ~bit;
+            pinStates.set(updated);
+            if (queueTail - queueHead < queuedStates.length) {
+                int index = (int) (queueTail % queuedStates.length);
+                queuedStates[index] = updated;
+                queuedTimestamps[index] = timestampNanos;
+                queueTail++;
+            } else {
+                droppedEdgeCount.incrementAndGet();
+            }
+        }
+        edgeCount.incrementAndGet();
+        Thread waiting = waiter;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Takes the oldest queued edge: {@code edge[0]} receives the state word just after it and
+     * {@code edge[1]} its {@link System#nanoTime()} timestamp.
+     *
+     * @return {@code false} if no edge was queued
+     */
+    public synchronized boolean pollEdge(long[] edge) {
+        if (queueHead == queueTail) {
+            return false;
+        }
+        int index = (int) (queueHead % queuedStates.length);
+        edge[0] = queuedStates[index];
+        edge[1] = queuedTimestamps[index];
+        queueHead++;
+        return true;
+    }
+
+    /**
+     * Parks the calling thread until an edge arrives after {@code seenEdgeCount}, the timeout
+     * expires or the thread is unparked. Callers re-check their own state on return.
+     */
+    public void awaitChange(long seenEdgeCount, long timeoutNanos) {
+        waiter = Thread.currentThread();
+        try {
+            if (edgeCount.get() == seenEdgeCount) {
+                if (timeoutNanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, timeoutNanos);
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    public long getEdgeCount() {
+        return edgeCount.get();
+    }
+
+    public long getDroppedEdgeCount() {
+        return droppedEdgeCount.get();
+    }
+
+    @Override
+    public boolean readPinState(int pinNumber) {
+        return (pinStates.get() >>> pinNumber & 1L) != 0L;
+    }
+
+    @Override
+    public long readPinStates(long mask) {
+        return pinStates.get() & mask;
+    }
+
+    @Override
+    public long readBank() {
+        return pinStates.get();
+    }
+
+    @Override
+    public void writePinState(int pinNumber, boolean state) {
+        delegate.writePinState(pinNumber, state);
+    }
+
+    @Override
+    public String getPinName(int pinNumber) {
+        return delegate.getPinName(pinNumber);
+    }
+}
+
+/**
+ * Runs the button scan only when {@link EdgeTriggeredGPIOAdapter} reports an edge, instead of at
+ * a fixed rate. Each wake-up replays the queued edges in order, so a press and release that both
+ * land before the engine runs still reach the sources as two transitions. While a debounce filter
+ * is settling, or while a source that reads no GPIO pins is registered, it falls back to the
+ * polling period, then goes back to sleeping until the next edge.
+ */
+public class EdgeTriggeredButtonEngine extends ButtonPollingEngine {
+    private final EdgeTriggeredGPIOAdapter edgeAdapter;
+    private final long[] edge = new long[2];
+    private long scannedEdgeCount;
+
+    public EdgeTriggeredButtonEngine(EdgeTriggeredGPIOAdapter edgeAdapter, long settlePeriodNanos) {
+        super(edgeAdapter, settlePeriodNanos);
+        this.edgeAdapter = edgeAdapter;
+    }
+
+    @Override
+    public void scanOnce() {
+        // Taken before draining so an edge landing mid-scan still wakes the next wait
+        scannedEdgeCount = edgeAdapter.getEdgeCount();
+        boolean replayed = false;
+        while (edgeAdapter.pollEdge(edge)) {
+            scanSources(edge[0], edge[1]);
+            replayed = true;
+        }
+        // A settling tick has nothing queued, and after an overflow the last queued state is stale
+        if (!replayed || edge[0] != edgeAdapter.readBank()) {
+            super.scanOnce();
+        }
+    }
+
+    @Override
+    protected void awaitNextScan() {
+        if (!isRunning()) {
+            return;
+        }
+        // Sources without pins never raise an edge, so they are polled
+        boolean poll = isSettling() || hasPinlessSources();
+        edgeAdapter.awaitChange(scannedEdgeCount, poll ? getPeriodNanos() : Long.MAX_VALUE);
+    }
+}
+
+class EdgeTriggeredGPIOAdapterTest {
+    private static final int PIN = 5;
+
+    private Pipe pipe;
+    private EdgeTriggeredGPIOAdapter edgeAdapter;
+
+    @Before
+    public void setup() throws IOException {
+        // The pipe stands in for the kernel's line-event fd
+        pipe = Pipe.open();
+        edgeAdapter = new EdgeTriggeredGPIOAdapter(new IdleGPIOAdapter());
+        edgeAdapter.watchLine(PIN, pipe.source());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        edgeAdapter.close();
+    }
+
+    private void writeEvents(int... ids) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(ids.length * EdgeTriggeredGPIOAdapter.EVENT_RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int id : ids) {
+            records.putLong(System.nanoTime()).putInt(id).putInt(0);
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            pipe.sink().write(records);
+        }
+    }
+
+    private void awaitEdges(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (edgeAdapter.getEdgeCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testEdgesFromThePipeUpdateStateAndQueue() throws Exception {
+        // One edge comes from the initial level read at watch time
+        writeEvents(EdgeTriggeredGPIOAdapter.GPIOEVENT_EVENT_RISING_EDGE);
+        awaitEdges(2);
+        assertTrue(edgeAdapter.readPinState(PIN));
+
+        long[] edge = new long[2];
+        assertTrue(edgeAdapter.pollEdge(edge));
+        assertEquals(0L, edge[0]);
+        assertTrue(edgeAdapter.pollEdge(edge));
+        assertEquals(1L << PIN, edge[0]);
+        assertFalse(edgeAdapter.pollEdge(edge));
+    }
+
+    @Test
+    public void testPressAndReleaseBetweenScansAreBothSeen() throws Exception {
+        GPIOButtonSource buttons = new GPIOButtonSource(PIN);
+        buttons.initialize(edgeAdapter);
+        List<ButtonEvent.Edge> edges = new ArrayList<>();
+        buttons.addButtonEventListener(event -> edges.add(event.getEdge()));
+        EdgeTriggeredButtonEngine engine = new EdgeTriggeredButtonEngine(edgeAdapter, 1_000_000L);
+        engine.register(buttons);
+
+        writeEvents(EdgeTriggeredGPIOAdapter.GPIOEVENT_EVENT_RISING_EDGE,
+                EdgeTriggeredGPIOAdapter.GPIOEVENT_EVENT_FALLING_EDGE);
+        awaitEdges(3);
+        // The pin is low again by now; a state snapshot alone would show nothing
+        assertFalse(edgeAdapter.readPinState(PIN));
+        engine.scanOnce();
+
+        assertEquals(2, edges.size());
+        assertEquals(ButtonEvent.Edge.PRESS, edges.get(0));
+        assertEquals(ButtonEvent.Edge.RELEASE, edges.get(1));
+    }
+
+    @Test
+    public void testSourceWithoutPinsIsPolled() throws Exception {
+        EdgeTriggeredButtonEngine engine = new EdgeTriggeredButtonEngine(edgeAdapter, 1_000_000L);
+        engine.register(new ControllerButtonSource());
+        engine.start();
+        try {
+            // No edge ever arrives, so only the polling fallback keeps the scans coming
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (engine.getScanCount() < 10L && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(engine.getScanCount() >= 10L);
+        } finally {
+            engine.stop();
+        }
+    }
+
+    @Test
+    public void testCloseStopsReadersAndClosesChannels() throws Exception {
+        Thread reader = edgeAdapter.watchLine(PIN + 1, Pipe.open().source());
+        edgeAdapter.close();
+        assertFalse(reader.isAlive());
+        assertFalse(pipe.source().isOpen());
+    }
+
+    private static class IdleGPIOAdapter implements GPIOPinAdapter {
+        @Override
+        public boolean readPinState(int pinNumber) {
+            return false;
+        }
+
+        @Override
+        public void writePinState(int pinNumber, boolean state) {}
+
+        @Override
+        public String getPinName(int pinNumber) {
+            return "pin" + pinNumber;
+        }
+    }
+}
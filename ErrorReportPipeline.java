@@ -0,0 +1,541 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.sun.net.httpserver.HttpServer;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One invalid frame as reported to the debugging center.
+ */
+public final class ErrorReport {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long timestampMillis;
+    private final String source;
+    // Set for reports built from frame bytes; rawData is encoded from them on first use
+    private final byte[] rawBytes;
+    private final int rawBitLength;
+    private volatile String rawData;
+
+    public ErrorReport(long timestampMillis, String source, String rawData) {
+        this.timestampMillis = timestampMillis;
+        this.source = source;
+        this.rawBytes = null;
+        this.rawBitLength = 0;
+        this.rawData = rawData;
+    }
+
+    /**
+     * A report carrying {@code bitLength} raw frame bits, most significant first, from the bytes
+     * of {@code raw} starting at {@code offset}. The bytes are copied so the caller can reuse its
+     * buffer, and hex encoded only when the report is first sent, on the pipeline's thread rather
+     * than the decoder's.
+     */
+    public ErrorReport(long timestampMillis, String source, byte[] raw, int offset, int bitLength) {
+        this.timestampMillis = timestampMillis;
+        this.source = source;
+        this.rawBytes = Arrays.copyOfRange(raw, offset, offset + ((bitLength + 7) >>> 3));
+        this.rawBitLength = bitLength;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * The frame bytes this report was built from, or {@code null} for a report built from text.
+     * Not copied; callers must not modify them.
+     */
+    byte[] getRawBytes() {
+        return rawBytes;
+    }
+
+    int getRawBitLength() {
+        return rawBitLength;
+    }
+
+    public String getRawData() {
+        String data = rawData;
+        if (data == null) {
+            // Encoding twice in a race gives the same string, so no lock is needed
+            char[] hex = new char[rawBytes.length * 2];
+            for (int i = 0; i < rawBytes.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(rawBytes[i] >>> 4) & 0xF];
+                hex[2 * i + 1] = HEX_DIGITS[rawBytes[i] & 0xF];
+            }
+            data = new String(hex);
+            rawData = data;
+        }
+        return data;
+    }
+
+    void appendJson(StringBuilder json) {
+        json.append("{\"timestamp\": ").append(timestampMillis).append(", \"source\": \"");
+        appendEscaped(json, source);
+        json.append("\", \"raw_data\": \"");
+        appendEscaped(json, getRawData());
+        json.append("\"}");
+    }
+
+    private static void appendEscaped(StringBuilder json, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ErrorReport[" + source + " at " + timestampMillis + ": " + getRawData() + "]";
+    }
+}
+
+public interface ReportSender extends AutoCloseable {
+    /**
+     * Delivers a batch; throws if the collector did not accept it.
+     */
+    void send(List<ErrorReport> batch) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
+
+/**
+ * Posts batches as a JSON array over one pooled client, so connections (and the TLS session) are
+ * reused from one batch to the next.
+ */
+public class HttpReportSender implements ReportSender {
+    private final URI endpoint;
+    private final CloseableHttpClient httpClient;
+    private final StringBuilder json = new StringBuilder(4096);
+
+    public HttpReportSender(URI endpoint, int timeoutMillis) {
+        this.endpoint = endpoint;
+        PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(2);
+        connections.setDefaultMaxPerRoute(2);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+    }
+
+    @Override
+    public void send(List<ErrorReport> batch) throws IOException {
+        json.setLength(0);
+        json.append('[');
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            batch.get(i).appendJson(json);
+        }
+        json.append(']');
+
+        HttpPost postRequest = new HttpPost(endpoint);
+        postRequest.setEntity(new StringEntity(json.toString(), ContentType.APPLICATION_JSON));
+        postRequest.setHeader("Accept", "application/json");
+        try (CloseableHttpResponse response = httpClient.execute(postRequest)) {
+            // Reading the body to the end lets the connection go back to the pool
+            EntityUtils.consume(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                throw new IOException("Collector answered " + response.getStatusLine());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
+
+/**
+ * Takes error reports off the caller's thread. {@link #submit} only offers to a bounded queue and
+ * never blocks; when the queue is full the report is dropped and counted. A worker thread sends
+ * whatever has queued up, up to {@code maxBatchSize} at a time, and retries a failed batch with
+ * exponential backoff before giving up on it.
+ */
+public class ErrorReportPipeline {
+    private static final LatencyHistogram sendLatency = MetricsRegistry.getDefault().histogram("reports.send");
+
+    private final ReportSender sender;
+    private final BlockingQueue<ErrorReport> queue;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong spooledCount = new AtomicLong();
+
+    private volatile ReportSpool spool;
+    // Worker thread only: while the collector is known to be down, batches go straight to the spool
+    private long offlineUntilNanos = System.nanoTime();
+    private volatile boolean running;
+    private Thread workerThread;
+
+    public ErrorReportPipeline(ReportSender sender, int queueCapacity, int maxBatchSize, long maxBatchDelayNanos,
+            int maxAttempts, long initialBackoffNanos, long maxBackoffNanos) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is required: " + maxAttempts);
+        }
+        this.sender = sender;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = maxBatchDelayNanos;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoffNanos;
+        this.maxBackoffNanos = maxBackoffNanos;
+    }
+
+    /**
+     * Queues a report. Returns {@code false} if the queue was full and the report was dropped.
+     */
+    public boolean submit(ErrorReport report) {
+        submittedCount.incrementAndGet();
+        if (queue.offer(report)) {
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Keeps batches that could not be delivered in {@code spool} instead of discarding them, and
+     * replays them once the collector answers again.
+     */
+    public void setSpool(ReportSpool spool) {
+        this.spool = spool;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        workerThread = new Thread(this::run, "error-report-sender");
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    /**
+     * Sends what is already queued (one attempt per batch) and stops the worker.
+     */
+    public void stop() throws InterruptedException {
+        Thread worker;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            worker = workerThread;
+            workerThread = null;
+        }
+        worker.interrupt();
+        worker.join();
+        List<ErrorReport> batch = new ArrayList<>(maxBatchSize);
+        while (queue.drainTo(batch, maxBatchSize) > 0) {
+            sendWithRetry(batch, 1);
+            batch.clear();
+        }
+        ReportSpool spool = this.spool;
+        if (spool != null) {
+            spool.close();
+        }
+        try {
+            sender.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close error report sender: " + e.getMessage());
+        }
+    }
+
+    private void run() {
+        List<ErrorReport> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (running) {
+                ReportSpool spool = this.spool;
+                ErrorReport first = spool == null ? queue.take() : queue.poll(maxBackoffNanos, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    // Quiet period; a good time to see whether the collector is back
+                    if (!spool.isEmpty()) {
+                        replaySpool(spool);
+                    }
+                    continue;
+                }
+                batch.add(first);
+                // Give a burst a moment to fill the batch before sending
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0L) {
+                        break;
+                    }
+                    ErrorReport next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                sendWithRetry(batch, maxAttempts);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stopping; anything taken but not sent goes back for stop() to flush
+            for (ErrorReport report : batch) {
+                if (!queue.offer(report)) {
+                    droppedCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void sendWithRetry(List<ErrorReport> batch, int attempts) throws InterruptedException {
+        ReportSpool spool = this.spool;
+        if (spool != null && System.nanoTime() - offlineUntilNanos < 0L) {
+            spoolBatch(spool, batch);
+            return;
+        }
+        long backoff = initialBackoffNanos;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long start = System.nanoTime();
+                sender.send(batch);
+                sendLatency.recordSince(start);
+                sentCount.addAndGet(batch.size());
+                batchCount.incrementAndGet();
+                if (spool != null && !spool.isEmpty()) {
+                    replaySpool(spool);
+                }
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= attempts) {
+                    if (spool != null) {
+                        offlineUntilNanos = System.nanoTime() + maxBackoffNanos;
+                        spoolBatch(spool, batch);
+                        return;
+                    }
+                    failedCount.addAndGet(batch.size());
+                    System.err.println("Failed to send " + batch.size() + " error reports to debugging center: "
+                            + e.getMessage());
+                    return;
+                }
+                retryCount.incrementAndGet();
+                // Full jitter keeps a fleet of robots from retrying in step
+                TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+                backoff = Math.min(backoff * 2, maxBackoffNanos);
+            }
+        }
+    }
+
+    private void spoolBatch(ReportSpool spool, List<ErrorReport> batch) {
+        try {
+            spool.append(batch);
+            spooledCount.addAndGet(batch.size());
+        } catch (IOException | RuntimeException e) {
+            failedCount.addAndGet(batch.size());
+            System.err.println("Failed to spool " + batch.size() + " error reports: " + e.getMessage());
+        }
+    }
+
+    private void replaySpool(ReportSpool spool) {
+        try {
+            sentCount.addAndGet(spool.replay(sender, maxBatchSize));
+        } catch (IOException | RuntimeException e) {
+            offlineUntilNanos = System.nanoTime() + maxBackoffNanos;
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getSpooledCount() {
+        return spooledCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ErrorReportPipeline[submitted=" + getSubmittedCount() + ", dropped=" + getDroppedCount()
+                + ", sent=" + getSentCount() + ", failed=" + getFailedCount() + ", batches=" + getBatchCount()
+                + ", retries=" + getRetryCount() + ", spooled=" + getSpooledCount() + "]";
+    }
+}
+
+class ErrorReportPipelineTest {
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+    private volatile int status = 200;
+    private HttpServer collector;
+    private ErrorReportPipeline pipeline;
+
+    @Before
+    public void setUp() throws IOException {
+        collector = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        collector.createContext("/reports", exchange -> {
+            bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        collector.start();
+        URI endpoint = URI.create("http://127.0.0.1:" + collector.getAddress().getPort() + "/reports");
+        pipeline = new ErrorReportPipeline(new HttpReportSender(endpoint, 1000), 4, 100,
+                TimeUnit.MILLISECONDS.toNanos(20), 3, TimeUnit.MILLISECONDS.toNanos(1),
+                TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        pipeline.stop();
+        collector.stop(0);
+    }
+
+    @Test
+    public void testQueuedReportsAreSentAsOneBatch() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(pipeline.submit(new ErrorReport(i, "uart0", "0101\"" + i)));
+        }
+        pipeline.start();
+        awaitSent(3);
+        assertEquals(1, bodies.size());
+        assertTrue(bodies.get(0).contains("\"raw_data\": \"0101\\\"2\""));
+    }
+
+    @Test
+    public void testFullQueueDropsWithoutBlocking() {
+        for (int i = 0; i < 6; i++) {
+            pipeline.submit(new ErrorReport(i, "uart0", "1"));
+        }
+        assertEquals(4, pipeline.getQueueSize());
+        assertEquals(2, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedWithBackoff() throws InterruptedException {
+        status = 503;
+        pipeline.submit(new ErrorReport(0, "uart0", "1"));
+        pipeline.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (pipeline.getFailedCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, pipeline.getFailedCount());
+        assertEquals(2, pipeline.getRetryCount());
+        assertEquals(3, bodies.size());
+    }
+
+    @Test
+    public void testUndeliverableBatchIsSpooledAndReplayedLater() throws Exception {
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("report-spool");
+        pipeline.setSpool(new ReportSpool(directory, 4096, 65536));
+        status = 503;
+        pipeline.submit(new ErrorReport(0, "uart0", "1"));
+        pipeline.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (pipeline.getSpooledCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, pipeline.getSpooledCount());
+        assertEquals(0, pipeline.getFailedCount());
+
+        // Collector is back: the spooled report goes out after the offline window
+        status = 200;
+        awaitSent(1);
+    }
+
+    private void awaitSent(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (pipeline.getSentCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, pipeline.getSentCount());
+    }
+
+    @Test
+    public void testRawBytesAreCopiedAndSentAsHex() throws InterruptedException {
+        byte[] frame = {(byte) 0xA5, 0x0F, (byte) 0x80, 0x00};
+        ErrorReport report = new ErrorReport(7, "uart0", frame, 1, 16);
+        frame[1] = 0;
+        assertEquals("0f80", report.getRawData());
+
+        pipeline.start();
+        assertTrue(pipeline.submit(report));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (bodies.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(bodies.get(0).contains("\"raw_data\": \"0f80\""));
+    }
+}
@@ -1,5 +1,9 @@
 package com.bytetech.robotics.interfaces;
 
+import java.util.concurrent.CompletableFuture;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+
 public class Interfaces {
 
 public interface DeviceInterface {
@@ -7,41 +11,35 @@ public interface DeviceInterface {
     void disconnect();
     boolean isConnected();
     Object executeCommand(Object command);
-}
-
-class VexRobotInterface implements DeviceInterface {
-    @Override
-    public void connect() {}
-
-    @Override
-    public void disconnect() {}
-
-    @Override
-    public boolean isConnected() {
-        return false;
-    }
 
-    @Override
-    public Object executeCommand(Object command) {
-        return null;
+    /**
+     * Sends {@code command} without waiting for its reply. Devices that cannot pipeline fall back
+     * to a blocking {@link #executeCommand(Object)} on the caller's thread.
+     */
+    default CompletableFuture<Object> submitCommand(Object command) {
+        try {
+            return CompletableFuture.completedFuture(executeCommand(command));
+        } catch (RuntimeException e) {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
     }
 }
 
-class ArduinoInterface implements DeviceInterface {
-    @Override
-    public void connect() {}
-
-    @Override
-    public void disconnect() {}
+class VexRobotInterface extends PipelinedDeviceInterface {
+    public VexRobotInterface() {}
 
-    @Override
-    public boolean isConnected() {
-        return false;
+    public VexRobotInterface(CommandLink link) {
+        super(link, 4);
     }
+}
 
-    @Override
-    public Object executeCommand(Object command) {
-        return null;
+class ArduinoInterface extends PipelinedDeviceInterface {
+    public ArduinoInterface() {}
+
+    public ArduinoInterface(CommandLink link) {
+        super(link, DEFAULT_WINDOW);
     }
 }
 
@@ -69,55 +67,102 @@ class LinuxDriverManager {
     }
 }
 
-class MindstormsInterface implements DeviceInterface {
-    @Override
-    public void connect() {}
-
-    @Override
-    public void disconnect() {}
+class MindstormsInterface extends PipelinedDeviceInterface {
+    public MindstormsInterface() {}
 
-    @Override
-    public boolean isConnected() {
-        return false;
-    }
-
-    @Override
-    public Object executeCommand(Object command) {
-        return null;
+    // Bluetooth round trips to the brick are slow, so keep fewer commands outstanding
+    public MindstormsInterface(CommandLink link) {
+        super(link, 2);
     }
 }
 
 class ScratchVMRunner {
-    public void startVM() {}
+    private final ScratchRuntime runtime;
 
-    public void stopVM() {}
+    public ScratchVMRunner(ScratchRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    public void startVM() {
+        runtime.start();
+    }
+
+    public void stopVM() {
+        runtime.stop();
+    }
 
     public boolean isRunning() {
-        return false;
+        return runtime.isRunning();
+    }
+
+    public ScratchRuntime getRuntime() {
+        return runtime;
     }
 }
 
 class RobotWrapper {
+    private static final LatencyHistogram commandLatency = MetricsRegistry.getDefault().histogram("robot.executeCommand");
+
     private DeviceInterface deviceInterface;
+    private ManagedConnection managedConnection;
 
     public RobotWrapper(DeviceInterface deviceInterface) {
         this.deviceInterface = deviceInterface;
     }
 
+    /**
+     * Managed mode: the wrapper survives link drops by reconnecting in the background and
+     * queueing commands until a channel is back.
+     */
+    public RobotWrapper(ManagedConnection managedConnection) {
+        this.managedConnection = managedConnection;
+    }
+
     public void connect() {
-        deviceInterface.connect();
+        if (managedConnection != null) {
+            managedConnection.start();
+        } else {
+            deviceInterface.connect();
+        }
     }
 
     public void disconnect() {
-        deviceInterface.disconnect();
+        if (managedConnection != null) {
+            managedConnection.stop();
+        } else {
+            deviceInterface.disconnect();
+        }
     }
 
     public boolean isConnected() {
-        return deviceInterface.isConnected();
+        return managedConnection != null ? managedConnection.isConnected() : deviceInterface.isConnected();
     }
 
+    /**
+     * Sends {@code command} and waits for the reply; the round trip lands in the
+     * {@code robot.executeCommand} histogram whether or not it succeeds.
+     */
     public Object executeCommand(Object command) {
-        return deviceInterface.executeCommand(command);
+        long start = System.nanoTime();
+        try {
+            if (managedConnection != null) {
+                return managedConnection.executeCommand(command);
+            }
+            return deviceInterface.executeCommand(command);
+        } finally {
+            commandLatency.recordSince(start);
+        }
+    }
+
+    public CompletableFuture<Object> submitCommand(Object command) {
+        if (managedConnection != null) {
+            return managedConnection.submit(command);
+        }
+        return deviceInterface.submitCommand(command);
+    }
+
+    public ManagedConnection getManagedConnection() {
+        return managedConnection;
     }
 }
 
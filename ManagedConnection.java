@@ -0,0 +1,648 @@
+package com.bytetech.robotics.interfaces;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import com.bytetech.robotics.interfaces.Interfaces.DeviceInterface;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Keeps a device link usable through drops. A small pool of channels (one for bricks that allow
+ * a single session) is connected up front; a heartbeat checks each one, and a channel that fails
+ * is reconnected in the background with jittered exponential backoff while commands go to the
+ * others. Commands that arrive while no channel is up are queued, up to a limit, and sent in
+ * order once one is back; until the queue is drained, new commands queue behind it.
+ *
+ * <p>The scheduler thread only keeps time. Connects, heartbeats and replays run on a separate
+ * pool, so a device that blocks in {@code connect} or {@code executeCommand} cannot stall the
+ * heartbeat of the other channels or hold up reconnects.
+ *
+ * <p>Commands already in flight when their channel drops are failed, not replayed, since the
+ * device may have acted on them.
+ */
+public class ManagedConnection {
+    private static final Logger logger = Logger.getLogger(ManagedConnection.class.getName());
+
+    private static final int UP = 0;
+    private static final int DOWN = 1;
+    private static final int RECONNECTING = 2;
+    // Connected, waiting for another channel to finish replaying the queue
+    private static final int READY = 3;
+
+    private static final class PendingCommand {
+        final Object command;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        PendingCommand(Object command) {
+            this.command = command;
+        }
+    }
+
+    private final DeviceInterface[] channels;
+    private final AtomicIntegerArray states;
+    private final long[] backoffNanos;
+    private final Object heartbeatCommand;
+    private final Duration heartbeatInterval;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final int maxQueuedCommands;
+    private final Duration commandTimeout;
+    private final Deque<PendingCommand> pending = new ArrayDeque<>();
+    // Guarded by pending; set while a reconnected channel is sending the queue
+    private boolean replaying;
+    // Written under pending: true while commands are queued or being replayed
+    private volatile boolean backlog;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+
+    private final AtomicLong reconnectCount = new AtomicLong();
+    private final AtomicLong heartbeatFailureCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService sender;
+    private volatile boolean running;
+
+    /**
+     * @param channelFactory   creates one unconnected channel to the device
+     * @param poolSize         channels to keep warm; 1 for devices that allow a single session
+     * @param heartbeatCommand sent on every heartbeat, or {@code null} to rely on
+     *                         {@link DeviceInterface#isConnected()} alone
+     * @param commandTimeout   how long {@link #executeCommand(Object)} waits, including time spent
+     *                         queued while the link is down
+     */
+    public ManagedConnection(Supplier<? extends DeviceInterface> channelFactory, int poolSize,
+            Object heartbeatCommand, Duration heartbeatInterval, Duration initialBackoff, Duration maxBackoff,
+            int maxQueuedCommands, Duration commandTimeout) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool needs at least one channel: " + poolSize);
+        }
+        this.channels = new DeviceInterface[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            channels[i] = channelFactory.get();
+        }
+        this.states = new AtomicIntegerArray(poolSize);
+        this.backoffNanos = new long[poolSize];
+        this.heartbeatCommand = heartbeatCommand;
+        this.heartbeatInterval = heartbeatInterval;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        this.maxQueuedCommands = maxQueuedCommands;
+        this.commandTimeout = commandTimeout;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "managed-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sender = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "managed-connection-send");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < channels.length; i++) {
+            states.set(i, RECONNECTING);
+            backoffNanos[i] = initialBackoffNanos;
+            int channel = i;
+            dispatch(() -> reconnect(channel));
+        }
+        long interval = heartbeatInterval.toNanos();
+        scheduler.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the heartbeat, disconnects every channel and fails the commands still queued.
+     */
+    public void stop() {
+        ScheduledExecutorService executor;
+        ExecutorService senders;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            executor = scheduler;
+            senders = sender;
+            scheduler = null;
+            sender = null;
+        }
+        executor.shutdownNow();
+        senders.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            senders.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < channels.length; i++) {
+            states.set(i, DOWN);
+            disconnectQuietly(i);
+        }
+        synchronized (pending) {
+            PendingCommand command;
+            while ((command = pending.poll()) != null) {
+                command.result.completeExceptionally(new IllegalStateException("Connection closed"));
+            }
+            replaying = false;
+            backlog = false;
+        }
+    }
+
+    public boolean isConnected() {
+        for (int i = 0; i < channels.length; i++) {
+            if (states.get(i) == UP) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends on the next healthy channel, or queues the command until one reconnects. While
+     * earlier commands are still queued or being replayed the command queues behind them.
+     */
+    public CompletableFuture<Object> submit(Object command) {
+        if (!running) {
+            throw new IllegalStateException("Managed connection is not started");
+        }
+        int channel;
+        if (!backlog) {
+            channel = pickChannel();
+            if (channel >= 0) {
+                return send(channel, command);
+            }
+        }
+        PendingCommand queued = new PendingCommand(command);
+        synchronized (pending) {
+            // A channel is only marked up once the queue is empty, so either the backlog is still
+            // there or it was drained since the check above
+            channel = backlog ? -1 : pickChannel();
+            if (channel < 0) {
+                if (pending.size() >= maxQueuedCommands) {
+                    rejectedCount.incrementAndGet();
+                    queued.result.completeExceptionally(new IllegalStateException(
+                            "Link is down and " + maxQueuedCommands + " commands are already queued"));
+                    return queued.result;
+                }
+                pending.add(queued);
+                backlog = true;
+                queuedCount.incrementAndGet();
+                return queued.result;
+            }
+        }
+        return send(channel, command);
+    }
+
+    /**
+     * Sends {@code command} and waits up to the command timeout for its reply. A command that
+     * times out while queued is dropped rather than sent later.
+     */
+    public Object executeCommand(Object command) {
+        try {
+            return submit(command).orTimeout(commandTimeout.toNanos(), TimeUnit.NANOSECONDS).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new IllegalStateException("No reply to " + command + " within "
+                        + commandTimeout.toMillis() + " ms", e.getCause());
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private int pickChannel() {
+        int start = Math.floorMod(nextChannel.getAndIncrement(), channels.length);
+        for (int i = 0; i < channels.length; i++) {
+            int channel = (start + i) % channels.length;
+            if (states.get(channel) == UP) {
+                return channel;
+            }
+        }
+        return -1;
+    }
+
+    private CompletableFuture<Object> send(int channel, Object command) {
+        CompletableFuture<Object> result;
+        try {
+            result = channels[channel].submitCommand(command);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        return result.whenComplete((reply, failure) -> {
+            if (failure != null && !channels[channel].isConnected()) {
+                markDown(channel);
+            }
+        });
+    }
+
+    private void heartbeat() {
+        for (int i = 0; i < channels.length; i++) {
+            if (states.get(i) != UP) {
+                continue;
+            }
+            if (!channels[i].isConnected()) {
+                heartbeatFailureCount.incrementAndGet();
+                markDown(i);
+                continue;
+            }
+            if (heartbeatCommand != null) {
+                int channel = i;
+                CompletableFuture<Object> heartbeat;
+                try {
+                    // On the send pool: a device without pipelining blocks in submitCommand
+                    heartbeat = CompletableFuture.supplyAsync(() -> channels[channel].submitCommand(heartbeatCommand),
+                            sender).thenCompose(sent -> sent);
+                } catch (RejectedExecutionException e) {
+                    return;
+                }
+                heartbeat.orTimeout(heartbeatInterval.toNanos(), TimeUnit.NANOSECONDS)
+                        .whenComplete((reply, failure) -> {
+                            if (failure != null) {
+                                heartbeatFailureCount.incrementAndGet();
+                                markDown(channel);
+                            }
+                        });
+            }
+        }
+    }
+
+    private void markDown(int channel) {
+        if (!states.compareAndSet(channel, UP, RECONNECTING)) {
+            return;
+        }
+        logger.warning("Channel " + channel + " lost, reconnecting");
+        backoffNanos[channel] = initialBackoffNanos;
+        scheduleReconnect(channel);
+    }
+
+    private void scheduleReconnect(int channel) {
+        ScheduledExecutorService executor = scheduler;
+        if (!running || executor == null) {
+            return;
+        }
+        // Full jitter so a fleet of robots that lost the same access point does not retry in step
+        long delay = ThreadLocalRandom.current().nextLong(backoffNanos[channel] + 1);
+        backoffNanos[channel] = Math.min(backoffNanos[channel] * 2, maxBackoffNanos);
+        try {
+            executor.schedule(() -> dispatch(() -> reconnect(channel)), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    private void dispatch(Runnable task) {
+        ExecutorService executor = sender;
+        if (!running || executor == null) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    private void reconnect(int channel) {
+        if (!running) {
+            return;
+        }
+        disconnectQuietly(channel);
+        try {
+            channels[channel].connect();
+        } catch (RuntimeException e) {
+            logger.fine("Reconnect of channel " + channel + " failed: " + e.getMessage());
+        }
+        if (!channels[channel].isConnected()) {
+            scheduleReconnect(channel);
+            return;
+        }
+        reconnectCount.incrementAndGet();
+        replayPending(channel);
+    }
+
+    /**
+     * Sends the queued commands on {@code channel}, then marks it up. The queue is taken in
+     * batches so the lock is not held while sending; commands submitted meanwhile join the queue
+     * and go out in a later batch. The channel, and any that reconnected meanwhile, is marked up
+     * only under the lock once the queue is empty, so nothing overtakes a queued command. If the
+     * channel drops during the replay, the commands not yet sent go back to the head of the queue
+     * and the channel reconnects; a channel waiting to be marked up takes over the replay.
+     */
+    private void replayPending(int channel) {
+        List<PendingCommand> batch = new ArrayList<>();
+        synchronized (pending) {
+            if (replaying) {
+                states.set(channel, READY);
+                return;
+            }
+            replaying = true;
+        }
+        while (true) {
+            synchronized (pending) {
+                batch.addAll(pending);
+                pending.clear();
+                if (batch.isEmpty()) {
+                    replaying = false;
+                    backlog = false;
+                    states.set(channel, UP);
+                    for (int i = 0; i < channels.length; i++) {
+                        states.compareAndSet(i, READY, UP);
+                    }
+                    return;
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                PendingCommand queued = batch.get(i);
+                // Already failed by executeCommand's timeout
+                if (queued.result.isDone()) {
+                    continue;
+                }
+                if (!running) {
+                    queued.result.completeExceptionally(new IllegalStateException("Connection closed"));
+                    continue;
+                }
+                CompletableFuture<Object> sent = channels[channel].isConnected()
+                        ? send(channel, queued.command) : null;
+                // A send that failed at once on a dead channel never reached the device
+                if (sent == null || (sent.isCompletedExceptionally() && !channels[channel].isConnected())) {
+                    abandonReplay(channel, batch.subList(i, batch.size()));
+                    return;
+                }
+                sent.whenComplete((reply, failure) -> {
+                    if (failure != null) {
+                        queued.result.completeExceptionally(failure);
+                    } else {
+                        queued.result.complete(reply);
+                    }
+                });
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Puts {@code unsent} back at the head of the queue, in order, after {@code channel} dropped
+     * during a replay. The channel is still marked reconnecting, so it is rescheduled here rather
+     * than through {@link #markDown(int)}.
+     */
+    private void abandonReplay(int channel, List<PendingCommand> unsent) {
+        logger.warning("Channel " + channel + " lost during replay, " + unsent.size() + " commands requeued");
+        int successor = -1;
+        synchronized (pending) {
+            for (int i = unsent.size() - 1; i >= 0; i--) {
+                pending.addFirst(unsent.get(i));
+            }
+            replaying = false;
+            for (int i = 0; i < channels.length && successor < 0; i++) {
+                if (states.compareAndSet(i, READY, RECONNECTING)) {
+                    successor = i;
+                }
+            }
+        }
+        if (successor >= 0) {
+            int next = successor;
+            dispatch(() -> replayPending(next));
+        }
+        scheduleReconnect(channel);
+    }
+
+    private void disconnectQuietly(int channel) {
+        try {
+            channels[channel].disconnect();
+        } catch (RuntimeException e) {
+            logger.fine("Disconnect of channel " + channel + " failed: " + e.getMessage());
+        }
+    }
+
+    public int getPoolSize() {
+        return channels.length;
+    }
+
+    public int getQueuedCommandCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    public long getHeartbeatFailureCount() {
+        return heartbeatFailureCount.get();
+    }
+
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ManagedConnection[channels=" + channels.length + ", reconnects=" + getReconnectCount()
+                + ", heartbeatFailures=" + getHeartbeatFailureCount() + ", queued=" + getQueuedCount()
+                + ", rejected=" + getRejectedCount() + "]";
+    }
+}
+
+class ManagedConnectionTest {
+    private final FlakyDevice device = new FlakyDevice();
+    private ManagedConnection connection = new ManagedConnection(() -> device, 1, null,
+            Duration.ofMillis(5), Duration.ofMillis(1), Duration.ofMillis(10), 16, Duration.ofMillis(200));
+
+    @After
+    public void tearDown() {
+        connection.stop();
+    }
+
+    @Test
+    public void testCommandsDuringOutageAreReplayedAfterReconnect() throws Exception {
+        connection.start();
+        awaitConnected();
+        assertEquals("ok:a", connection.executeCommand("a"));
+
+        device.refuseConnects = Integer.MAX_VALUE;
+        device.up = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (connection.isConnected() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        CompletableFuture<Object> queued = connection.submit("b");
+        assertEquals(1, connection.getQueuedCommandCount());
+        device.refuseConnects = 0;
+
+        assertEquals("ok:b", queued.get(2, TimeUnit.SECONDS));
+        assertEquals(1, connection.getQueuedCount());
+        assertEquals(2, connection.getReconnectCount());
+    }
+
+    @Test
+    public void testCommandsSubmittedDuringReplayQueueBehindIt() throws Exception {
+        connection.start();
+        awaitConnected();
+        goDown();
+        CompletableFuture<Object> first = connection.submit("b");
+        CompletableFuture<Object> second = connection.submit("c");
+        device.refuseConnects = 0;
+        // Submitted while the replay may be running; it must not overtake b and c
+        Object third = connection.executeCommand("d");
+
+        assertEquals("ok:d", third);
+        assertEquals("ok:b", first.get(2, TimeUnit.SECONDS));
+        assertEquals("ok:c", second.get(2, TimeUnit.SECONDS));
+        int b = device.executed.indexOf("b");
+        int c = device.executed.indexOf("c");
+        assertTrue(b >= 0 && b < c && c < device.executed.indexOf("d"));
+    }
+
+    @Test
+    public void testCommandTimingOutInQueueIsNotSentLater() throws Exception {
+        connection.start();
+        awaitConnected();
+        goDown();
+        try {
+            connection.executeCommand("b");
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("No reply to b"));
+        }
+        device.refuseConnects = 0;
+        awaitConnected();
+        assertEquals("ok:c", connection.executeCommand("c"));
+        assertEquals(-1, device.executed.indexOf("b"));
+    }
+
+    @Test
+    public void testLinkDroppingDuringReplayRequeuesTheRest() throws Exception {
+        connection.start();
+        awaitConnected();
+        goDown();
+        CompletableFuture<Object> first = connection.submit("b");
+        CompletableFuture<Object> second = connection.submit("c");
+        CompletableFuture<Object> third = connection.submit("d");
+        device.dropOn = "c";
+        device.refuseConnects = 0;
+
+        assertEquals("ok:b", first.get(2, TimeUnit.SECONDS));
+        assertEquals("ok:c", second.get(2, TimeUnit.SECONDS));
+        assertEquals("ok:d", third.get(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("b", "c", "d"), device.executed);
+        assertTrue(connection.getReconnectCount() >= 3);
+    }
+
+    @Test
+    public void testBlockedHeartbeatDoesNotStallReconnect() throws Exception {
+        connection = new ManagedConnection(() -> device, 1, "ping", Duration.ofMillis(20), Duration.ofMillis(1),
+                Duration.ofMillis(10), 16, Duration.ofMillis(200));
+        connection.start();
+        awaitConnected();
+        device.blockPings = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (connection.getReconnectCount() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        device.blockPings.countDown();
+        assertTrue(connection.getHeartbeatFailureCount() >= 1);
+        assertTrue(connection.getReconnectCount() >= 2);
+    }
+
+    private void goDown() throws InterruptedException {
+        device.refuseConnects = Integer.MAX_VALUE;
+        device.up = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (connection.isConnected() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitConnected() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!connection.isConnected() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(connection.isConnected());
+    }
+
+    private static class FlakyDevice implements DeviceInterface {
+        volatile boolean up;
+        volatile int refuseConnects;
+        volatile CountDownLatch blockPings = new CountDownLatch(0);
+        // The link drops instead of executing this command, once
+        volatile Object dropOn;
+        final List<Object> executed = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void connect() {
+            if (refuseConnects > 0) {
+                throw new IllegalStateException("No route to brick");
+            }
+            up = true;
+        }
+
+        @Override
+        public void disconnect() {
+            up = false;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return up;
+        }
+
+        @Override
+        public Object executeCommand(Object command) {
+            if ("ping".equals(command)) {
+                try {
+                    blockPings.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (command.equals(dropOn)) {
+                dropOn = null;
+                up = false;
+            }
+            if (!up) {
+                throw new IllegalStateException("Link down");
+            }
+            executed.add(command);
+            return "ok:" + command;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package com.bytetech.robotics.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A monotonically increasing count, safe to bump from any thread without locking.
+ */
+public final class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public long get() {
+        return value.get();
+    }
+}
+
+/**
+ * Latency histogram with HDR-style log-linear buckets: values below 64 ns get a bucket each, and
+ * every power of two above that is split into 32 buckets, so any recorded value is reported to
+ * within about 3%. All buckets are allocated up front and {@link #record(long)} only increments
+ * atomics, so it can be left on in the scan and command paths.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records one latency. Negative values, e.g. from a timestamp taken on a clock that was not
+     * {@link System#nanoTime()}, count as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        long max;
+        while (value > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, value)) {
+            // lost the race to another recorder; re-read and retry
+        }
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long bucketLowerBound(int index) {
+        int block = index >>> SUB_BUCKET_BITS;
+        if (block == 0) {
+            return index;
+        }
+        return (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << (block - 1);
+    }
+
+    static long bucketUpperBound(int index) {
+        int block = index >>> SUB_BUCKET_BITS;
+        return bucketLowerBound(index) + (block == 0 ? 0L : (1L << (block - 1)) - 1L);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) totalNanos.get() / n;
+    }
+
+    /**
+     * The value at or below which {@code percentile} percent of recordings fall, reported as the
+     * upper bound of its bucket and capped at the largest value seen.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        // Sum the buckets rather than trusting count, which a concurrent record may be ahead of
+        long total = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.0f p50=%d p90=%d p99=%d p999=%d max=%d", getCount(), getMeanNanos(),
+                getPercentileNanos(50), getPercentileNanos(90), getPercentileNanos(99), getPercentileNanos(99.9),
+                getMaxNanos());
+    }
+}
+
+/**
+ * Named counters and histograms for one process. Instrumented code looks its metrics up once,
+ * keeps them in a field and records straight into them; the name lookup is never on a hot path.
+ */
+public class MetricsRegistry {
+    public static final String DEFAULT_OBJECT_NAME = "com.bytetech.robotics:type=Metrics";
+
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * The registry the built-in stages record into.
+     */
+    public static MetricsRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public SortedMap<String, Counter> getCounters() {
+        return new TreeMap<>(counters);
+    }
+
+    public SortedMap<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Registers this registry with the platform MBean server under {@code objectName}. Doing it
+     * twice is harmless.
+     */
+    public void registerMBean(String objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new MetricsMBean(this), new ObjectName(objectName));
+        } catch (InstanceAlreadyExistsException e) {
+            // already exported
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Cannot register metrics as " + objectName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes one line per metric, counters first, e.g.
+     * {@code lcd.render count=120 mean=850 p50=812 p90=1015 p99=1950 p999=2100 max=2113}.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (Map.Entry<String, Counter> entry : getCounters().entrySet()) {
+            writer.write(entry.getKey() + " " + entry.getValue().get() + "\n");
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+    }
+}
+
+/**
+ * Exposes a {@link MetricsRegistry} over JMX. Each counter is a {@code long} attribute under its
+ * own name, and each histogram contributes {@code name.count}, {@code name.mean},
+ * {@code name.p50}, {@code name.p99}, {@code name.p999} and {@code name.max}, in nanoseconds.
+ * Metrics registered after export show up the next time a client reads the MBean info.
+ */
+public class MetricsMBean implements DynamicMBean {
+    private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "p50", "p99", "p999", "max"};
+
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Counter counter = registry.getCounters().get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram histogram = dot < 0 ? null : registry.getHistograms().get(attribute.substring(0, dot));
+        if (histogram != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return histogram.getCount();
+                case "mean":
+                    return histogram.getMeanNanos();
+                case "p50":
+                    return histogram.getPercentileNanos(50);
+                case "p99":
+                    return histogram.getPercentileNanos(99);
+                case "p999":
+                    return histogram.getPercentileNanos(99.9);
+                case "max":
+                    return histogram.getMaxNanos();
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException("No metric named " + attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList values = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                values.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the DynamicMBean contract allows
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : registry.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "Counter " + name, true, false, false));
+        }
+        for (String name : registry.getHistograms().keySet()) {
+            for (String field : HISTOGRAM_FIELDS) {
+                String type = field.equals("mean") ? "double" : "long";
+                attributes.add(new MBeanAttributeInfo(name + "." + field, type,
+                        "Latency " + name + " " + field + " (ns)", true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Robot latency histograms and counters",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
+
+/**
+ * Rewrites a text dump of a registry to a local file every period, for robots that nobody is
+ * attached to over JMX. Each dump is written beside the target and moved over it, so a reader
+ * never sees half a file. A final dump is written on {@link #stop()}.
+ */
+public class MetricsFileReporter {
+    private static final Logger logger = Logger.getLogger(MetricsFileReporter.class.getName());
+
+    private final MetricsRegistry registry;
+    private final Path file;
+    private final long periodNanos;
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong dumpCount = new AtomicLong();
+
+    public MetricsFileReporter(MetricsRegistry registry, Path file, Duration period) {
+        if (period.isZero() || period.isNegative()) {
+            throw new IllegalArgumentException("Dump period must be positive: " + period);
+        }
+        this.registry = registry;
+        this.file = file;
+        this.periodNanos = period.toNanos();
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-file-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::dumpQuietly, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stop() throws InterruptedException {
+        ScheduledExecutorService current;
+        synchronized (this) {
+            current = scheduler;
+            scheduler = null;
+        }
+        if (current != null) {
+            current.shutdown();
+            current.awaitTermination(periodNanos, TimeUnit.NANOSECONDS);
+            dumpQuietly();
+        }
+    }
+
+    public void dump() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("# " + java.time.Instant.now() + "\n");
+            registry.writeTo(writer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dumpCount.incrementAndGet();
+    }
+
+    private void dumpQuietly() {
+        try {
+            dump();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    public long getDumpCount() {
+        return dumpCount.get();
+    }
+}
+
+class MetricsTest {
+    @Test
+    public void testBucketsCoverEveryValueWithinThreePercent() {
+        long[] samples = {0, 1, 31, 32, 63, 64, 65, 1000, 123_456, 1L << 40, Long.MAX_VALUE};
+        for (long value : samples) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index >= 0 && index < LatencyHistogram.BUCKET_COUNT);
+            assertTrue(LatencyHistogram.bucketLowerBound(index) <= value);
+            assertTrue(LatencyHistogram.bucketUpperBound(index) >= value);
+            long width = LatencyHistogram.bucketUpperBound(index) - LatencyHistogram.bucketLowerBound(index);
+            assertTrue(width <= value / 32);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000L, histogram.getMaxNanos());
+        assertEquals(500_500.0, histogram.getMeanNanos(), 0.1);
+        assertEquals(500_000.0, histogram.getPercentileNanos(50), 500_000 * 0.035);
+        assertEquals(990_000.0, histogram.getPercentileNanos(99), 990_000 * 0.035);
+        assertEquals(1_000_000L, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        LatencyHistogram histogram = new LatencyHistogram();
+        Counter counter = new Counter();
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i);
+            counter.increment();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            histogram.recordSince(System.nanoTime() - i);
+            counter.increment();
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+        // Leave room for the MXBean call itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void testExportsThroughJmxAndFile() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test.events").add(3);
+        registry.histogram("test.latency").record(2000);
+        String objectName = "com.bytetech.robotics:type=Metrics,name=test";
+        registry.registerMBean(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(3L, server.getAttribute(new ObjectName(objectName), "test.events"));
+            assertEquals(1L, server.getAttribute(new ObjectName(objectName), "test.latency.count"));
+            assertEquals(2000L, server.getAttribute(new ObjectName(objectName), "test.latency.max"));
+            try {
+                server.invoke(new ObjectName(objectName), "reset", new Object[0], new String[0]);
+                fail("expected ReflectionException");
+            } catch (ReflectionException e) {
+                assertTrue(e.getCause() instanceof NoSuchMethodException);
+            }
+        } finally {
+            server.unregisterMBean(new ObjectName(objectName));
+        }
+
+        Path file = Files.createTempFile("metrics", ".txt");
+        try {
+            new MetricsFileReporter(registry, file, Duration.ofSeconds(1)).dump();
+            String dump = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            assertTrue(dump.contains("test.events 3\n"));
+            assertTrue(dump.contains("test.latency count=1 "));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Append-only log of error reports kept while the collector cannot be reached. Reports go into
+ * fixed-size, memory-mapped segment files ({@code spool-<n>.seg}), so an append is a few buffer
+ * puts with no system call. Full segments are rotated out; once the spool would exceed its size
+ * cap the oldest segment is deleted, so the SD card never fills up.
+ *
+ * <p>Segment layout: an 8-byte header (magic, version), then records of
+ *
+ * <pre>
+ * int  length      whole record in bytes; 0 marks the end of the data
+ * int  crc32       over everything after this field
+ * long timestamp   milliseconds since the epoch
+ * u16  source length, source bytes (UTF-8)
+ * u8   raw kind: 0 for text, 1 for frame bytes
+ * int  raw length: text bytes, or frame bits
+ * raw bytes: the text in UTF-8, or the frame bytes as reported, without hex encoding
+ * </pre>
+ *
+ * The length is written last, so a record cut short by a crash is never read back; the CRC
+ * catches pages that only partly reached the card.
+ */
+public class ReportSpool implements AutoCloseable {
+    private static final int MAGIC = 0x5253504C; // "RSPL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 2 + 1 + 4;
+    private static final byte RAW_TEXT = 0;
+    private static final byte RAW_FRAME = 1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxTotalBytes;
+    // Segment number to file, oldest first; the last one is being appended to
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer active;
+    private long activeSegment;
+
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong discardedSegmentCount = new AtomicLong();
+    private final AtomicLong corruptRecordCount = new AtomicLong();
+
+    public ReportSpool(Path directory, int segmentSize, long maxTotalBytes) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE || maxTotalBytes < segmentSize) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " and cap " + maxTotalBytes
+                    + " leave no room for records");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxTotalBytes = maxTotalBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "spool-*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(6, name.length() - 4)), file);
+            }
+        }
+        if (segments.isEmpty()) {
+            openSegment(0L);
+        } else {
+            // Carry on appending to the newest segment after the last intact record
+            activeSegment = segments.lastKey();
+            active = map(segments.lastEntry().getValue());
+            active.position(dataEnd(active));
+        }
+    }
+
+    /**
+     * Appends one report. If it does not fit in the current segment, the segment is rotated.
+     */
+    public synchronized void append(ErrorReport report) throws IOException {
+        byte[] source = report.getSource().getBytes(StandardCharsets.UTF_8);
+        // Frame bytes are spooled as they are; hex encoding would double them on the card
+        byte[] raw = report.getRawBytes();
+        boolean frame = raw != null;
+        if (!frame) {
+            raw = report.getRawData().getBytes(StandardCharsets.UTF_8);
+        }
+        int length = RECORD_HEADER_SIZE + source.length + raw.length;
+        if (length > segmentSize - SEGMENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("Report of " + length + " bytes exceeds segment size " + segmentSize);
+        }
+        // Keep room for the zero length that terminates the segment
+        if (active.remaining() < length + 4) {
+            rotate();
+        }
+
+        int start = active.position();
+        active.position(start + 8);
+        active.putLong(report.getTimestampMillis());
+        active.putShort((short) source.length).put(source);
+        active.put(frame ? RAW_FRAME : RAW_TEXT);
+        active.putInt(frame ? report.getRawBitLength() : raw.length).put(raw);
+
+        ByteBuffer body = active.duplicate();
+        body.position(start + 8).limit(start + length);
+        crc.reset();
+        crc.update(body);
+        active.putInt(start + 4, (int) crc.getValue());
+        active.putInt(start, length);
+        appendedCount.incrementAndGet();
+    }
+
+    public synchronized void append(List<ErrorReport> reports) throws IOException {
+        for (ErrorReport report : reports) {
+            append(report);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.size() == 1 && active.position() == SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * Sends every spooled report, oldest first, in batches of up to {@code batchSize}. Segments
+     * are deleted once all their reports are accepted. If a batch fails, the segment it came from
+     * is compacted down to the unsent reports and the failure is rethrown, so nothing is sent
+     * twice on the next attempt.
+     */
+    public synchronized int replay(ReportSender sender, int batchSize) throws IOException {
+        if (active.position() > SEGMENT_HEADER_SIZE) {
+            rotate();
+        }
+        int sent = 0;
+        List<ErrorReport> batch = new ArrayList<>(batchSize);
+        while (segments.size() > 1) {
+            long segment = segments.firstKey();
+            Path file = segments.get(segment);
+            ByteBuffer data = map(file);
+            int end = dataEnd(data);
+            data.position(SEGMENT_HEADER_SIZE);
+            int batchStart = SEGMENT_HEADER_SIZE;
+            while (data.position() < end) {
+                batch.add(readRecord(data));
+                if (batch.size() == batchSize || data.position() == end) {
+                    try {
+                        sender.send(batch);
+                    } catch (IOException e) {
+                        compact(segment, file, data, batchStart, end);
+                        throw e;
+                    }
+                    sent += batch.size();
+                    replayedCount.addAndGet(batch.size());
+                    batch.clear();
+                    batchStart = data.position();
+                }
+            }
+            Files.delete(file);
+            segments.remove(segment);
+        }
+        return sent;
+    }
+
+    /**
+     * Rewrites a segment without its first {@code from - header} bytes of already sent records.
+     */
+    private void compact(long segment, Path file, ByteBuffer data, int from, int end) throws IOException {
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            out.write(header);
+            ByteBuffer remaining = data.duplicate();
+            remaining.position(from).limit(end);
+            out.write(remaining);
+            // Zero length terminator, then the file is extended to a full segment when mapped
+            out.write(ByteBuffer.allocate(4));
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        segments.put(segment, file);
+    }
+
+    private ErrorReport readRecord(ByteBuffer data) {
+        int start = data.position();
+        int length = data.getInt();
+        data.getInt();
+        long timestamp = data.getLong();
+        byte[] source = new byte[data.getShort() & 0xFFFF];
+        data.get(source);
+        boolean frame = data.get() == RAW_FRAME;
+        int rawLength = data.getInt();
+        byte[] raw = new byte[frame ? (rawLength + 7) >>> 3 : rawLength];
+        data.get(raw);
+        data.position(start + length);
+        String sourceName = new String(source, StandardCharsets.UTF_8);
+        if (frame) {
+            return new ErrorReport(timestamp, sourceName, raw, 0, rawLength);
+        }
+        return new ErrorReport(timestamp, sourceName, new String(raw, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the offset just past the last intact record.
+     */
+    private int dataEnd(ByteBuffer data) {
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= data.limit()) {
+            int length = data.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < RECORD_HEADER_SIZE || position + length > data.limit()) {
+                corruptRecordCount.incrementAndGet();
+                break;
+            }
+            ByteBuffer body = data.duplicate();
+            body.position(position + 8).limit(position + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != data.getInt(position + 4)) {
+                corruptRecordCount.incrementAndGet();
+                break;
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    private void rotate() throws IOException {
+        active.force();
+        openSegment(activeSegment + 1);
+        // Enforce the cap by dropping the oldest reports
+        while ((long) segments.size() * segmentSize > maxTotalBytes && segments.size() > 1) {
+            Files.delete(segments.pollFirstEntry().getValue());
+            discardedSegmentCount.incrementAndGet();
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        Path file = directory.resolve(String.format("spool-%016d.seg", segment));
+        MappedByteBuffer buffer = map(file);
+        buffer.putInt(0, MAGIC).putInt(4, FORMAT_VERSION);
+        buffer.position(SEGMENT_HEADER_SIZE);
+        segments.put(segment, file);
+        activeSegment = segment;
+        active = buffer;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            if (buffer.getInt(0) != 0 && (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)) {
+                throw new IOException("Not a spool segment: " + file);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Forces the current segment out to the card.
+     */
+    public synchronized void sync() {
+        active.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        active.force();
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    public long getDiscardedSegmentCount() {
+        return discardedSegmentCount.get();
+    }
+
+    public long getCorruptRecordCount() {
+        return corruptRecordCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ReportSpool[" + directory + ", appended=" + getAppendedCount() + ", replayed=" + getReplayedCount()
+                + ", discardedSegments=" + getDiscardedSegmentCount() + "]";
+    }
+}
+
+class ReportSpoolTest {
+    private final List<ErrorReport> delivered = new ArrayList<>();
+    private Path directory;
+    private int batchesBeforeOutage = Integer.MAX_VALUE;
+
+    private final ReportSender collector = new ReportSender() {
+        @Override
+        public void send(List<ErrorReport> batch) throws IOException {
+            if (batchesBeforeOutage-- <= 0) {
+                throw new IOException("Collector unreachable");
+            }
+            delivered.addAll(batch);
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("report-spool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testReportsSurviveReopenAndReplayInOrder() throws IOException {
+        ReportSpool spool = new ReportSpool(directory, 256, 4096);
+        for (int i = 0; i < 10; i++) {
+            spool.append(new ErrorReport(i, "uart0", "0110" + i));
+        }
+        spool.close();
+
+        ReportSpool reopened = new ReportSpool(directory, 256, 4096);
+        assertEquals(10, reopened.replay(collector, 4));
+        assertEquals(10, delivered.size());
+        assertEquals("01109", delivered.get(9).getRawData());
+        assertTrue(reopened.isEmpty());
+    }
+
+    @Test
+    public void testFrameBytesAreSpooledWithTheirBitLength() throws IOException {
+        ReportSpool spool = new ReportSpool(directory, 256, 4096);
+        byte[] frame = {(byte) 0xA5, 0x0F, (byte) 0x80};
+        spool.append(new ErrorReport(3, "bits", frame, 0, 17));
+        spool.replay(collector, 4);
+
+        ErrorReport report = delivered.get(0);
+        assertEquals(17, report.getRawBitLength());
+        assertArrayEquals(frame, report.getRawBytes());
+        assertEquals("a50f80", report.getRawData());
+    }
+
+    @Test
+    public void testFailedReplayResumesWithoutDuplicates() throws IOException {
+        ReportSpool spool = new ReportSpool(directory, 4096, 65536);
+        for (int i = 0; i < 10; i++) {
+            spool.append(new ErrorReport(i, "uart0", "1"));
+        }
+        batchesBeforeOutage = 1;
+        try {
+            spool.replay(collector, 4);
+            fail("Replay should fail once the collector goes down");
+        } catch (IOException expected) {
+            // The first batch of four made it
+        }
+        batchesBeforeOutage = Integer.MAX_VALUE;
+        assertEquals(6, spool.replay(collector, 4));
+        assertEquals(10, delivered.size());
+        assertEquals(9, delivered.get(9).getTimestampMillis());
+    }
+
+    @Test
+    public void testSizeCapDiscardsOldestSegments() throws IOException {
+        ReportSpool spool = new ReportSpool(directory, 256, 1024);
+        for (int i = 0; i < 100; i++) {
+            spool.append(new ErrorReport(i, "uart0", "0101010101"));
+        }
+        assertTrue(spool.getDiscardedSegmentCount() > 0);
+        spool.replay(collector, 50);
+        assertEquals(99, delivered.get(delivered.size() - 1).getTimestampMillis());
+        assertTrue(delivered.size() < 100);
+    }
+}
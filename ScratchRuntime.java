@@ -0,0 +1,883 @@
+package com.bytetech.robotics.interfaces;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import com.bytetech.robotics.interfaces.Interfaces.DeviceInterface;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One block of a Scratch script. Inputs are literals ({@link Number}, {@link Boolean} or numeric
+ * {@link String}), nested reporter blocks, or substacks given as a {@code List<ScratchBlock>}.
+ * Variable and command names are plain strings in the first input.
+ */
+public final class ScratchBlock {
+    final String opcode;
+    final Object[] inputs;
+
+    private ScratchBlock(String opcode, Object[] inputs) {
+        this.opcode = opcode;
+        this.inputs = inputs;
+    }
+
+    public static ScratchBlock of(String opcode, Object... inputs) {
+        return new ScratchBlock(opcode, inputs);
+    }
+
+    public static List<ScratchBlock> stack(ScratchBlock... blocks) {
+        return Arrays.asList(blocks);
+    }
+
+    String name(int index) {
+        if (index >= inputs.length || !(inputs[index] instanceof String)) {
+            throw new IllegalArgumentException(opcode + " needs a name as input " + index);
+        }
+        return (String) inputs[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    List<ScratchBlock> substack(int index) {
+        if (index >= inputs.length) {
+            return List.of();
+        }
+        if (!(inputs[index] instanceof List)) {
+            throw new IllegalArgumentException(opcode + " needs a substack as input " + index);
+        }
+        return (List<ScratchBlock>) inputs[index];
+    }
+
+    @Override
+    public String toString() {
+        return opcode + Arrays.toString(inputs);
+    }
+}
+
+/**
+ * Scripts compiled once into a flat instruction array: each instruction is an opcode followed by
+ * one int operand. Values are doubles (booleans are 1 and 0), so the operand stack is a plain
+ * {@code double[]} and the interpreter allocates nothing outside command sends.
+ *
+ * <p>Loops end each iteration with a yield, as Scratch does outside turbo mode.
+ */
+public final class ScratchProgram {
+    static final int CONST = 0;
+    static final int LOAD = 1;
+    static final int STORE = 2;
+    static final int CHANGE = 3;
+    static final int ADD = 4;
+    static final int SUB = 5;
+    static final int MUL = 6;
+    static final int DIV = 7;
+    static final int MOD = 8;
+    static final int LT = 9;
+    static final int GT = 10;
+    static final int EQ = 11;
+    static final int AND = 12;
+    static final int OR = 13;
+    static final int NOT = 14;
+    static final int JUMP = 15;
+    static final int JUMP_IF_FALSE = 16;
+    static final int JUMP_IF_TRUE = 17;
+    static final int LOOP_TEST = 18;
+    static final int YIELD = 19;
+    static final int WAIT = 20;
+    static final int SEND = 21;
+    static final int SEND_AWAIT = 22;
+    static final int HALT = 23;
+
+    private static final Map<String, Integer> BINARY_OPERATORS = Map.ofEntries(
+            Map.entry("operator_add", ADD),
+            Map.entry("operator_subtract", SUB),
+            Map.entry("operator_multiply", MUL),
+            Map.entry("operator_divide", DIV),
+            Map.entry("operator_mod", MOD),
+            Map.entry("operator_lt", LT),
+            Map.entry("operator_gt", GT),
+            Map.entry("operator_equals", EQ),
+            Map.entry("operator_and", AND),
+            Map.entry("operator_or", OR));
+
+    final int[] code;
+    final double[] constants;
+    final String[] commandNames;
+    final String[] variableNames;
+    final int[] entryPoints;
+    final int maxStack;
+
+    private ScratchProgram(Compiler compiler, int[] entryPoints) {
+        this.code = Arrays.copyOf(compiler.code, compiler.size);
+        this.constants = compiler.constants.stream().mapToDouble(Double::doubleValue).toArray();
+        this.commandNames = compiler.commandNames.toArray(new String[0]);
+        this.variableNames = new String[compiler.variables.size()];
+        for (Map.Entry<String, Integer> variable : compiler.variables.entrySet()) {
+            variableNames[variable.getValue()] = variable.getKey();
+        }
+        this.entryPoints = entryPoints;
+        this.maxStack = Math.max(compiler.maxDepth, 1);
+    }
+
+    /**
+     * Compiles each script, a "when green flag clicked" stack without its hat block, into one
+     * program. Scripts share the program's variables.
+     */
+    public static ScratchProgram compile(List<List<ScratchBlock>> scripts) {
+        Compiler compiler = new Compiler();
+        int[] entryPoints = new int[scripts.size()];
+        for (int i = 0; i < scripts.size(); i++) {
+            entryPoints[i] = compiler.size;
+            compiler.statements(scripts.get(i));
+            compiler.emit(HALT, 0);
+        }
+        return new ScratchProgram(compiler, entryPoints);
+    }
+
+    public int getScriptCount() {
+        return entryPoints.length;
+    }
+
+    public int getInstructionCount() {
+        return code.length / 2;
+    }
+
+    public List<String> getVariableNames() {
+        return List.of(variableNames);
+    }
+
+    int variableSlot(String name) {
+        for (int i = 0; i < variableNames.length; i++) {
+            if (variableNames[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No variable " + name);
+    }
+
+    private static final class Compiler {
+        int[] code = new int[64];
+        int size;
+        int depth;
+        int maxDepth;
+        final List<Double> constants = new ArrayList<>();
+        final List<String> commandNames = new ArrayList<>();
+        final Map<String, Integer> variables = new HashMap<>();
+
+        int emit(int op, int operand) {
+            if (size + 2 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            int at = size;
+            code[size++] = op;
+            code[size++] = operand;
+            return at;
+        }
+
+        void patch(int instruction) {
+            code[instruction + 1] = size;
+        }
+
+        void push(int count) {
+            depth += count;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        int constant(double value) {
+            int index = constants.indexOf(value);
+            if (index < 0) {
+                index = constants.size();
+                constants.add(value);
+            }
+            return index;
+        }
+
+        int variable(String name) {
+            return variables.computeIfAbsent(name, key -> variables.size());
+        }
+
+        void statements(List<ScratchBlock> blocks) {
+            for (ScratchBlock block : blocks) {
+                statement(block);
+            }
+        }
+
+        void statement(ScratchBlock block) {
+            switch (block.opcode) {
+                case "data_setvariableto":
+                case "data_changevariableby": {
+                    int slot = variable(block.name(0));
+                    expression(block, 1);
+                    emit(block.opcode.equals("data_setvariableto") ? STORE : CHANGE, slot);
+                    push(-1);
+                    break;
+                }
+                case "control_repeat": {
+                    // The remaining count stays on the stack for the whole loop
+                    expression(block, 0);
+                    int test = emit(LOOP_TEST, 0);
+                    statements(block.substack(1));
+                    emit(YIELD, 0);
+                    emit(JUMP, test);
+                    patch(test);
+                    push(-1);
+                    break;
+                }
+                case "control_forever": {
+                    int top = size;
+                    statements(block.substack(0));
+                    emit(YIELD, 0);
+                    emit(JUMP, top);
+                    break;
+                }
+                case "control_repeat_until": {
+                    int top = size;
+                    int exit = condition(block, 0, JUMP_IF_TRUE);
+                    statements(block.substack(1));
+                    emit(YIELD, 0);
+                    emit(JUMP, top);
+                    patch(exit);
+                    break;
+                }
+                case "control_if": {
+                    int skip = condition(block, 0, JUMP_IF_FALSE);
+                    statements(block.substack(1));
+                    patch(skip);
+                    break;
+                }
+                case "control_if_else": {
+                    int otherwise = condition(block, 0, JUMP_IF_FALSE);
+                    statements(block.substack(1));
+                    int end = emit(JUMP, 0);
+                    patch(otherwise);
+                    statements(block.substack(2));
+                    patch(end);
+                    break;
+                }
+                case "control_wait":
+                    expression(block, 0);
+                    emit(WAIT, 0);
+                    push(-1);
+                    break;
+                case "control_wait_until": {
+                    int top = size;
+                    int exit = condition(block, 0, JUMP_IF_TRUE);
+                    emit(YIELD, 0);
+                    emit(JUMP, top);
+                    patch(exit);
+                    break;
+                }
+                case "control_stop":
+                    emit(HALT, 0);
+                    break;
+                case "robot_send":
+                case "robot_sendandwait": {
+                    String name = block.name(0);
+                    int argc = block.inputs.length - 1;
+                    for (int i = 1; i <= argc; i++) {
+                        expression(block, i);
+                    }
+                    int index = commandNames.indexOf(name);
+                    if (index < 0) {
+                        index = commandNames.size();
+                        commandNames.add(name);
+                    }
+                    emit(block.opcode.equals("robot_send") ? SEND : SEND_AWAIT, index | argc << 16);
+                    push(-argc);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unsupported block: " + block);
+            }
+        }
+
+        int condition(ScratchBlock block, int index, int jump) {
+            expression(block, index);
+            int at = emit(jump, 0);
+            push(-1);
+            return at;
+        }
+
+        void expression(ScratchBlock block, int index) {
+            if (index >= block.inputs.length) {
+                throw new IllegalArgumentException(block.opcode + " is missing input " + index);
+            }
+            Object input = block.inputs[index];
+            if (input instanceof Number) {
+                emit(CONST, constant(((Number) input).doubleValue()));
+                push(1);
+            } else if (input instanceof Boolean) {
+                emit(CONST, constant((Boolean) input ? 1 : 0));
+                push(1);
+            } else if (input instanceof String) {
+                try {
+                    emit(CONST, constant(Double.parseDouble((String) input)));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(block.opcode + " input " + index + " is not a number: " + input);
+                }
+                push(1);
+            } else if (input instanceof ScratchBlock) {
+                reporter((ScratchBlock) input);
+            } else {
+                throw new IllegalArgumentException(block.opcode + " input " + index + " is not a value: " + input);
+            }
+        }
+
+        void reporter(ScratchBlock block) {
+            if (block.opcode.equals("data_variable")) {
+                emit(LOAD, variable(block.name(0)));
+                push(1);
+            } else if (block.opcode.equals("operator_not")) {
+                expression(block, 0);
+                emit(NOT, 0);
+            } else if (BINARY_OPERATORS.containsKey(block.opcode)) {
+                expression(block, 0);
+                expression(block, 1);
+                emit(BINARY_OPERATORS.get(block.opcode), 0);
+                push(-1);
+            } else {
+                throw new IllegalArgumentException("Unsupported reporter: " + block);
+            }
+        }
+    }
+}
+
+/**
+ * Runs a {@link ScratchProgram} the way the Scratch VM does: every script is a green thread, and
+ * on each frame of a fixed-rate scheduler every runnable thread runs until it yields (end of a
+ * loop iteration, a wait, or a command it waits on). A thread that runs
+ * {@code maxInstructionsPerSlice} instructions without yielding is preempted so it cannot stall
+ * the frame.
+ *
+ * <p>Device commands are built by {@code commandFactory} from the block's name and arguments and
+ * handed to {@code deviceExecutor}, so a device whose {@link DeviceInterface#submitCommand} blocks
+ * never stalls the scheduler. Pass {@code Runnable::run} for devices that pipeline natively.
+ *
+ * <p>Variables belong to the scheduler thread; {@link #runFrame(long)} may be called directly
+ * instead of {@link #start()} for tests and benchmarks.
+ */
+public class ScratchRuntime {
+    private static final class ScratchThread {
+        final double[] stack;
+        int pc;
+        int sp;
+        boolean sleeping;
+        long wakeAtNanos;
+        CompletableFuture<?> waitingOn;
+        boolean done;
+
+        ScratchThread(int entryPoint, int maxStack) {
+            this.pc = entryPoint;
+            this.stack = new double[maxStack];
+        }
+    }
+
+    private final ScratchProgram program;
+    private final DeviceInterface device;
+    private final BiFunction<String, double[], Object> commandFactory;
+    private Executor deviceExecutor;
+    // Set when the runtime created deviceExecutor itself; shut down by stop()
+    private ExecutorService ownedExecutor;
+    private final long frameNanos;
+    private final int maxInstructionsPerSlice;
+    private final double[] variables;
+    private final List<ScratchThread> threads = new ArrayList<>();
+
+    private Thread schedulerThread;
+    private volatile boolean running;
+    private volatile int liveThreadCount;
+
+    private final AtomicLong instructionCount = new AtomicLong();
+    private final AtomicLong frameCount = new AtomicLong();
+    private final AtomicLong overrunCount = new AtomicLong();
+    private final AtomicLong totalJitterNanos = new AtomicLong();
+    private final AtomicLong maxJitterNanos = new AtomicLong();
+    private final AtomicLong commandsSent = new AtomicLong();
+    private final AtomicLong failedCommandCount = new AtomicLong();
+
+    public ScratchRuntime(ScratchProgram program, DeviceInterface device,
+            BiFunction<String, double[], Object> commandFactory, Executor deviceExecutor, int framesPerSecond,
+            int maxInstructionsPerSlice) {
+        if (framesPerSecond < 1) {
+            throw new IllegalArgumentException("Frame rate must be positive: " + framesPerSecond);
+        }
+        this.program = program;
+        this.device = device;
+        this.commandFactory = commandFactory;
+        this.deviceExecutor = deviceExecutor;
+        this.frameNanos = TimeUnit.SECONDS.toNanos(1) / framesPerSecond;
+        this.maxInstructionsPerSlice = maxInstructionsPerSlice;
+        this.variables = new double[program.variableNames.length];
+    }
+
+    /**
+     * Scratch's 30 frames per second, with device calls on one daemon thread so they stay in order.
+     * The thread belongs to the runtime and is shut down by {@link #stop()}.
+     */
+    public ScratchRuntime(ScratchProgram program, DeviceInterface device,
+            BiFunction<String, double[], Object> commandFactory) {
+        this(program, device, commandFactory, newDeviceExecutor(), 30, 10_000);
+        this.ownedExecutor = (ExecutorService) deviceExecutor;
+    }
+
+    private static ExecutorService newDeviceExecutor() {
+        return Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "scratch-device");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Clears the variables and starts one thread per script, like clicking the green flag.
+     */
+    public void greenFlag() {
+        Arrays.fill(variables, 0);
+        threads.clear();
+        for (int entryPoint : program.entryPoints) {
+            threads.add(new ScratchThread(entryPoint, program.maxStack));
+        }
+        liveThreadCount = threads.size();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        if (ownedExecutor != null && ownedExecutor.isShutdown()) {
+            ownedExecutor = newDeviceExecutor();
+            deviceExecutor = ownedExecutor;
+        }
+        schedulerThread = new Thread(() -> {
+            greenFlag();
+            runFrames();
+        }, "scratch-vm");
+        schedulerThread.setDaemon(true);
+        schedulerThread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = schedulerThread;
+            schedulerThread = null;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(frameNanos) * 4 + 100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ownedExecutor != null) {
+            // Commands already handed over still go out; nothing new is accepted
+            ownedExecutor.shutdown();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void runFrames() {
+        long nextFrame = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (now < nextFrame) {
+                LockSupport.parkNanos(nextFrame - now);
+                continue;
+            }
+            recordJitter(now - nextFrame);
+            runFrame(now);
+            nextFrame += frameNanos;
+            long after = System.nanoTime();
+            if (after >= nextFrame) {
+                // Drop the frames we missed rather than running them back to back
+                overrunCount.incrementAndGet();
+                nextFrame += ((after - nextFrame) / frameNanos + 1) * frameNanos;
+            }
+        }
+    }
+
+    private void recordJitter(long jitter) {
+        totalJitterNanos.addAndGet(jitter);
+        long max;
+        while (jitter > (max = maxJitterNanos.get()) && !maxJitterNanos.compareAndSet(max, jitter)) {
+            // Retry until we win or another frame recorded a larger jitter
+        }
+    }
+
+    /**
+     * Gives every runnable thread one slice and returns the number of instructions executed.
+     */
+    public int runFrame(long nowNanos) {
+        int executed = 0;
+        for (int i = 0; i < threads.size(); i++) {
+            ScratchThread thread = threads.get(i);
+            if (thread.done) {
+                continue;
+            }
+            if (thread.sleeping) {
+                if (thread.wakeAtNanos - nowNanos > 0) {
+                    continue;
+                }
+                thread.sleeping = false;
+            }
+            if (thread.waitingOn != null) {
+                if (!thread.waitingOn.isDone()) {
+                    continue;
+                }
+                thread.waitingOn = null;
+            }
+            executed += run(thread, nowNanos);
+        }
+        threads.removeIf(thread -> thread.done);
+        liveThreadCount = threads.size();
+        instructionCount.addAndGet(executed);
+        frameCount.incrementAndGet();
+        return executed;
+    }
+
+    private int run(ScratchThread thread, long nowNanos) {
+        final int[] code = program.code;
+        final double[] constants = program.constants;
+        final double[] vars = variables;
+        final double[] stack = thread.stack;
+        int pc = thread.pc;
+        int sp = thread.sp;
+        int executed = 0;
+        while (executed < maxInstructionsPerSlice) {
+            int op = code[pc];
+            int operand = code[pc + 1];
+            pc += 2;
+            executed++;
+            switch (op) {
+                case ScratchProgram.CONST:
+                    stack[sp++] = constants[operand];
+                    break;
+                case ScratchProgram.LOAD:
+                    stack[sp++] = vars[operand];
+                    break;
+                case ScratchProgram.STORE:
+                    vars[operand] = stack[--sp];
+                    break;
+                case ScratchProgram.CHANGE:
+                    vars[operand] += stack[--sp];
+                    break;
+                case ScratchProgram.ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case ScratchProgram.SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case ScratchProgram.MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case ScratchProgram.DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case ScratchProgram.MOD: {
+                    // Scratch's mod takes the sign of the divisor
+                    sp--;
+                    double result = stack[sp - 1] % stack[sp];
+                    stack[sp - 1] = result / stack[sp] < 0 ? result + stack[sp] : result;
+                    break;
+                }
+                case ScratchProgram.LT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                    break;
+                case ScratchProgram.GT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+                    break;
+                case ScratchProgram.EQ:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                    break;
+                case ScratchProgram.AND:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] != 0 && stack[sp] != 0 ? 1 : 0;
+                    break;
+                case ScratchProgram.OR:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] != 0 || stack[sp] != 0 ? 1 : 0;
+                    break;
+                case ScratchProgram.NOT:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case ScratchProgram.JUMP:
+                    pc = operand;
+                    break;
+                case ScratchProgram.JUMP_IF_FALSE:
+                    if (stack[--sp] == 0) {
+                        pc = operand;
+                    }
+                    break;
+                case ScratchProgram.JUMP_IF_TRUE:
+                    if (stack[--sp] != 0) {
+                        pc = operand;
+                    }
+                    break;
+                case ScratchProgram.LOOP_TEST:
+                    // Scratch rounds the repeat count, so stop once less than half an iteration is left
+                    if (stack[sp - 1] < 0.5) {
+                        sp--;
+                        pc = operand;
+                    } else {
+                        stack[sp - 1] -= 1;
+                    }
+                    break;
+                case ScratchProgram.YIELD:
+                    thread.pc = pc;
+                    thread.sp = sp;
+                    return executed;
+                case ScratchProgram.WAIT:
+                    thread.sleeping = true;
+                    thread.wakeAtNanos = nowNanos + (long) (stack[--sp] * 1e9);
+                    thread.pc = pc;
+                    thread.sp = sp;
+                    return executed;
+                case ScratchProgram.SEND:
+                case ScratchProgram.SEND_AWAIT: {
+                    int argc = operand >>> 16;
+                    double[] args = Arrays.copyOfRange(stack, sp - argc, sp);
+                    sp -= argc;
+                    CompletableFuture<Object> reply = send(program.commandNames[operand & 0xFFFF], args);
+                    if (op == ScratchProgram.SEND_AWAIT) {
+                        thread.waitingOn = reply;
+                        thread.pc = pc;
+                        thread.sp = sp;
+                        return executed;
+                    }
+                    break;
+                }
+                case ScratchProgram.HALT:
+                    thread.done = true;
+                    return executed;
+                default:
+                    throw new IllegalStateException("Bad opcode " + op + " at " + (pc - 2));
+            }
+        }
+        thread.pc = pc;
+        thread.sp = sp;
+        return executed;
+    }
+
+    private CompletableFuture<Object> send(String name, double[] args) {
+        Object command = commandFactory.apply(name, args);
+        commandsSent.incrementAndGet();
+        CompletableFuture<CompletableFuture<Object>> submitted = new CompletableFuture<>();
+        deviceExecutor.execute(() -> {
+            try {
+                submitted.complete(device.submitCommand(command));
+            } catch (RuntimeException e) {
+                submitted.completeExceptionally(e);
+            }
+        });
+        CompletableFuture<Object> reply = submitted.thenCompose(Function.identity());
+        reply.whenComplete((result, failure) -> {
+            if (failure != null) {
+                failedCommandCount.incrementAndGet();
+            }
+        });
+        return reply;
+    }
+
+    /**
+     * Reads a variable; only consistent from the scheduler thread or between frames.
+     */
+    public double getVariable(String name) {
+        return variables[program.variableSlot(name)];
+    }
+
+    public ScratchProgram getProgram() {
+        return program;
+    }
+
+    public int getLiveThreadCount() {
+        return liveThreadCount;
+    }
+
+    public long getInstructionCount() {
+        return instructionCount.get();
+    }
+
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    public long getOverrunCount() {
+        return overrunCount.get();
+    }
+
+    public long getMaxJitterNanos() {
+        return maxJitterNanos.get();
+    }
+
+    public long getMeanJitterNanos() {
+        long frames = getFrameCount();
+        return frames == 0 ? 0 : totalJitterNanos.get() / frames;
+    }
+
+    public long getCommandsSent() {
+        return commandsSent.get();
+    }
+
+    public long getFailedCommandCount() {
+        return failedCommandCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ScratchRuntime[threads=" + getLiveThreadCount() + ", frames=" + getFrameCount() + ", instructions="
+                + getInstructionCount() + ", overruns=" + getOverrunCount() + ", meanJitterNs="
+                + getMeanJitterNanos() + ", maxJitterNs=" + getMaxJitterNanos() + ", commands="
+                + getCommandsSent() + ", failedCommands=" + getFailedCommandCount() + "]";
+    }
+}
+
+class ScratchRuntimeTest {
+    private final List<Object> sent = Collections.synchronizedList(new ArrayList<>());
+    private CompletableFuture<Object> nextReply;
+
+    private final DeviceInterface device = new DeviceInterface() {
+        @Override
+        public void connect() {}
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public Object executeCommand(Object command) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Object> submitCommand(Object command) {
+            sent.add(command);
+            return nextReply != null ? nextReply : CompletableFuture.completedFuture("ok");
+        }
+    };
+
+    private ScratchRuntime runtime(List<List<ScratchBlock>> scripts) {
+        ScratchProgram program = ScratchProgram.compile(scripts);
+        return new ScratchRuntime(program, device, (name, args) -> name + Arrays.toString(args), Runnable::run,
+                30, 1000);
+    }
+
+    @Test
+    public void testThreadsInterleaveOneLoopIterationPerFrame() {
+        ScratchBlock x = ScratchBlock.of("data_variable", "x");
+        ScratchRuntime runtime = runtime(List.of(
+                ScratchBlock.stack(
+                        ScratchBlock.of("data_setvariableto", "x", 0),
+                        ScratchBlock.of("control_repeat", 3, ScratchBlock.stack(
+                                ScratchBlock.of("data_changevariableby", "x", 1),
+                                ScratchBlock.of("control_if", ScratchBlock.of("operator_gt", x, 1),
+                                        ScratchBlock.stack(ScratchBlock.of("robot_send", "MOTOR",
+                                                ScratchBlock.of("operator_multiply", x, 10))))))),
+                ScratchBlock.stack(
+                        ScratchBlock.of("control_forever", ScratchBlock.stack(
+                                ScratchBlock.of("data_changevariableby", "y", 2))))));
+        runtime.greenFlag();
+
+        runtime.runFrame(0);
+        assertEquals(1, runtime.getVariable("x"), 0);
+        assertEquals(2, runtime.getVariable("y"), 0);
+        runtime.runFrame(1);
+        runtime.runFrame(2);
+        runtime.runFrame(3);
+        assertEquals(3, runtime.getVariable("x"), 0);
+        assertEquals(8, runtime.getVariable("y"), 0);
+        assertEquals(List.of("MOTOR[20.0]", "MOTOR[30.0]"), sent);
+        assertEquals(1, runtime.getLiveThreadCount());
+    }
+
+    @Test
+    public void testWaitsParkOnlyTheirOwnThread() {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        nextReply = reply;
+        ScratchRuntime runtime = runtime(List.of(
+                ScratchBlock.stack(
+                        ScratchBlock.of("robot_sendandwait", "BEEP"),
+                        ScratchBlock.of("data_setvariableto", "beeped", true)),
+                ScratchBlock.stack(
+                        ScratchBlock.of("control_wait", 0.5),
+                        ScratchBlock.of("data_setvariableto", "waited", 1)),
+                ScratchBlock.stack(
+                        ScratchBlock.of("data_setvariableto", "ran", 1))));
+        runtime.greenFlag();
+
+        runtime.runFrame(0);
+        assertEquals(1, runtime.getVariable("ran"), 0);
+        runtime.runFrame(TimeUnit.MILLISECONDS.toNanos(400));
+        assertEquals(0, runtime.getVariable("beeped"), 0);
+        assertEquals(0, runtime.getVariable("waited"), 0);
+
+        reply.complete("done");
+        runtime.runFrame(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(1, runtime.getVariable("beeped"), 0);
+        assertEquals(1, runtime.getVariable("waited"), 0);
+        assertEquals(0, runtime.getLiveThreadCount());
+        assertTrue(runtime.getInstructionCount() > 0);
+    }
+
+    @Test
+    public void testStopShutsDownItsOwnDeviceThread() throws Exception {
+        ScratchProgram program = ScratchProgram.compile(List.of(ScratchBlock.stack(
+                ScratchBlock.of("control_forever", ScratchBlock.stack(ScratchBlock.of("robot_send", "PING"))))));
+        ScratchRuntime runtime = new ScratchRuntime(program, device, (name, args) -> name);
+        // A restart gets a fresh device thread
+        for (int run = 0; run < 2; run++) {
+            int before = sent.size();
+            runtime.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (sent.size() == before && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            runtime.stop();
+            assertTrue(sent.size() > before);
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (deviceThreadAlive() && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertFalse(deviceThreadAlive());
+        }
+    }
+
+    private static boolean deviceThreadAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("scratch-device") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
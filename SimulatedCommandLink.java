@@ -0,0 +1,159 @@
+package com.bytetech.robotics.interfaces;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A link with the timing of a real one, for benchmarks without hardware. Each command travels
+ * for {@code latency} (plus up to {@code jitter}) each way, and the device works through them
+ * one at a time taking {@code serviceTime} each. Unlike {@link LoopbackCommandLink}, commands
+ * overlap in flight, so a pipelined device gets the speed-up it would on a real link.
+ *
+ * <p>Waits shorter than a scheduler tick are spun rather than slept, so microsecond latencies
+ * are honoured at the cost of the reply thread's core.
+ */
+public class SimulatedCommandLink implements CommandLink {
+    private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final class InFlight {
+        final Object command;
+        final long replyAtNanos;
+
+        InFlight(Object command, long replyAtNanos) {
+            this.command = command;
+            this.replyAtNanos = replyAtNanos;
+        }
+    }
+
+    private final Function<Object, Object> responder;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final long serviceNanos;
+    private final BlockingQueue<InFlight> inFlight = new LinkedBlockingQueue<>();
+    private final Object sendLock = new Object();
+    private long deviceFreeAtNanos;
+    private volatile Thread replyThread;
+
+    private final AtomicLong commandCount = new AtomicLong();
+
+    public SimulatedCommandLink(Function<Object, Object> responder, Duration latency, Duration jitter,
+            Duration serviceTime) {
+        this.responder = responder;
+        this.latencyNanos = latency.toNanos();
+        this.jitterNanos = jitter.toNanos();
+        this.serviceNanos = serviceTime.toNanos();
+    }
+
+    @Override
+    public void open(ReplyHandler replyHandler) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    InFlight next = inFlight.take();
+                    awaitNanoTime(next.replyAtNanos);
+                    replyHandler.onReply(UNSEQUENCED, responder.apply(next.command));
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }, "simulated-command-link");
+        thread.setDaemon(true);
+        replyThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void send(int sequence, Object command) throws IOException {
+        if (replyThread == null) {
+            throw new IOException("Simulated link is not open");
+        }
+        synchronized (sendLock) {
+            // The device answers in order, so a reply never overtakes the one before it
+            long arrival = System.nanoTime() + oneWayNanos();
+            long done = Math.max(arrival, deviceFreeAtNanos) + serviceNanos;
+            deviceFreeAtNanos = done;
+            inFlight.add(new InFlight(command, done + oneWayNanos()));
+        }
+        commandCount.incrementAndGet();
+    }
+
+    private long oneWayNanos() {
+        return jitterNanos > 0 ? latencyNanos + ThreadLocalRandom.current().nextLong(jitterNanos + 1) : latencyNanos;
+    }
+
+    private static void awaitNanoTime(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        Thread thread = replyThread;
+        replyThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        inFlight.clear();
+    }
+
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+}
+
+/**
+ * A robot on a {@link SimulatedCommandLink}. A window of 1 behaves like today's blocking devices;
+ * larger windows behave like the pipelined Vex, Arduino and Mindstorms interfaces.
+ */
+public class SimulatedDeviceInterface extends PipelinedDeviceInterface {
+    public SimulatedDeviceInterface(SimulatedCommandLink link, int window) {
+        super(link, window);
+    }
+}
+
+class SimulatedCommandLinkTest {
+    @Test
+    public void testPipelinedCommandsOverlapInFlight() {
+        SimulatedCommandLink link = new SimulatedCommandLink(command -> "ack:" + command, Duration.ofMillis(5),
+                Duration.ZERO, Duration.ZERO);
+        SimulatedDeviceInterface device = new SimulatedDeviceInterface(link, 8);
+        device.connect();
+        try {
+            long start = System.nanoTime();
+            CompletableFuture<?>[] replies = new CompletableFuture<?>[8];
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = device.submitCommand(i);
+            }
+            for (int i = 0; i < replies.length; i++) {
+                assertEquals("ack:" + i, replies[i].join());
+            }
+            long elapsed = System.nanoTime() - start;
+            // Eight round trips of 10 ms each would take 80 ms if they did not overlap
+            assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(40));
+            assertEquals(8, link.getCommandCount());
+        } finally {
+            device.disconnect();
+        }
+    }
+}
@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Busy-waits for short hardware latencies, which {@link Thread#sleep} would round up to a
+ * scheduler tick; longer ones park for all but the last stretch.
+ */
+final class SimulatedTiming {
+    private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private SimulatedTiming() {}
+
+    static void pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
+
+/**
+ * A GPIO bank in memory. Each input pin either holds a level set with {@link #setPinState} or
+ * toggles at a fixed rate, worked out from the clock on every read so any input rate costs the
+ * same. Every bank read pays {@code readLatency}, as one register access would.
+ */
+public class SimulatedGPIOAdapter implements GPIOPinAdapter {
+    private final long startNanos = System.nanoTime();
+    private final long readLatencyNanos;
+    private final long[] halfPeriodNanos = new long[Long.SIZE];
+    private volatile long levels;
+    // Written after halfPeriodNanos, so a reader that sees a pin here also sees its period
+    private volatile long togglingMask;
+
+    private final AtomicLong bankReads = new AtomicLong();
+
+    public SimulatedGPIOAdapter(Duration readLatency) {
+        this.readLatencyNanos = readLatency.toNanos();
+    }
+
+    /**
+     * Holds {@code pinNumber} at {@code state} and stops any toggling.
+     */
+    public synchronized void setPinState(int pinNumber, boolean state) {
+        long bit = bit(pinNumber);
+        togglingMask &= ~bit;
+        levels = state ? levels | bit : levels & ~bit;
+    }
+
+    /**
+     * Toggles {@code pinNumber} {@code edgesPerSecond} times a second, starting from its current
+     * level. Zero stops it.
+     */
+    public synchronized void setEdgeRate(int pinNumber, double edgesPerSecond) {
+        long bit = bit(pinNumber);
+        if (edgesPerSecond <= 0) {
+            togglingMask &= ~bit;
+            return;
+        }
+        halfPeriodNanos[pinNumber] = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / edgesPerSecond));
+        togglingMask |= bit;
+    }
+
+    private static long bit(int pinNumber) {
+        if (pinNumber < 0 || pinNumber >= Long.SIZE) {
+            throw new IllegalArgumentException("Pin out of range 0-63: " + pinNumber);
+        }
+        return 1L << pinNumber;
+    }
+
+    @Override
+    public boolean readPinState(int pinNumber) {
+        return readPinStates(bit(pinNumber)) != 0L;
+    }
+
+    @Override
+    public long readPinStates(long mask) {
+        if (readLatencyNanos > 0) {
+            SimulatedTiming.pause(readLatencyNanos);
+        }
+        bankReads.incrementAndGet();
+        long toggling = togglingMask & mask;
+        long states = levels & mask;
+        long elapsed = System.nanoTime() - startNanos;
+        while (toggling != 0L) {
+            int pinNumber = Long.numberOfTrailingZeros(toggling);
+            toggling &= toggling - 1;
+            if (((elapsed / halfPeriodNanos[pinNumber]) & 1L) != 0L) {
+                states ^= 1L << pinNumber;
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public void writePinState(int pinNumber, boolean state) {
+        setPinState(pinNumber, state);
+    }
+
+    @Override
+    public String getPinName(int pinNumber) {
+        return "SIM" + pinNumber;
+    }
+
+    public long getBankReads() {
+        return bankReads.get();
+    }
+}
+
+/**
+ * {@link LoopbackSpiBackend} with bus timing: every bus message pays {@code setupLatency} (the
+ * ioctl and chip-select) and every byte eight clock periods, so batched transfers show the
+ * saving they would on spidev.
+ */
+public class SimulatedSpiBackend extends LoopbackSpiBackend {
+    private final long setupNanos;
+    private final double nanosPerByte;
+
+    public SimulatedSpiBackend(Duration setupLatency, long clockHz) {
+        if (clockHz <= 0) {
+            throw new IllegalArgumentException("SPI clock must be positive: " + clockHz);
+        }
+        this.setupNanos = setupLatency.toNanos();
+        this.nanosPerByte = 8e9 / clockHz;
+    }
+
+    @Override
+    public void transfer(ByteBuffer tx, ByteBuffer rx) {
+        SimulatedTiming.pause(setupNanos + (long) (tx.remaining() * nanosPerByte));
+        super.transfer(tx, rx);
+    }
+
+    @Override
+    public void transferBatch(ByteBuffer[] tx, ByteBuffer[] rx, int count) {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += tx[i].remaining();
+        }
+        SimulatedTiming.pause(setupNanos + (long) (bytes * nanosPerByte));
+        // Skip the per-transfer timing above; the whole message was paid for once
+        for (int i = 0; i < count; i++) {
+            super.transfer(tx[i], rx[i]);
+        }
+    }
+}
+
+/**
+ * A UART cable in memory. Bytes take ten bit times each on the wire (8N1) and queue behind
+ * those already being sent, then arrive {@code latency} later, as through a USB adapter. The
+ * host ends plug straight into {@link SerialTransport}; the device ends can be driven by a test
+ * or by {@link #startEcho()}.
+ */
+public class SimulatedSerialLink {
+    private final Direction toDevice;
+    private final Direction toHost;
+    private volatile Thread echoThread;
+
+    public SimulatedSerialLink(int baudRate, Duration latency) {
+        if (baudRate <= 0) {
+            throw new IllegalArgumentException("Baud rate must be positive: " + baudRate);
+        }
+        long nanosPerByte = TimeUnit.SECONDS.toNanos(10) / baudRate;
+        this.toDevice = new Direction(nanosPerByte, latency.toNanos());
+        this.toHost = new Direction(nanosPerByte, latency.toNanos());
+    }
+
+    public ReadableByteChannel hostInput() {
+        return toHost;
+    }
+
+    public WritableByteChannel hostOutput() {
+        return toDevice;
+    }
+
+    public ReadableByteChannel deviceInput() {
+        return toDevice;
+    }
+
+    public WritableByteChannel deviceOutput() {
+        return toHost;
+    }
+
+    /**
+     * Sends everything the device receives straight back, like a jumper across TX and RX at the
+     * far end of the cable.
+     */
+    public synchronized void startEcho() {
+        if (echoThread != null) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            try {
+                while (toDevice.read(buffer) >= 0) {
+                    buffer.flip();
+                    toHost.write(buffer);
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // Link closed
+            }
+        }, "simulated-serial-echo");
+        thread.setDaemon(true);
+        echoThread = thread;
+        thread.start();
+    }
+
+    public void close() throws IOException {
+        toDevice.close();
+        toHost.close();
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        final long arrivesAtNanos;
+        int position;
+
+        Chunk(byte[] data, long arrivesAtNanos) {
+            this.data = data;
+            this.arrivesAtNanos = arrivesAtNanos;
+        }
+    }
+
+    private static final class Direction implements ByteChannel {
+        private final long nanosPerByte;
+        private final long latencyNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private long lineFreeAtNanos;
+        private boolean open = true;
+
+        Direction(long nanosPerByte, long latencyNanos) {
+            this.nanosPerByte = nanosPerByte;
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            byte[] data = new byte[length];
+            src.get(data);
+            lock.lock();
+            try {
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                lineFreeAtNanos = Math.max(lineFreeAtNanos, System.nanoTime()) + length * nanosPerByte;
+                chunks.add(new Chunk(data, lineFreeAtNanos + latencyNanos));
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            lock.lock();
+            try {
+                while (true) {
+                    if (!open) {
+                        return -1;
+                    }
+                    Chunk head = chunks.peek();
+                    long wait = head == null ? Long.MAX_VALUE : head.arrivesAtNanos - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        if (head == null) {
+                            changed.await();
+                        } else {
+                            changed.awaitNanos(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        // Like an interruptible channel: the read fails and the channel closes
+                        open = false;
+                        chunks.clear();
+                        changed.signalAll();
+                        Thread.currentThread().interrupt();
+                        throw new ClosedByInterruptException();
+                    }
+                }
+                int read = 0;
+                long now = System.nanoTime();
+                Chunk head;
+                while (dst.hasRemaining() && (head = chunks.peek()) != null && head.arrivesAtNanos <= now) {
+                    int length = Math.min(dst.remaining(), head.data.length - head.position);
+                    dst.put(head.data, head.position, length);
+                    head.position += length;
+                    read += length;
+                    if (head.position == head.data.length) {
+                        chunks.poll();
+                    }
+                }
+                return read;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            lock.lock();
+            try {
+                return open;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                open = false;
+                chunks.clear();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
+
+/**
+ * Stands in for the debugging center so {@link ErrorReportPipeline} can be driven at full rate:
+ * each batch takes {@code latency} and fails with probability {@code failureRate}.
+ */
+public class SimulatedReportSender implements ReportSender {
+    private final long latencyNanos;
+    private final double failureRate;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong reportCount = new AtomicLong();
+
+    public SimulatedReportSender(Duration latency, double failureRate) {
+        this.latencyNanos = latency.toNanos();
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public void send(List<ErrorReport> batch) throws IOException {
+        SimulatedTiming.pause(latencyNanos);
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new IOException("Simulated collector rejected the batch");
+        }
+        batchCount.incrementAndGet();
+        reportCount.addAndGet(batch.size());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getReportCount() {
+        return reportCount.get();
+    }
+}
+
+class SimulatedHardwareTest {
+    @Test
+    public void testTogglingPinsFollowTheClock() {
+        SimulatedGPIOAdapter gpio = new SimulatedGPIOAdapter(Duration.ZERO);
+        gpio.setPinState(3, true);
+        gpio.setEdgeRate(5, 1000);
+        boolean sawHigh = false;
+        boolean sawLow = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+        while (System.nanoTime() < deadline && !(sawHigh && sawLow)) {
+            long bank = gpio.readBank();
+            assertEquals(1L << 3, bank & (1L << 3));
+            sawHigh |= (bank & (1L << 5)) != 0;
+            sawLow |= (bank & (1L << 5)) == 0;
+        }
+        assertTrue(sawHigh && sawLow);
+    }
+
+    @Test
+    public void testSerialBytesTakeTheirWireTime() throws IOException {
+        SimulatedSerialLink link = new SimulatedSerialLink(9600, Duration.ofMillis(1));
+        link.startEcho();
+        long start = System.nanoTime();
+        link.hostOutput().write(ByteBuffer.wrap(new byte[48]));
+        ByteBuffer received = ByteBuffer.allocate(48);
+        while (received.hasRemaining()) {
+            link.hostInput().read(received);
+        }
+        // 48 bytes at 960 bytes a second, once out and once back
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        link.close();
+    }
+}
@@ -0,0 +1,770 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import com.bytetech.robotics.interfaces.Interfaces.DeviceInterface;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Memory-mapped binary trace of pin edges and device commands. The whole file is mapped up
+ * front (sparse until written), so recording a record is a handful of buffer puts under an
+ * uncontended lock, cheap enough to leave on in the field. When the file is full, recording
+ * stops and further records are only counted.
+ *
+ * <p>Layout: a 16-byte header (magic, version, wall-clock start in milliseconds), then records
+ *
+ * <pre>
+ * u16    length       whole record in bytes; 0 marks the end of the data
+ * u8     type
+ * varint time         nanoseconds since the previous record, zigzag encoded
+ * ...    payload
+ *
+ * PIN_EDGES     varint changed mask, varint new states of the changed pins
+ * PIN_WRITE     u8 pin, u8 level
+ * COMMAND_SENT  varint command id, varint length + command (UTF-8)
+ * COMMAND_DONE  varint command id, u8 failed, varint latency ns,
+ *               varint length + reply or error (UTF-8)
+ * </pre>
+ *
+ * A command is written once when it is sent and once when it completes, paired by its id, so
+ * records are in time order and a replay sends commands when they were sent, even when replies
+ * come back out of order. Each timestamp is taken under the writer's lock, so time deltas never
+ * go negative; they are still zigzag encoded. As in {@link ReportSpool}, the length is written
+ * last so a record cut short by a crash is never read back.
+ */
+public class TraceWriter implements AutoCloseable {
+    static final int MAGIC = 0x52545243; // "RTRC"
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 16;
+    static final int PIN_EDGES = 1;
+    static final int PIN_WRITE = 2;
+    static final int COMMAND_SENT = 3;
+    static final int COMMAND_DONE = 4;
+    // Longer command or reply text is cut, at a character boundary, so every record fits its u16 length
+    static final int MAX_TEXT_BYTES = 16 * 1024;
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final long startNanos = System.nanoTime();
+    private long lastTimestamp;
+    private long nextCommandId;
+    private boolean full;
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public TraceWriter(Path file, int capacityBytes) throws IOException {
+        if (capacityBytes < HEADER_SIZE + 64) {
+            throw new IllegalArgumentException("Trace capacity too small: " + capacityBytes);
+        }
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+        }
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Trace time: nanoseconds since the writer was opened.
+     */
+    public long now() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public synchronized void pinEdges(long changed, long states) {
+        int start = begin(PIN_EDGES, now(), 20);
+        if (start < 0) {
+            return;
+        }
+        putVarLong(changed);
+        putVarLong(states & changed);
+        end(start);
+    }
+
+    public synchronized void pinWrite(int pinNumber, boolean level) {
+        int start = begin(PIN_WRITE, now(), 2);
+        if (start < 0) {
+            return;
+        }
+        buffer.put((byte) pinNumber).put((byte) (level ? 1 : 0));
+        end(start);
+    }
+
+    /**
+     * Records a command as it is sent. Returns the id to pass to {@link #commandDone}, or -1 if
+     * the trace is full.
+     */
+    public long commandSent(Object command) {
+        byte[] commandText = text(command);
+        synchronized (this) {
+            int start = begin(COMMAND_SENT, now(), 10 + 5 + commandText.length);
+            if (start < 0) {
+                return -1;
+            }
+            long id = nextCommandId++;
+            putVarLong(id);
+            putVarLong(commandText.length);
+            buffer.put(commandText);
+            end(start);
+            return id;
+        }
+    }
+
+    public void commandDone(long id, long latencyNanos, Object reply, boolean failed) {
+        if (id < 0) {
+            return;
+        }
+        byte[] replyText = text(reply);
+        synchronized (this) {
+            int start = begin(COMMAND_DONE, now(), 10 + 1 + 10 + 5 + replyText.length);
+            if (start < 0) {
+                return;
+            }
+            putVarLong(id);
+            buffer.put((byte) (failed ? 1 : 0));
+            putVarLong(latencyNanos);
+            putVarLong(replyText.length);
+            buffer.put(replyText);
+            end(start);
+        }
+    }
+
+    static byte[] text(Object value) {
+        byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_TEXT_BYTES) {
+            return bytes;
+        }
+        // Back up over continuation bytes (10xxxxxx) so no character is cut in half
+        int end = MAX_TEXT_BYTES;
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    /**
+     * Starts a record if {@code maxPayload} more bytes fit, returning its offset, or -1 once the
+     * file is full.
+     */
+    private int begin(int type, long timestamp, int maxPayload) {
+        // Length, type and the largest time delta, plus room for the terminating zero length
+        if (full || buffer.remaining() < 2 + 1 + 10 + maxPayload + 2) {
+            full = true;
+            droppedCount.incrementAndGet();
+            return -1;
+        }
+        int start = buffer.position();
+        buffer.position(start + 2);
+        buffer.put((byte) type);
+        long delta = timestamp - lastTimestamp;
+        putVarLong((delta << 1) ^ (delta >> 63));
+        lastTimestamp = timestamp;
+        return start;
+    }
+
+    private void end(int start) {
+        buffer.putShort(start, (short) (buffer.position() - start));
+        recordCount.incrementAndGet();
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized int getBytesUsed() {
+        return buffer.position();
+    }
+
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.force();
+    }
+
+    @Override
+    public String toString() {
+        return "TraceWriter[" + file + ", records=" + getRecordCount() + ", bytes=" + getBytesUsed()
+                + ", dropped=" + getDroppedCount() + "]";
+    }
+}
+
+/**
+ * Reads a trace written by {@link TraceWriter}, one record at a time. The fields describe the
+ * current record; only command records allocate.
+ */
+public class TraceReader {
+    private final ByteBuffer buffer;
+    private final long startEpochMillis;
+
+    int type;
+    long timestampNanos;
+    long changedMask;
+    long states;
+    int pinNumber;
+    boolean level;
+    long commandId;
+    boolean failed;
+    long latencyNanos;
+    String command;
+    String reply;
+
+    public TraceReader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < TraceWriter.HEADER_SIZE || buffer.getInt() != TraceWriter.MAGIC
+                || buffer.getInt() != TraceWriter.FORMAT_VERSION) {
+            throw new IOException("Not a trace file: " + file);
+        }
+        startEpochMillis = buffer.getLong();
+    }
+
+    public boolean next() {
+        if (buffer.remaining() < 2) {
+            return false;
+        }
+        int start = buffer.position();
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == 0 || start + length > buffer.limit()) {
+            buffer.position(start);
+            return false;
+        }
+        type = buffer.get();
+        long delta = getVarLong();
+        timestampNanos += (delta >>> 1) ^ -(delta & 1);
+        switch (type) {
+            case TraceWriter.PIN_EDGES:
+                changedMask = getVarLong();
+                states = getVarLong();
+                break;
+            case TraceWriter.PIN_WRITE:
+                pinNumber = buffer.get();
+                level = buffer.get() != 0;
+                break;
+            case TraceWriter.COMMAND_SENT:
+                commandId = getVarLong();
+                command = getText();
+                break;
+            case TraceWriter.COMMAND_DONE:
+                commandId = getVarLong();
+                failed = buffer.get() != 0;
+                latencyNanos = getVarLong();
+                reply = getText();
+                break;
+            default:
+                // Unknown record from a newer writer; skip it
+                break;
+        }
+        buffer.position(start + length);
+        return true;
+    }
+
+    private String getText() {
+        byte[] bytes = new byte[(int) getVarLong()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long getVarLong() {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+}
+
+/**
+ * Records what a real adapter reads: a pin is written to the trace only when its level differs
+ * from the last one recorded, so a polling loop over idle buttons adds nothing to the file.
+ */
+public class RecordingGPIOAdapter implements GPIOPinAdapter {
+    private final GPIOPinAdapter delegate;
+    private final TraceWriter trace;
+    // Guarded by this: pins seen so far and their last recorded levels
+    private long knownPins;
+    private long lastStates;
+
+    public RecordingGPIOAdapter(GPIOPinAdapter delegate, TraceWriter trace) {
+        this.delegate = delegate;
+        this.trace = trace;
+    }
+
+    @Override
+    public boolean readPinState(int pinNumber) {
+        boolean state = delegate.readPinState(pinNumber);
+        record(1L << pinNumber, state ? 1L << pinNumber : 0L);
+        return state;
+    }
+
+    @Override
+    public long readPinStates(long mask) {
+        long states = delegate.readPinStates(mask);
+        record(mask, states);
+        return states;
+    }
+
+    private synchronized void record(long mask, long states) {
+        long changed = ((states ^ lastStates) | ~knownPins) & mask;
+        if (changed == 0L) {
+            return;
+        }
+        knownPins |= mask;
+        lastStates = (lastStates & ~changed) | (states & changed);
+        trace.pinEdges(changed, states);
+    }
+
+    @Override
+    public void writePinState(int pinNumber, boolean state) {
+        delegate.writePinState(pinNumber, state);
+        trace.pinWrite(pinNumber, state);
+    }
+
+    @Override
+    public String getPinName(int pinNumber) {
+        return delegate.getPinName(pinNumber);
+    }
+}
+
+/**
+ * Records every command sent through a device with its reply (or error) and latency. Commands
+ * and replies are stored as their {@code toString()}.
+ */
+public class RecordingDeviceInterface implements DeviceInterface {
+    private final DeviceInterface delegate;
+    private final TraceWriter trace;
+
+    public RecordingDeviceInterface(DeviceInterface delegate, TraceWriter trace) {
+        this.delegate = delegate;
+        this.trace = trace;
+    }
+
+    @Override
+    public void connect() {
+        delegate.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        delegate.disconnect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override
+    public Object executeCommand(Object command) {
+        long sentAt = trace.now();
+        long id = trace.commandSent(command);
+        try {
+            Object reply = delegate.executeCommand(command);
+            trace.commandDone(id, trace.now() - sentAt, reply, false);
+            return reply;
+        } catch (RuntimeException e) {
+            trace.commandDone(id, trace.now() - sentAt, e, true);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Object> submitCommand(Object command) {
+        long sentAt = trace.now();
+        long id = trace.commandSent(command);
+        CompletableFuture<Object> reply;
+        try {
+            reply = delegate.submitCommand(command);
+        } catch (RuntimeException e) {
+            trace.commandDone(id, trace.now() - sentAt, e, true);
+            throw e;
+        }
+        return reply.whenComplete((result, failure) ->
+                trace.commandDone(id, trace.now() - sentAt, failure != null ? failure : result, failure != null));
+    }
+}
+
+/**
+ * The pin side of a replay: reads answer with the levels the trace had reached at the current
+ * replay time.
+ */
+public class ReplayGPIOAdapter implements GPIOPinAdapter {
+    private volatile long states;
+
+    void apply(long changed, long newStates) {
+        states = (states & ~changed) | (newStates & changed);
+    }
+
+    @Override
+    public boolean readPinState(int pinNumber) {
+        return (states >>> pinNumber & 1L) != 0L;
+    }
+
+    @Override
+    public long readPinStates(long mask) {
+        return states & mask;
+    }
+
+    @Override
+    public void writePinState(int pinNumber, boolean state) {
+        // Outputs are not fed back; the trace already holds what the inputs did
+    }
+
+    @Override
+    public String getPinName(int pinNumber) {
+        return "REPLAY" + pinNumber;
+    }
+}
+
+/**
+ * Plays a trace back through the same interfaces it was recorded from. At speed 1 records are
+ * released at their recorded times, at speed 10 ten times faster, and at speed 0 as fast as the
+ * targets accept them. Pin edges move a {@link ReplayGPIOAdapter}, after which an optional hook
+ * (typically {@link ButtonPollingEngine#scanOnce()}) runs so no edge is missed at high speed.
+ * Commands are sent with {@link DeviceInterface#submitCommand} at the time they were originally
+ * sent; when their recorded completion comes up, the replayed reply is compared with it and the
+ * latencies are kept side by side for a before/after comparison.
+ */
+public class TraceReplayer {
+    private final Path file;
+    private final double speed;
+
+    private ReplayGPIOAdapter pinTarget;
+    private Runnable afterPinEdges;
+    private DeviceInterface commandTarget;
+    private Function<String, Object> commandDecoder;
+
+    // Replayed commands by recorded id, until their completion record is read
+    private final Map<Long, ReplayedCommand> inFlight = new HashMap<>();
+
+    private final AtomicLong recordsReplayed = new AtomicLong();
+    private final AtomicLong commandsReplayed = new AtomicLong();
+    private final AtomicLong commandsFailed = new AtomicLong();
+    private final AtomicLong replyMismatches = new AtomicLong();
+    private final AtomicLong recordedReplies = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong recordedLatencyTotal = new AtomicLong();
+    private final AtomicLong recordedLatencyMax = new AtomicLong();
+    private final AtomicLong replayedLatencyTotal = new AtomicLong();
+    private final AtomicLong replayedLatencyMax = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    public TraceReplayer(Path file, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed must be 0 (unpaced) or positive: " + speed);
+        }
+        this.file = file;
+        this.speed = speed;
+    }
+
+    public void setPinTarget(ReplayGPIOAdapter pinTarget, Runnable afterPinEdges) {
+        this.pinTarget = pinTarget;
+        this.afterPinEdges = afterPinEdges;
+    }
+
+    /**
+     * Commands are rebuilt from their recorded text by {@code commandDecoder}.
+     */
+    public void setCommandTarget(DeviceInterface commandTarget, Function<String, Object> commandDecoder) {
+        this.commandTarget = commandTarget;
+        this.commandDecoder = commandDecoder;
+    }
+
+    /**
+     * Replays the whole trace on the calling thread, then waits up to {@code drainTimeout} for
+     * replayed commands still in flight.
+     */
+    public void run(long drainTimeout, TimeUnit unit) throws IOException, InterruptedException {
+        TraceReader reader = new TraceReader(file);
+        long startNanos = System.nanoTime();
+        while (reader.next()) {
+            if (speed > 0) {
+                long due = startNanos + (long) (reader.timestampNanos / speed);
+                long early = due - System.nanoTime();
+                if (early > 0) {
+                    SimulatedTiming.pause(early);
+                } else {
+                    updateMax(maxLagNanos, -early);
+                }
+            }
+            if (reader.type == TraceWriter.PIN_EDGES && pinTarget != null) {
+                pinTarget.apply(reader.changedMask, reader.states);
+                if (afterPinEdges != null) {
+                    afterPinEdges.run();
+                }
+            } else if (reader.type == TraceWriter.COMMAND_SENT && commandTarget != null) {
+                replayCommand(reader.commandId, reader.command);
+            } else if (reader.type == TraceWriter.COMMAND_DONE && commandTarget != null) {
+                compareReply(reader.commandId, reader.reply, reader.failed, reader.latencyNanos);
+            }
+            recordsReplayed.incrementAndGet();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(drainTimeout);
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+    }
+
+    private static final class ReplayedCommand {
+        final CompletableFuture<Object> reply;
+
+        ReplayedCommand(CompletableFuture<Object> reply) {
+            this.reply = reply;
+        }
+    }
+
+    private void replayCommand(long id, String command) {
+        outstanding.incrementAndGet();
+        long sent = System.nanoTime();
+        CompletableFuture<Object> reply;
+        try {
+            reply = commandTarget.submitCommand(commandDecoder.apply(command));
+        } catch (RuntimeException e) {
+            reply = new CompletableFuture<>();
+            reply.completeExceptionally(e);
+        }
+        inFlight.put(id, new ReplayedCommand(reply));
+        reply.whenComplete((result, failure) -> {
+            long latency = System.nanoTime() - sent;
+            replayedLatencyTotal.addAndGet(latency);
+            updateMax(replayedLatencyMax, latency);
+            if (failure != null) {
+                commandsFailed.incrementAndGet();
+            }
+            commandsReplayed.incrementAndGet();
+            outstanding.decrementAndGet();
+        });
+    }
+
+    /**
+     * Checks a replayed command against its recorded outcome, once both are known. A completion
+     * whose send was not replayed, such as one recorded before a trace was cut, is ignored.
+     */
+    private void compareReply(long id, String recordedReply, boolean recordedFailure, long recordedLatency) {
+        ReplayedCommand replayed = inFlight.remove(id);
+        if (replayed == null) {
+            return;
+        }
+        recordedReplies.incrementAndGet();
+        recordedLatencyTotal.addAndGet(recordedLatency);
+        updateMax(recordedLatencyMax, recordedLatency);
+        outstanding.incrementAndGet();
+        replayed.reply.whenComplete((result, failure) -> {
+            if (failure != null ? !recordedFailure : recordedFailure || !String.valueOf(result).equals(recordedReply)) {
+                replyMismatches.incrementAndGet();
+            }
+            outstanding.decrementAndGet();
+        });
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the max holds the larger value
+        }
+    }
+
+    public long getRecordsReplayed() {
+        return recordsReplayed.get();
+    }
+
+    public long getCommandsReplayed() {
+        return commandsReplayed.get();
+    }
+
+    public long getCommandsFailed() {
+        return commandsFailed.get();
+    }
+
+    /**
+     * Replayed commands whose outcome or reply text differs from the recording.
+     */
+    public long getReplyMismatches() {
+        return replyMismatches.get();
+    }
+
+    public long getMeanRecordedLatencyNanos() {
+        long replies = recordedReplies.get();
+        return replies == 0 ? 0 : recordedLatencyTotal.get() / replies;
+    }
+
+    public long getMaxRecordedLatencyNanos() {
+        return recordedLatencyMax.get();
+    }
+
+    public long getMeanReplayedLatencyNanos() {
+        long commands = getCommandsReplayed();
+        return commands == 0 ? 0 : replayedLatencyTotal.get() / commands;
+    }
+
+    public long getMaxReplayedLatencyNanos() {
+        return replayedLatencyMax.get();
+    }
+
+    /**
+     * How far the replay fell behind its schedule at worst; 0 when unpaced.
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TraceReplayer[" + file + ", speed=" + speed + ", records=" + getRecordsReplayed() + ", commands="
+                + getCommandsReplayed() + ", failed=" + getCommandsFailed() + ", mismatches=" + getReplyMismatches()
+                + ", latencyNs recorded=" + getMeanRecordedLatencyNanos() + "/" + getMaxRecordedLatencyNanos()
+                + " replayed=" + getMeanReplayedLatencyNanos() + "/" + getMaxReplayedLatencyNanos()
+                + ", maxLagNs=" + getMaxLagNanos() + "]";
+    }
+}
+
+class TraceRecorderTest {
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("trace", ".trc");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testPinEdgesAndCommandsReplayInOrder() throws Exception {
+        SimulatedGPIOAdapter pins = new SimulatedGPIOAdapter(Duration.ZERO);
+        try (TraceWriter trace = new TraceWriter(file, 1 << 16)) {
+            RecordingGPIOAdapter gpio = new RecordingGPIOAdapter(pins, trace);
+            RecordingDeviceInterface device = new RecordingDeviceInterface(new EchoDevice(), trace);
+            gpio.readBank();
+            gpio.readBank();
+            pins.setPinState(4, true);
+            gpio.readBank();
+            device.executeCommand("MOTOR 1 200");
+            pins.setPinState(4, false);
+            pins.setPinState(9, true);
+            gpio.readPinStates(1L << 4 | 1L << 9);
+            // Unchanged reads add nothing; the command is one record sent and one done
+            assertEquals(5, trace.getRecordCount());
+        }
+
+        ReplayGPIOAdapter replayPins = new ReplayGPIOAdapter();
+        List<Long> banks = new ArrayList<>();
+        EchoDevice replayDevice = new EchoDevice();
+        TraceReplayer replayer = new TraceReplayer(file, 0);
+        replayer.setPinTarget(replayPins, () -> banks.add(replayPins.readBank()));
+        replayer.setCommandTarget(replayDevice, command -> command);
+        replayer.run(1, TimeUnit.SECONDS);
+
+        assertEquals(List.of(0L, 1L << 4, 1L << 9), banks);
+        assertEquals(List.of("MOTOR 1 200"), replayDevice.commands);
+        assertEquals(1, replayer.getCommandsReplayed());
+        assertEquals(0, replayer.getReplyMismatches());
+    }
+
+    @Test
+    public void testCommandsReplayInSendOrderWhenRepliesComeBackOutOfOrder() throws Exception {
+        Map<Object, CompletableFuture<Object>> replies = new HashMap<>();
+        DeviceInterface pipelined = new EchoDevice() {
+            @Override
+            public CompletableFuture<Object> submitCommand(Object command) {
+                CompletableFuture<Object> reply = new CompletableFuture<>();
+                replies.put(command, reply);
+                return reply;
+            }
+        };
+        try (TraceWriter trace = new TraceWriter(file, 1 << 16)) {
+            RecordingDeviceInterface device = new RecordingDeviceInterface(pipelined, trace);
+            device.submitCommand("MOTOR 1 200");
+            device.submitCommand("MOTOR 2 100");
+            replies.get("MOTOR 2 100").complete("ok:MOTOR 2 100");
+            replies.get("MOTOR 1 200").complete("ok:MOTOR 1 200");
+            assertEquals(4, trace.getRecordCount());
+        }
+
+        EchoDevice replayDevice = new EchoDevice();
+        TraceReplayer replayer = new TraceReplayer(file, 0);
+        replayer.setCommandTarget(replayDevice, command -> command);
+        replayer.run(1, TimeUnit.SECONDS);
+
+        assertEquals(List.of("MOTOR 1 200", "MOTOR 2 100"), replayDevice.commands);
+        assertEquals(2, replayer.getCommandsReplayed());
+        assertEquals(0, replayer.getReplyMismatches());
+    }
+
+    @Test
+    public void testLongTextIsCutAtCharacterBoundary() {
+        StringBuilder text = new StringBuilder("a");
+        for (int i = 0; i < TraceWriter.MAX_TEXT_BYTES / 2; i++) {
+            text.append('\u00e9');
+        }
+        byte[] cut = TraceWriter.text(text);
+        // The last two-byte character would straddle the limit, so it is dropped whole
+        assertEquals(TraceWriter.MAX_TEXT_BYTES - 1, cut.length);
+        String decoded = new String(cut, StandardCharsets.UTF_8);
+        assertEquals(text.substring(0, decoded.length()), decoded);
+    }
+
+    private static class EchoDevice implements DeviceInterface {
+        final List<Object> commands = new ArrayList<>();
+
+        @Override
+        public void connect() {}
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public Object executeCommand(Object command) {
+            commands.add(command);
+            return "ok:" + command;
+        }
+    }
+}
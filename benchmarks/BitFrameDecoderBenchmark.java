@@ -0,0 +1,85 @@
+package com.bytetech.robotics.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.bytetech.robotics.bits.BitFrameDecoder;
+import com.bytetech.robotics.bits.BitFrameFormat;
+import com.bytetech.robotics.bits.BitFrameListener;
+
+/**
+ * Decodes one second of a 4 Mbit/s stream of 48-bit frames at random bit offsets, with noise
+ * between frames and a share of corrupted frames. A score under 1 s/op means one core keeps up
+ * with the line; compare the byte and the 64-bit word entry points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BitFrameDecoderBenchmark {
+    private static final int STREAM_BYTES = 4_000_000 / 8;
+
+    @Param({"0", "1"})
+    public int corruptPercent;
+
+    private final BitFrameFormat format = new BitFrameFormat(0x2DD4, 16, 24, BitFrameFormat.Check.CRC8);
+    private final BitFrameFormat.Field value = format.field("value", 4, 20);
+    private byte[] stream;
+    private long[] words;
+    private Blackhole blackhole;
+    private BitFrameDecoder decoder;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        Random random = new Random(42);
+        stream = new byte[STREAM_BYTES];
+        int bit = 0;
+        while (bit + 64 < STREAM_BYTES * 8) {
+            bit += random.nextInt(8);
+            int start = bit;
+            bit = format.encode(random.nextInt(1 << 24), stream, bit);
+            if (random.nextInt(100) < corruptPercent) {
+                int flipped = start + 16 + random.nextInt(32);
+                stream[flipped >>> 3] ^= (byte) (0x80 >>> (flipped & 7));
+            }
+        }
+        words = new long[STREAM_BYTES / 8];
+        for (int i = 0; i < words.length; i++) {
+            for (int b = 0; b < 8; b++) {
+                words[i] = (words[i] << 8) | (stream[i * 8 + b] & 0xFF);
+            }
+        }
+        decoder = new BitFrameDecoder(format, new BitFrameListener() {
+            @Override
+            public void onFrame(long payload) {
+                BitFrameDecoderBenchmark.this.blackhole.consume(value.extract(payload));
+            }
+
+            @Override
+            public void onInvalidFrame(byte[] raw, int bitLength) {
+                BitFrameDecoderBenchmark.this.blackhole.consume(raw);
+            }
+        });
+    }
+
+    @Benchmark
+    public long decodeBytes() {
+        decoder.decode(stream, 0, stream.length);
+        return decoder.getValidFrames();
+    }
+
+    @Benchmark
+    public long decodeWords() {
+        decoder.decode(words, 0, words.length);
+        return decoder.getValidFrames();
+    }
+}
@@ -0,0 +1,47 @@
+package com.bytetech.robotics.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.bytetech.robotics.interfaces.BinaryCommand;
+import com.bytetech.robotics.interfaces.CommandCodec;
+
+/**
+ * Binary command round trip against the text form that {@code AbstractDevice.sendCommand(String)}
+ * uses today. Run with {@code -prof gc} to confirm the binary path allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandCodecBenchmark {
+    private final CommandCodec codec = new CommandCodec();
+    private final BinaryCommand command = new BinaryCommand();
+    private final BinaryCommand decoded = new BinaryCommand();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CommandCodec.MAX_FRAME_SIZE);
+    private int speed;
+
+    @Benchmark
+    public int binaryMotorSpeed() {
+        speed = (speed + 7) % 1000;
+        buffer.clear();
+        codec.encode(command.motorSpeed(3, speed), buffer);
+        buffer.flip();
+        codec.decode(buffer, decoded);
+        return decoded.getValue();
+    }
+
+    @Benchmark
+    public int textMotorSpeed() {
+        speed = (speed + 7) % 1000;
+        byte[] wire = ("MOTOR " + 3 + " " + speed + "\n").getBytes(StandardCharsets.US_ASCII);
+        String[] fields = new String(wire, StandardCharsets.US_ASCII).trim().split(" ");
+        return Integer.parseInt(fields[2]);
+    }
+}
@@ -0,0 +1,76 @@
+package com.bytetech.robotics.benchmarks;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.bytetech.robotics.interfaces.SimulatedCommandLink;
+import com.bytetech.robotics.interfaces.SimulatedDeviceInterface;
+
+/**
+ * {@code DeviceInterface.executeCommand} against pipelined {@code submitCommand} over a simulated
+ * link, per command. With a one-way latency well above the device's service time the pipelined
+ * score should approach the service time, and the blocking score the full round trip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceInterfaceBenchmark {
+    private static final int BURST = 8;
+
+    @Param({"0", "50", "500"})
+    public int latencyMicros;
+
+    private SimulatedDeviceInterface blocking;
+    private SimulatedDeviceInterface pipelined;
+    private final CompletableFuture<?>[] replies = new CompletableFuture<?>[BURST];
+
+    @Setup
+    public void setup() {
+        blocking = new SimulatedDeviceInterface(link(), 1);
+        pipelined = new SimulatedDeviceInterface(link(), BURST);
+        blocking.connect();
+        pipelined.connect();
+    }
+
+    private SimulatedCommandLink link() {
+        return new SimulatedCommandLink(command -> command, Duration.of(latencyMicros, ChronoUnit.MICROS),
+                Duration.ZERO, Duration.of(5, ChronoUnit.MICROS));
+    }
+
+    @TearDown
+    public void tearDown() {
+        blocking.disconnect();
+        pipelined.disconnect();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public Object executeCommand() {
+        Object reply = null;
+        for (int i = 0; i < BURST; i++) {
+            reply = blocking.executeCommand(i);
+        }
+        return reply;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public Object submitCommand() {
+        for (int i = 0; i < BURST; i++) {
+            replies[i] = pipelined.submitCommand(i);
+        }
+        return CompletableFuture.allOf(replies).join();
+    }
+}
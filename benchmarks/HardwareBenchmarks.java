@@ -0,0 +1,230 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot paths that live in the default package, which JMH cannot generate harnesses for: button
+ * event delivery, GPIO bank reads (also through a trace recorder), output pin toggles through the
+ * pin registry, the LCD identification match, BitHandler-style report submission, and SPI and
+ * serial transfers over the simulated backends. Each case runs warm-up rounds and then timed
+ * rounds of about a second and prints the mean and best ns/op, e.g.
+ *
+ * <pre>java -cp out HardwareBenchmarks [filter]</pre>
+ *
+ * Scores are only comparable between runs on the same machine.
+ */
+public class HardwareBenchmarks {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final long ROUND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    interface Case {
+        /**
+         * Runs {@code ops} operations and returns something derived from them so the JIT cannot
+         * drop the work.
+         */
+        long run(int ops) throws Exception;
+    }
+
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+
+        BenchButtonSource buttons = new BenchButtonSource();
+        buttons.addButtonEventListener(event -> sink += event.getButtonId());
+        measure(filter, "buttonEvent.fire", ops -> {
+            for (int i = 0; i < ops; i++) {
+                buttons.fire(i & 7, (i & 8) != 0, i);
+            }
+            return ops;
+        });
+        measure(filter, "buttonEvent.scan8Edges", ops -> {
+            for (int i = 0; i < ops; i++) {
+                buttons.scan((i & 1) != 0 ? 0xFFL : 0L, i);
+            }
+            return ops;
+        });
+
+        SimulatedGPIOAdapter gpio = new SimulatedGPIOAdapter(Duration.ZERO);
+        for (int pin = 0; pin < 16; pin++) {
+            gpio.setEdgeRate(pin, 10_000);
+        }
+        measure(filter, "gpio.readBank16Toggling", ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += gpio.readBank();
+            }
+            return acc;
+        });
+        measure(filter, "gpio.readPinState", ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += gpio.readPinState(i & 15) ? 1 : 0;
+            }
+            return acc;
+        });
+
+        PinRegistry pins = new PinRegistry(new MockPinBackend());
+        OutputPinHandle led = pins.output(1, "LED", false);
+        measure(filter, "pins.toggleHandle", ops -> {
+            for (int i = 0; i < ops; i++) {
+                led.toggle();
+            }
+            return led.isHigh() ? 1 : 0;
+        });
+        measure(filter, "pins.toggleLookup", ops -> {
+            for (int i = 0; i < ops; i++) {
+                pins.output(1, "LED", false).toggle();
+            }
+            return led.isHigh() ? 1 : 0;
+        });
+
+        Path traceFile = Files.createTempFile("bench", ".trc");
+        try (TraceWriter trace = new TraceWriter(traceFile, 64 << 20)) {
+            RecordingGPIOAdapter recording = new RecordingGPIOAdapter(gpio, trace);
+            measure(filter, "gpio.readBank16TogglingRecorded", ops -> {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += recording.readBank();
+                }
+                return acc;
+            });
+        } finally {
+            Files.delete(traceFile);
+        }
+
+        ByteBuffer identification = ByteBuffer.allocateDirect(64);
+        identification.put("\0\0[SSD1306-128x64]: rev 3\0\0".getBytes(StandardCharsets.US_ASCII)).flip();
+        measure(filter, "lcd.extractPattern", ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += LCDControl.extractPattern(new AsciiSequence(identification.duplicate()),
+                        LCDControl.DISPLAY_MODEL_PATTERN).length();
+            }
+            return acc;
+        });
+
+        SimulatedReportSender collector = new SimulatedReportSender(Duration.ofMillis(2), 0.05);
+        ErrorReportPipeline reports = new ErrorReportPipeline(collector, 1 << 16, 500,
+                TimeUnit.MILLISECONDS.toNanos(50), 3, TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(20));
+        reports.start();
+        measure(filter, "bitHandler.submitReport", ops -> {
+            long accepted = 0;
+            for (int i = 0; i < ops; i++) {
+                accepted += reports.submit(new ErrorReport(i, "bits", "010011")) ? 1 : 0;
+            }
+            return accepted;
+        });
+        reports.stop();
+
+        SpiTransferChannel spi = new SpiTransferChannel(new SimulatedSpiBackend(Duration.of(20, ChronoUnit.MICROS), 8_000_000),
+                new DirectBufferPool(16, 32));
+        ByteBuffer[] tx = new ByteBuffer[8];
+        ByteBuffer[] rx = new ByteBuffer[8];
+        for (int i = 0; i < tx.length; i++) {
+            tx[i] = spi.acquireBuffer();
+            rx[i] = spi.acquireBuffer();
+        }
+        SpiTransferChannel.Batch batch = spi.newBatch(tx.length);
+        measure(filter, "spi.8TransfersSingly", ops -> {
+            for (int i = 0; i < ops; i++) {
+                for (int j = 0; j < tx.length; j++) {
+                    tx[j].clear();
+                    rx[j].clear();
+                    spi.transfer(tx[j], rx[j]);
+                }
+            }
+            return spi.getTransferCount();
+        });
+        measure(filter, "spi.8TransfersBatched", ops -> {
+            for (int i = 0; i < ops; i++) {
+                for (int j = 0; j < tx.length; j++) {
+                    tx[j].clear();
+                    rx[j].clear();
+                    batch.add(tx[j], rx[j]);
+                }
+                spi.submit(batch);
+            }
+            return spi.getTransferCount();
+        });
+
+        SimulatedSerialLink serial = new SimulatedSerialLink(1_000_000, Duration.of(100, ChronoUnit.MICROS));
+        serial.startEcho();
+        Semaphore echoed = new Semaphore(0);
+        SerialTransport transport = new SerialTransport("simulated", serial.hostInput(), serial.hostOutput(),
+                frame -> echoed.release(), 64, 4096, 256, TimeUnit.MICROSECONDS.toNanos(50));
+        transport.start();
+        byte[] frame = new byte[32];
+        measure(filter, "serial.32ByteRoundTrip1Mbaud", ops -> {
+            for (int i = 0; i < ops; i++) {
+                frame[0] = (byte) i;
+                transport.send(frame, 0, frame.length, 1, TimeUnit.SECONDS);
+                if (!echoed.tryAcquire(1, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Echo lost");
+                }
+            }
+            return transport.getFramesReceived();
+        });
+        transport.stop();
+
+        System.out.println("(sink " + sink + ")");
+    }
+
+    private static void measure(String filter, String name, Case benchmark) throws Exception {
+        if (!name.contains(filter)) {
+            return;
+        }
+        // Size a round from a short probe, then keep the count fixed so rounds are comparable
+        int ops = 1;
+        long probe;
+        while ((probe = time(benchmark, ops)) < ROUND_NANOS / 20 && ops < (1 << 30)) {
+            ops *= 2;
+        }
+        ops = (int) Math.max(1, Math.min(Integer.MAX_VALUE, ops * (ROUND_NANOS / Math.max(probe, 1))));
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            time(benchmark, ops);
+        }
+        double total = 0;
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            double perOp = (double) time(benchmark, ops) / ops;
+            total += perOp;
+            best = Math.min(best, perOp);
+        }
+        System.out.printf("%-32s %12.1f ns/op (best %.1f, %d ops/round)%n", name, total / ROUNDS, best, ops);
+    }
+
+    private static long time(Case benchmark, int ops) throws Exception {
+        long start = System.nanoTime();
+        sink += benchmark.run(ops);
+        return System.nanoTime() - start;
+    }
+
+    private static final class BenchButtonSource extends AbstractButtonSource {
+        BenchButtonSource() {
+            for (int buttonId = 0; buttonId < 8; buttonId++) {
+                watchButton(buttonId);
+            }
+        }
+
+        void fire(int buttonId, boolean pressed, long timestampNanos) {
+            fireButtonEvent(buttonId, pressed, timestampNanos);
+        }
+
+        @Override
+        public void initialize(GPIOPinAdapter gpioAdapter) {
+            this.gpioAdapter = gpioAdapter;
+        }
+
+        @Override
+        public String getButtonName(int buttonId) {
+            return "BENCH" + buttonId;
+        }
+    }
+}
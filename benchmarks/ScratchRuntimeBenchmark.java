@@ -0,0 +1,122 @@
+package com.bytetech.robotics.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.bytetech.robotics.interfaces.Interfaces.DeviceInterface;
+import com.bytetech.robotics.interfaces.ScratchBlock;
+import com.bytetech.robotics.interfaces.ScratchProgram;
+import com.bytetech.robotics.interfaces.ScratchRuntime;
+
+/**
+ * Cost of one scheduler frame on two sample projects: a line follower (eight sprites each polling
+ * a sensor variable and steering motors every frame) and a counting exercise (32 sprites looping
+ * over arithmetic with no device calls). Divide by {@link ScratchRuntime#getInstructionCount()} per
+ * frame for instruction throughput; frame jitter is only meaningful on the live scheduler, where
+ * the runtime reports it itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScratchRuntimeBenchmark {
+    private static final DeviceInterface DEVICE = new DeviceInterface() {
+        private final CompletableFuture<Object> ok = CompletableFuture.completedFuture("ok");
+
+        @Override
+        public void connect() {}
+
+        @Override
+        public void disconnect() {}
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public Object executeCommand(Object command) {
+            return "ok";
+        }
+
+        @Override
+        public CompletableFuture<Object> submitCommand(Object command) {
+            return ok;
+        }
+    };
+
+    @Param({"lineFollower", "counting"})
+    public String project;
+
+    private ScratchRuntime runtime;
+    private long now;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        List<List<ScratchBlock>> scripts = project.equals("lineFollower") ? lineFollower(8) : counting(32);
+        runtime = new ScratchRuntime(ScratchProgram.compile(scripts), DEVICE, (name, args) -> name, Runnable::run,
+                30, 10_000);
+        runtime.greenFlag();
+    }
+
+    @Benchmark
+    public int frame() {
+        now += 33_333_333L;
+        return runtime.runFrame(now);
+    }
+
+    @Benchmark
+    public void compile(Blackhole blackhole) {
+        blackhole.consume(ScratchProgram.compile(project.equals("lineFollower") ? lineFollower(8) : counting(32)));
+    }
+
+    static List<List<ScratchBlock>> lineFollower(int sprites) {
+        List<List<ScratchBlock>> scripts = new ArrayList<>();
+        for (int i = 0; i < sprites; i++) {
+            ScratchBlock sensor = ScratchBlock.of("data_variable", "sensor" + i);
+            ScratchBlock error = ScratchBlock.of("data_variable", "error" + i);
+            scripts.add(ScratchBlock.stack(
+                    ScratchBlock.of("control_forever", ScratchBlock.stack(
+                            ScratchBlock.of("data_changevariableby", "sensor" + i, 7),
+                            ScratchBlock.of("data_setvariableto", "sensor" + i,
+                                    ScratchBlock.of("operator_mod", sensor, 100)),
+                            ScratchBlock.of("data_setvariableto", "error" + i,
+                                    ScratchBlock.of("operator_subtract", sensor, 50)),
+                            ScratchBlock.of("control_if_else", ScratchBlock.of("operator_lt", error, 0),
+                                    ScratchBlock.stack(ScratchBlock.of("robot_send", "MOTOR", 1,
+                                            ScratchBlock.of("operator_multiply", error, -2))),
+                                    ScratchBlock.stack(ScratchBlock.of("robot_send", "MOTOR", 2,
+                                            ScratchBlock.of("operator_multiply", error, 2))))))));
+        }
+        return scripts;
+    }
+
+    static List<List<ScratchBlock>> counting(int sprites) {
+        List<List<ScratchBlock>> scripts = new ArrayList<>();
+        for (int i = 0; i < sprites; i++) {
+            String name = "total" + i;
+            ScratchBlock total = ScratchBlock.of("data_variable", name);
+            scripts.add(ScratchBlock.stack(
+                    ScratchBlock.of("control_forever", ScratchBlock.stack(
+                            ScratchBlock.of("data_setvariableto", name, 0),
+                            ScratchBlock.of("control_repeat", 100, ScratchBlock.stack(
+                                    ScratchBlock.of("data_changevariableby", name,
+                                            ScratchBlock.of("operator_add",
+                                                    ScratchBlock.of("operator_multiply", total, 3), 1)),
+                                    ScratchBlock.of("data_setvariableto", name,
+                                            ScratchBlock.of("operator_mod", total, 1000))))))));
+        }
+        return scripts;
+    }
+}
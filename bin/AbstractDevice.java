@@ -1,6 +1,8 @@
-public abstract class AbstractDevice {
+public abstract class AbstractDevice implements Comparable<AbstractDevice> {
     protected String name;
     protected Api api;
+    // Device node the hardware is attached at, from the optional <name>.port property
+    protected String busPath;
 
     public AbstractDevice(String name) {
         this.name = name;
@@ -8,11 +10,28 @@ public abstract class AbstractDevice {
 
     public void initialize(Properties properties, String deviceName) {
         this.name = deviceName;
+        this.busPath = properties.getProperty(deviceName + ".port");
         // Perform initialization tasks
 
       Initialize intitialize;
     }
 
+    public String getBusPath() {
+        return busPath;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Devices sort by name, which is unique within a configuration.
+     */
+    @Override
+    public int compareTo(AbstractDevice other) {
+        return name.compareTo(other.name);
+    }
+
     public abstract void connect();
 
     public abstract void disconnect();
@@ -1,25 +1,44 @@
 import com.pi4j.io.gpio.GpioFactory;
-import com.pi4j.io.gpio.Pin;
 import com.pi4j.io.gpio.PinState;
-import com.pi4j.io.gpio.RaspiPin;
-import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
-import com.pi4j.io.gpio.event.GpioPinListenerDigital;
 import com.pi4j.wiringpi.Gpio;
 import com.fazecast.jSerialComm.SerialPort;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 public class AdaptersAndControllers {
 
+    private static final int LED_PIN = 1;
+    private static final int BUTTON_PIN = 0;
+    private static final int USB_MAX_FRAME_SIZE = 256;
+
+    // Pins are provisioned once here and shared with the button sources. The registry is created
+    // on first use, after initComponents has installed the GPIO provider.
+    private static PinRegistry pins;
+
     public static void main(String[] args) {
         initComponents();
         registerListeners();
+        Runtime.getRuntime().addShutdownHook(new Thread(getPins()::shutdown, "pin-registry-shutdown"));
 
         // Demonstrate USB Serial Communications
         SerialPort usbPort = SerialPort.getCommPort("COM1");
         usbPort.openPort();
-        usbPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 1000, 0);
+        usbPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, 0, 0);
+        SerialTransport usb = new SerialTransport("COM1", Channels.newChannel(usbPort.getInputStream()),
+                Channels.newChannel(usbPort.getOutputStream()),
+                frame -> System.out.println("USB frame of " + frame.remaining() + " bytes"),
+                USB_MAX_FRAME_SIZE, 4096, 256, TimeUnit.MILLISECONDS.toNanos(2));
+        usb.start();
 
         // Send data to USB
-        usbPort.writeBytes("\nHello USB!\n".getBytes());
+        byte[] hello = "Hello USB!".getBytes(StandardCharsets.US_ASCII);
+        try {
+            usb.send(hello, 0, hello.length, 1, TimeUnit.SECONDS);
+            usb.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         usbPort.closePort();
     }
 
@@ -27,22 +46,26 @@ public class AdaptersAndControllers {
         // Initialize the GPIO library
         GpioFactory.setDefaultProvider(new RaspiGpioProvider());
 
-        // Provision pins
-        Pin ledPin = RaspiPin.GPIO_01;
-        Pin btnPin = RaspiPin.GPIO_00;
-
         // Setup the LED pin as OUTPUT
-        GpioFactory.getInstance().provisionDigitalOutputPin(ledPin, "LED", PinState.LOW);
+        getPins().output(LED_PIN, "LED", false);
+    }
+
+    public static synchronized PinRegistry getPins() {
+        if (pins == null) {
+            pins = new PinRegistry(new Pi4jPinBackend());
+        }
+        return pins;
     }
 
     private static void registerListeners() {
         // Register a listener to react to the button pin state change
-        GpioFactory.getInstance().provisionDigitalInputPin(RaspiPin.GPIO_00, PinPullResistance.PULL_DOWN).addListener(new GpioPinListenerDigital() {
+        final OutputPinHandle led = getPins().output(LED_PIN, "LED", false);
+        getPins().input(BUTTON_PIN, "Button").addStateListener(new PinStateListener() {
             @Override
-            public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
-                System.out.println("Button state changed to " + event.getState());
-                if (event.getState() == PinState.HIGH) {
-                    GpioFactory.getInstance().provisionDigitalOutputPin(RaspiPin.GPIO_01, "LED").toggle();
+            public void onPinStateChanged(int pinNumber, boolean high) {
+                System.out.println("Button state changed to " + PinState.getState(high));
+                if (high) {
+                    led.toggle();
                 }
             }
         });
@@ -54,6 +77,7 @@ private static class Init {
   import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.SerialWriter;
+import java.nio.ByteBuffer;
 import com.pi4j.io.serial.Serial;
 import com.pi4j.io.serial.SerialFactory;
 import com.pi4j.io.spi.SpiDevice;
@@ -71,6 +95,7 @@ public class Main {
         // Initialise SPI Connection
         SpiDevice spi = SpiFactory.getInstance().createDevice(0, 500000);
         spi.setChipSelectActiveHigh(true);
+        SpiTransferChannel spiChannel = new SpiTransferChannel(new Pi4jSpiBackend(spi), new DirectBufferPool(2, 16));
 
         // Output Debug Information
         writer.println("=== DEBUG INFO BEGIN ===");
@@ -78,18 +103,23 @@ public class Main {
         writer.flush();
 
         // Read SPI Data
-        byte[] rx = new byte[1];
-        spi.write(new byte[]{0x01}, rx);
+        ByteBuffer tx = spiChannel.acquireBuffer();
+        ByteBuffer rx = spiChannel.acquireBuffer();
+        tx.put((byte) 0x01).flip();
+        spiChannel.transfer(tx, rx);
+        rx.flip();
         writer.print("SPI Data: ");
-        for (byte b : rx) {
-            writer.print(Integer.toHexString(b & 0xff));
+        while (rx.hasRemaining()) {
+            writer.print(Integer.toHexString(rx.get() & 0xff));
         }
         writer.println();
+        spiChannel.releaseBuffer(tx);
+        spiChannel.releaseBuffer(rx);
 
         // Cleanup
         writer.println("=== DEBUG INFO END ===");
         serial.close();
-        spi.close();
+        spiChannel.close();
     }
   }
 }
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public interface HotplugListener {
+    void onDeviceAdded(String busPath);
+    void onDeviceRemoved(String busPath);
+}
+
+/**
+ * Watches device directories (for example {@code /dev} for {@code ttyACM*} and the sysfs USB tree
+ * for {@code *.udev}) and reports devices that appear or disappear. Directories that support
+ * inotify, such as {@code /dev}, wake the watcher at once; sysfs does not, so every directory is
+ * also re-listed and diffed each period. A device whose node was recreated (new inode) is
+ * reported as removed and then added; timestamp updates on a node that stays put are ignored.
+ *
+ * <p>The first scan only records what is already present; initial discovery is left to the
+ * caller.
+ */
+public class DeviceHotplugWatcher implements Runnable {
+    private static final Logger logger = Logger.getLogger(DeviceHotplugWatcher.class.getName());
+
+    private static final class WatchedDirectory {
+        final Path directory;
+        final String glob;
+
+        WatchedDirectory(Path directory, String glob) {
+            this.directory = directory;
+            this.glob = glob;
+        }
+    }
+
+    private final List<WatchedDirectory> directories = new CopyOnWriteArrayList<>();
+    private final List<HotplugListener> listeners = new CopyOnWriteArrayList<>();
+    private final long periodMillis;
+
+    private Map<String, Long> knownDevices;
+    private volatile boolean running;
+    private Thread watcherThread;
+    private WatchService watchService;
+
+    public DeviceHotplugWatcher(long periodMillis) {
+        this.periodMillis = periodMillis;
+    }
+
+    public DeviceHotplugWatcher watch(Path directory, String glob) {
+        directories.add(new WatchedDirectory(directory, glob));
+        return this;
+    }
+
+    public void addHotplugListener(HotplugListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeHotplugListener(HotplugListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Lists every watched directory once and reports the differences from the previous scan.
+     */
+    public synchronized void scan() {
+        Map<String, Long> current = new HashMap<>();
+        for (WatchedDirectory watched : directories) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(watched.directory, watched.glob)) {
+                for (Path entry : entries) {
+                    Long inode = DisplayDiscoveryCache.fingerprint(entry.toString());
+                    if (inode != null) {
+                        current.put(entry.toString(), inode);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.fine("Unable to list " + watched.directory + ": " + ex.getMessage());
+            }
+        }
+
+        Map<String, Long> previous = knownDevices;
+        knownDevices = current;
+        if (previous == null) {
+            return;
+        }
+        for (Map.Entry<String, Long> known : previous.entrySet()) {
+            Long now = current.get(known.getKey());
+            if (now == null || !now.equals(known.getValue())) {
+                fireDeviceRemoved(known.getKey());
+            }
+        }
+        for (Map.Entry<String, Long> device : current.entrySet()) {
+            Long before = previous.get(device.getKey());
+            if (before == null || !before.equals(device.getValue())) {
+                fireDeviceAdded(device.getKey());
+            }
+        }
+    }
+
+    private void fireDeviceAdded(String busPath) {
+        for (HotplugListener listener : listeners) {
+            try {
+                listener.onDeviceAdded(busPath);
+            } catch (RuntimeException ex) {
+                logger.warning("Hotplug listener failed for " + busPath + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private void fireDeviceRemoved(String busPath) {
+        for (HotplugListener listener : listeners) {
+            try {
+                listener.onDeviceRemoved(busPath);
+            } catch (RuntimeException ex) {
+                logger.warning("Hotplug listener failed for " + busPath + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        for (WatchedDirectory watched : directories) {
+            try {
+                watched.directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException | UnsupportedOperationException ex) {
+                // Falls back to the periodic diff for this directory
+                logger.fine("No change notification for " + watched.directory + ": " + ex.getMessage());
+            }
+        }
+        scan();
+        running = true;
+        watcherThread = new Thread(this, "device-hotplug-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = watcherThread;
+            watcherThread = null;
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                logger.warning("Unable to close watch service: " + ex.getMessage());
+            }
+        }
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                WatchKey key = watchService.poll(periodMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                scan();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+        }
+    }
+}
+
+class DeviceHotplugWatcherTest {
+    private Path devices;
+    private DeviceHotplugWatcher watcher;
+    private List<String> events;
+
+    @Before
+    public void setup() throws IOException {
+        devices = Files.createTempDirectory("dev");
+        Files.createFile(devices.resolve("ttyACM0"));
+        events = new ArrayList<>();
+        watcher = new DeviceHotplugWatcher(50).watch(devices, "tty{USB,ACM}*");
+        watcher.addHotplugListener(new HotplugListener() {
+            @Override
+            public void onDeviceAdded(String busPath) {
+                synchronized (events) {
+                    events.add("+" + Paths.get(busPath).getFileName());
+                }
+            }
+
+            @Override
+            public void onDeviceRemoved(String busPath) {
+                synchronized (events) {
+                    events.add("-" + Paths.get(busPath).getFileName());
+                }
+            }
+        });
+        // The first scan only records what is already there
+        watcher.scan();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.stop();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(devices)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(devices);
+    }
+
+    @Test
+    public void testAddedAndRemovedNodesAreReported() throws IOException {
+        assertTrue(events.isEmpty());
+        Files.createFile(devices.resolve("ttyUSB0"));
+        Files.createFile(devices.resolve("sda1"));
+        Files.delete(devices.resolve("ttyACM0"));
+        watcher.scan();
+        assertEquals(2, events.size());
+        assertEquals("-ttyACM0", events.get(0));
+        assertEquals("+ttyUSB0", events.get(1));
+    }
+
+    @Test
+    public void testRecreatedNodeIsRemovedThenAdded() throws IOException {
+        // Created before the old node goes away, so it is certain to get another inode
+        Path replugged = Files.createFile(devices.resolve("ttyACM0.new"));
+        Files.move(replugged, devices.resolve("ttyACM0"), StandardCopyOption.REPLACE_EXISTING);
+        watcher.scan();
+        assertEquals(2, events.size());
+        assertEquals("-ttyACM0", events.get(0));
+        assertEquals("+ttyACM0", events.get(1));
+    }
+
+    @Test
+    public void testTimestampChangesAreIgnored() throws IOException {
+        Files.setLastModifiedTime(devices.resolve("ttyACM0"), FileTime.fromMillis(0L));
+        watcher.scan();
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testRunningWatcherReportsNewNodes() throws Exception {
+        watcher.start();
+        Files.createFile(devices.resolve("ttyUSB1"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (System.nanoTime() < deadline) {
+            synchronized (events) {
+                if (events.contains("+ttyUSB1")) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        synchronized (events) {
+            assertEquals(1, events.size());
+            assertEquals("+ttyUSB1", events.get(0));
+        }
+    }
+}
@@ -0,0 +1,551 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Creates devices of one class without reflection. Registered through
+ * {@code META-INF/services/DeviceFactory}; classes without a factory fall back to their
+ * {@code (String name)} or no-arg constructor.
+ */
+public interface DeviceFactory {
+    String getDeviceClassName();
+
+    AbstractDevice create(String name);
+}
+
+/**
+ * Connection outcome of one device, as reported by {@link DeviceLifecycleManager}.
+ */
+public final class DeviceTiming {
+    public enum State {
+        CONNECTED,
+        FAILED,
+        TIMED_OUT,
+        // A device it depends on did not connect
+        SKIPPED,
+        DISCONNECTED
+    }
+
+    private final String deviceName;
+    private final State state;
+    private final long elapsedNanos;
+    private final Throwable cause;
+
+    DeviceTiming(String deviceName, State state, long elapsedNanos, Throwable cause) {
+        this.deviceName = deviceName;
+        this.state = state;
+        this.elapsedNanos = elapsedNanos;
+        this.cause = cause;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public Throwable getCause() {
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+        return deviceName + ": " + state + " in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms"
+                + (cause != null ? " (" + cause + ")" : "");
+    }
+}
+
+/**
+ * Brings the configured devices up and down. Each {@code <name>.device=<class>} property names a
+ * device; {@code <name>.dependsOn=a,b} makes it wait for those devices, and
+ * {@code <name>.connectTimeoutMillis} bounds its connect. Devices that do not depend on each
+ * other connect concurrently, and shutdown runs in parallel in reverse dependency order. Devices
+ * that depend on one that failed to load, connect or time out are {@code SKIPPED}.
+ *
+ * <p>A connect that times out is reported but cannot be cancelled; the device's thread is left
+ * to finish on its own and the device is treated as not connected. At shutdown such a device is
+ * given another connect timeout to finish and is then disconnected anyway, so nothing it opened
+ * late is left behind.
+ */
+public class DeviceLifecycleManager {
+    private static final Logger logger = Logger.getLogger(DeviceLifecycleManager.class.getName());
+
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    // Resolved once per class name and shared by every manager
+    private static final ConcurrentMap<String, MethodHandle> constructors = new ConcurrentHashMap<>();
+    private static volatile Map<String, DeviceFactory> serviceFactories;
+
+    private final Map<String, AbstractDevice> devices = new LinkedHashMap<>();
+    private final Map<String, List<String>> dependencies = new HashMap<>();
+    private final Map<String, Duration> connectTimeouts = new HashMap<>();
+    private final Map<String, DeviceTiming> timings = new ConcurrentHashMap<>();
+    // Configured devices whose class could not be created; their dependents are skipped
+    private final Set<String> failedToLoad = new HashSet<>();
+    // The connect call itself, which keeps running after its timeout is reported
+    private final Map<String, CompletableFuture<Void>> connectAttempts = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "device-lifecycle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates and initializes every device named in {@code properties}. Devices whose class
+     * cannot be loaded are logged and left out.
+     */
+    public void load(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.endsWith(".device")) {
+                continue;
+            }
+            String deviceName = key.substring(0, key.length() - ".device".length());
+            String className = properties.getProperty(key).trim();
+            try {
+                AbstractDevice device = create(className, deviceName);
+                device.initialize(properties, deviceName);
+                add(device, parseList(properties.getProperty(deviceName + ".dependsOn")),
+                        parseTimeout(properties.getProperty(deviceName + ".connectTimeoutMillis")));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                logger.warning("Error loading device " + deviceName + ": " + e.getMessage());
+                failedToLoad.add(deviceName);
+            }
+        }
+        checkDependencies();
+    }
+
+    public void add(AbstractDevice device, List<String> dependsOn, Duration connectTimeout) {
+        devices.put(device.name, device);
+        dependencies.put(device.name, dependsOn);
+        connectTimeouts.put(device.name, connectTimeout);
+    }
+
+    /**
+     * Instantiates {@code className} through its registered {@link DeviceFactory} or its cached
+     * constructor handle.
+     */
+    public static AbstractDevice create(String className, String deviceName) throws ReflectiveOperationException {
+        DeviceFactory factory = serviceFactories().get(className);
+        if (factory != null) {
+            return factory.create(deviceName);
+        }
+        MethodHandle constructor = constructors.get(className);
+        if (constructor == null) {
+            constructor = findConstructor(className);
+            constructors.putIfAbsent(className, constructor);
+        }
+        try {
+            return (AbstractDevice) constructor.invokeExact(deviceName);
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Unable to create " + className, t);
+        }
+    }
+
+    private static Map<String, DeviceFactory> serviceFactories() {
+        Map<String, DeviceFactory> factories = serviceFactories;
+        if (factories == null) {
+            factories = new HashMap<>();
+            for (DeviceFactory factory : ServiceLoader.load(DeviceFactory.class)) {
+                factories.put(factory.getDeviceClassName(), factory);
+            }
+            serviceFactories = factories;
+        }
+        return factories;
+    }
+
+    /**
+     * Returns a handle taking the device name: the {@code (String)} constructor if there is one,
+     * otherwise the no-arg constructor with the name argument dropped.
+     */
+    private static MethodHandle findConstructor(String className) throws ReflectiveOperationException {
+        Class<?> deviceClass = Class.forName(className);
+        if (!AbstractDevice.class.isAssignableFrom(deviceClass)) {
+            throw new ClassCastException(className + " is not an AbstractDevice");
+        }
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle constructor;
+        try {
+            constructor = lookup.findConstructor(deviceClass, MethodType.methodType(void.class, String.class));
+        } catch (NoSuchMethodException e) {
+            constructor = MethodHandles.dropArguments(
+                    lookup.findConstructor(deviceClass, MethodType.methodType(void.class)), 0, String.class);
+        }
+        return constructor.asType(MethodType.methodType(AbstractDevice.class, String.class));
+    }
+
+    /**
+     * Rejects dependencies on devices that are not configured at all, and cycles. A dependency on
+     * a device that is configured but failed to load is allowed; the dependent is skipped.
+     */
+    private void checkDependencies() {
+        for (Map.Entry<String, List<String>> entry : dependencies.entrySet()) {
+            for (String dependency : entry.getValue()) {
+                if (!devices.containsKey(dependency) && !failedToLoad.contains(dependency)) {
+                    throw new IllegalArgumentException(entry.getKey() + " depends on unknown device " + dependency);
+                }
+            }
+        }
+        Set<String> done = new HashSet<>();
+        for (String device : devices.keySet()) {
+            visit(device, new HashSet<>(), done);
+        }
+    }
+
+    private void visit(String device, Set<String> path, Set<String> done) {
+        if (done.contains(device)) {
+            return;
+        }
+        if (!path.add(device)) {
+            throw new IllegalArgumentException("Device dependency cycle through " + device);
+        }
+        for (String dependency : dependencies.get(device)) {
+            if (devices.containsKey(dependency)) {
+                visit(dependency, path, done);
+            }
+        }
+        path.remove(device);
+        done.add(device);
+    }
+
+    /**
+     * Connects every device, each as soon as the devices it depends on are up, and waits for all
+     * of them. Returns the devices that connected.
+     */
+    public List<AbstractDevice> connectAll() {
+        Map<String, CompletableFuture<Boolean>> connected = new HashMap<>();
+        for (String device : devices.keySet()) {
+            connectAfterDependencies(device, connected);
+        }
+        CompletableFuture.allOf(connected.values().toArray(new CompletableFuture<?>[0])).join();
+
+        List<AbstractDevice> result = new ArrayList<>();
+        for (AbstractDevice device : devices.values()) {
+            DeviceTiming timing = timings.get(device.name);
+            logger.info("Device " + timing);
+            if (timing.getState() == DeviceTiming.State.CONNECTED) {
+                result.add(device);
+            }
+        }
+        return result;
+    }
+
+    private CompletableFuture<Boolean> connectAfterDependencies(String name,
+            Map<String, CompletableFuture<Boolean>> connected) {
+        CompletableFuture<Boolean> existing = connected.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        if (failedToLoad.contains(name)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        List<CompletableFuture<Boolean>> before = new ArrayList<>();
+        for (String dependency : dependencies.get(name)) {
+            before.add(connectAfterDependencies(dependency, connected));
+        }
+        AbstractDevice device = devices.get(name);
+        CompletableFuture<Boolean> future = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(ignored -> {
+                    for (CompletableFuture<Boolean> dependency : before) {
+                        if (!dependency.join()) {
+                            timings.put(name, new DeviceTiming(name, DeviceTiming.State.SKIPPED, 0L, null));
+                            return CompletableFuture.completedFuture(false);
+                        }
+                    }
+                    return connect(device);
+                });
+        connected.put(name, future);
+        return future;
+    }
+
+    private CompletableFuture<Boolean> connect(AbstractDevice device) {
+        long start = System.nanoTime();
+        Duration timeout = connectTimeouts.get(device.name);
+        CompletableFuture<Void> attempt = CompletableFuture.runAsync(device::connect, executor);
+        connectAttempts.put(device.name, attempt);
+        // The timeout goes on a copy so the attempt itself still reports when connect returns
+        return attempt.copy()
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((ignored, failure) -> {
+                    long elapsed = System.nanoTime() - start;
+                    Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                    DeviceTiming.State state = cause == null ? DeviceTiming.State.CONNECTED
+                            : cause instanceof TimeoutException ? DeviceTiming.State.TIMED_OUT
+                            : DeviceTiming.State.FAILED;
+                    timings.put(device.name, new DeviceTiming(device.name, state, elapsed, cause));
+                    return cause == null;
+                });
+    }
+
+    /**
+     * Disconnects every connected device in parallel; a device is disconnected only after the
+     * devices that depend on it.
+     */
+    public void disconnectAll() {
+        Map<String, List<String>> dependents = new HashMap<>();
+        for (String device : devices.keySet()) {
+            dependents.computeIfAbsent(device, key -> new ArrayList<>());
+            for (String dependency : dependencies.get(device)) {
+                dependents.computeIfAbsent(dependency, key -> new ArrayList<>()).add(device);
+            }
+        }
+        Map<String, CompletableFuture<Void>> disconnected = new HashMap<>();
+        for (String device : devices.keySet()) {
+            disconnectAfterDependents(device, dependents, disconnected);
+        }
+        CompletableFuture.allOf(disconnected.values().toArray(new CompletableFuture<?>[0])).join();
+        executor.shutdown();
+    }
+
+    private CompletableFuture<Void> disconnectAfterDependents(String name, Map<String, List<String>> dependents,
+            Map<String, CompletableFuture<Void>> disconnected) {
+        CompletableFuture<Void> existing = disconnected.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        List<CompletableFuture<Void>> before = new ArrayList<>();
+        for (String dependent : dependents.get(name)) {
+            before.add(disconnectAfterDependents(dependent, dependents, disconnected));
+        }
+        AbstractDevice device = devices.get(name);
+        CompletableFuture<Void> future = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> {
+                    DeviceTiming timing = timings.get(name);
+                    if (timing == null || (timing.getState() != DeviceTiming.State.CONNECTED
+                            && timing.getState() != DeviceTiming.State.TIMED_OUT)) {
+                        return;
+                    }
+                    if (timing.getState() == DeviceTiming.State.TIMED_OUT && !awaitLateConnect(name)) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        device.disconnect();
+                        timings.put(name, new DeviceTiming(name, DeviceTiming.State.DISCONNECTED,
+                                System.nanoTime() - start, null));
+                    } catch (RuntimeException e) {
+                        logger.warning("Unable to disconnect " + name + ": " + e.getMessage());
+                    }
+                }, executor);
+        disconnected.put(name, future);
+        return future;
+    }
+
+    /**
+     * Gives a connect that timed out one more timeout to finish. Returns {@code false} only if it
+     * finished by failing, in which case there is nothing to disconnect.
+     */
+    private boolean awaitLateConnect(String name) {
+        CompletableFuture<Void> attempt = connectAttempts.get(name);
+        try {
+            attempt.get(connectTimeouts.get(name).toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            logger.warning("Device " + name + " is still connecting at shutdown; disconnecting it anyway");
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    public Collection<AbstractDevice> getDevices() {
+        return devices.values();
+    }
+
+    public AbstractDevice getDevice(String name) {
+        return devices.get(name);
+    }
+
+    /**
+     * The latest connect or disconnect outcome of each device.
+     */
+    public List<DeviceTiming> getTimings() {
+        List<DeviceTiming> result = new ArrayList<>();
+        for (String device : devices.keySet()) {
+            DeviceTiming timing = timings.get(device);
+            if (timing != null) {
+                result.add(timing);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> parseList(String value) {
+        List<String> result = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    result.add(item.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Duration parseTimeout(String value) {
+        return value == null ? DEFAULT_CONNECT_TIMEOUT : Duration.ofMillis(Long.parseLong(value.trim()));
+    }
+}
+
+class DeviceLifecycleManagerTest {
+    // Shared with devices created by class name, which cannot be handed a list
+    static final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void testDependenciesConnectFirstAndDisconnectLast() {
+        calls.clear();
+        DeviceLifecycleManager manager = new DeviceLifecycleManager();
+        manager.add(new StubDevice("arm", 0), Arrays.asList("bus"), Duration.ofSeconds(1));
+        manager.add(new StubDevice("bus", 20), Collections.emptyList(), Duration.ofSeconds(1));
+        assertEquals(2, manager.connectAll().size());
+        manager.disconnectAll();
+        assertEquals("[bus connect, bus connected, arm connect, arm connected, "
+                + "arm disconnect, arm disconnected, bus disconnect, bus disconnected]", calls.toString());
+        assertEquals(DeviceTiming.State.DISCONNECTED, manager.getTimings().get(1).getState());
+    }
+
+    @Test
+    public void testIndependentDevicesConnectConcurrently() {
+        calls.clear();
+        DeviceLifecycleManager manager = new DeviceLifecycleManager();
+        manager.add(new StubDevice("left", 200), Collections.emptyList(), Duration.ofSeconds(1));
+        manager.add(new StubDevice("right", 200), Collections.emptyList(), Duration.ofSeconds(1));
+        long start = System.nanoTime();
+        assertEquals(2, manager.connectAll().size());
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        manager.disconnectAll();
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 350);
+    }
+
+    @Test
+    public void testTimedOutDeviceSkipsDependentsAndIsStillDisconnected() {
+        calls.clear();
+        DeviceLifecycleManager manager = new DeviceLifecycleManager();
+        manager.add(new StubDevice("bus", 150), Collections.emptyList(), Duration.ofMillis(100));
+        manager.add(new StubDevice("arm", 0), Arrays.asList("bus"), Duration.ofSeconds(1));
+        assertEquals(0, manager.connectAll().size());
+        assertEquals(DeviceTiming.State.TIMED_OUT, manager.getTimings().get(0).getState());
+        assertEquals(DeviceTiming.State.SKIPPED, manager.getTimings().get(1).getState());
+
+        manager.disconnectAll();
+        assertEquals("[bus connect, bus connected, bus disconnect, bus disconnected]", calls.toString());
+        assertEquals(DeviceTiming.State.DISCONNECTED, manager.getTimings().get(0).getState());
+    }
+
+    @Test
+    public void testDependentsOfUnloadableDeviceAreSkipped() {
+        calls.clear();
+        Properties properties = new Properties();
+        properties.setProperty("bus.device", "NoSuchDevice");
+        properties.setProperty("arm.device", StubDevice.class.getName());
+        properties.setProperty("arm.dependsOn", "bus");
+        DeviceLifecycleManager manager = new DeviceLifecycleManager();
+        manager.load(properties);
+        assertEquals(0, manager.connectAll().size());
+        assertEquals(DeviceTiming.State.SKIPPED, manager.getTimings().get(0).getState());
+        manager.disconnectAll();
+        assertEquals(0, calls.size());
+    }
+
+    @Test
+    public void testUnconfiguredDependencyIsRejected() {
+        Properties properties = new Properties();
+        properties.setProperty("arm.device", StubDevice.class.getName());
+        properties.setProperty("arm.dependsOn", "bus");
+        try {
+            new DeviceLifecycleManager().load(properties);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("unknown device bus"));
+        }
+    }
+
+    @Test
+    public void testDependencyCycleIsRejected() {
+        Properties properties = new Properties();
+        properties.setProperty("arm.device", StubDevice.class.getName());
+        properties.setProperty("arm.dependsOn", "bus");
+        properties.setProperty("bus.device", StubDevice.class.getName());
+        properties.setProperty("bus.dependsOn", "arm");
+        try {
+            new DeviceLifecycleManager().load(properties);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("cycle"));
+        }
+    }
+
+    static class StubDevice extends AbstractDevice {
+        private final long delayMillis;
+
+        StubDevice(String name) {
+            this(name, 0);
+        }
+
+        StubDevice(String name, long delayMillis) {
+            super(name);
+            this.delayMillis = delayMillis;
+        }
+
+        private void record(String call) {
+            calls.add(name + " " + call);
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            calls.add(name + " " + call + "ed");
+        }
+
+        @Override
+        public void connect() {
+            record("connect");
+        }
+
+        @Override
+        public void disconnect() {
+            record("disconnect");
+        }
+
+        @Override
+        public void sendCommand(String command) {}
+    }
+}
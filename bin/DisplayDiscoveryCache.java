@@ -0,0 +1,340 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Remembers discovered displays on disk so a warm restart can skip hardware probing. Each entry
+ * is stored with a fingerprint of its bus path (the serial or {@code spidev} device node, or the
+ * USB sysfs file): its inode, which
+ * changes when a device is unplugged and plugged back in but not when the kernel touches the
+ * node's timestamps. Bus paths whose probe answered but found no display are cached too. At
+ * startup only entries whose fingerprint changed, devices that are new, and probes that failed
+ * or timed out last time are probed again. Entries whose bus path is gone are dropped.
+ *
+ * <p>Displays restored from the cache carry no open {@code SerialPort} or {@code SpiDevice}; the
+ * caller opens the port on first use.
+ */
+public class DisplayDiscoveryCache {
+    private static final Logger logger = Logger.getLogger(DisplayDiscoveryCache.class.getName());
+
+    private static final int MAGIC = 0x4C434443; // "LCDC"
+    // 3: SPI displays are keyed by their spidev node instead of a per-run name
+    private static final int FORMAT_VERSION = 3;
+
+    private final Path cacheFile;
+    private final Path usbDevicesRoot;
+
+    private long hitCount;
+    private long probeCount;
+
+    public DisplayDiscoveryCache(Path cacheFile) {
+        this(cacheFile, LCDControl.DEFAULT_USB_DEVICES_ROOT);
+    }
+
+    public DisplayDiscoveryCache(Path cacheFile, Path usbDevicesRoot) {
+        this.cacheFile = cacheFile;
+        this.usbDevicesRoot = usbDevicesRoot;
+    }
+
+    private static final class Entry {
+        final long inode;
+        // null when the bus path was probed and holds no display
+        final LCDControl.DisplayDetails display;
+
+        Entry(long inode, LCDControl.DisplayDetails display) {
+            this.inode = inode;
+            this.display = display;
+        }
+    }
+
+    /**
+     * Returns the cached displays that are still valid plus whatever probing the changed and new
+     * devices finds, and writes the merged result back to the cache file.
+     */
+    public synchronized List<LCDControl.DisplayDetails> findDisplays(Duration deadline, Duration probeTimeout,
+            LCDControl.DiscoveryListener listener) {
+        Map<String, Entry> valid = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> cached : load().entrySet()) {
+            Long inode = fingerprint(cached.getKey());
+            if (inode != null && inode == cached.getValue().inode) {
+                valid.put(cached.getKey(), cached.getValue());
+            }
+        }
+
+        // Probes run concurrently, so both sets are filled from the probe threads
+        Set<String> probedPaths = ConcurrentHashMap.newKeySet();
+        Set<String> failedPaths = ConcurrentHashMap.newKeySet();
+        LCDControl.DiscoveryListener recorder = new LCDControl.DiscoveryListener() {
+            @Override
+            public void onDisplayFound(LCDControl.DisplayDetails display) {
+                if (listener != null) {
+                    listener.onDisplayFound(display);
+                }
+            }
+
+            @Override
+            public void onProbeFailed(String target, Throwable cause) {
+                failedPaths.add(target);
+                if (listener != null) {
+                    listener.onProbeFailed(target, cause);
+                }
+            }
+        };
+        List<LCDControl.DisplayDetails> probed = LCDControl.findDisplays(usbDevicesRoot, deadline, probeTimeout,
+                recorder, busPath -> !valid.containsKey(busPath) && probedPaths.add(busPath));
+
+        List<LCDControl.DisplayDetails> result = new ArrayList<>();
+        Map<String, Entry> updated = new LinkedHashMap<>(valid);
+        for (Entry entry : valid.values()) {
+            if (entry.display == null) {
+                continue;
+            }
+            result.add(entry.display);
+            if (listener != null) {
+                listener.onDisplayFound(entry.display);
+            }
+        }
+        Set<String> emptyPaths = new HashSet<>(probedPaths);
+        for (LCDControl.DisplayDetails display : probed) {
+            emptyPaths.remove(display.busPath);
+            Long inode = fingerprint(display.busPath);
+            if (inode != null) {
+                updated.put(display.busPath, new Entry(inode, display));
+            }
+            result.add(display);
+        }
+        // A failure or timeout may be transient, so only probes that answered are cached as empty
+        emptyPaths.removeAll(failedPaths);
+        for (String busPath : emptyPaths) {
+            Long inode = fingerprint(busPath);
+            if (inode != null) {
+                updated.put(busPath, new Entry(inode, null));
+            }
+        }
+        hitCount += valid.size();
+        probeCount += probedPaths.size();
+
+        try {
+            save(updated);
+        } catch (IOException ex) {
+            logger.warning("Unable to write display cache " + cacheFile + ": " + ex.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Drops the cache so the next lookup probes everything.
+     */
+    public synchronized void invalidate() throws IOException {
+        Files.deleteIfExists(cacheFile);
+    }
+
+    /**
+     * Returns the inode of a bus path, or {@code null} if the path is gone or the file system has
+     * no inodes, in which case the path is never cached.
+     */
+    static Long fingerprint(String busPath) {
+        if (busPath == null) {
+            return null;
+        }
+        try {
+            return ((Number) Files.getAttribute(Paths.get(busPath), "unix:ino")).longValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException ex) {
+            return null;
+        }
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        if (!Files.exists(cacheFile)) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != FORMAT_VERSION) {
+                logger.warning("Ignoring display cache " + cacheFile + " with an unknown format");
+                return entries;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String busPath = in.readUTF();
+                long inode = in.readLong();
+                if (!in.readBoolean()) {
+                    entries.put(busPath, new Entry(inode, null));
+                    continue;
+                }
+                String manufacturer = in.readUTF();
+                String modelName = in.readUTF();
+                LCDControl.DisplayType displayType = LCDControl.DisplayType.values()[in.readUnsignedByte()];
+                int usbProductId = in.readInt();
+                int usbVendorId = in.readInt();
+
+                LCDControl.DisplayDetails display = new LCDControl.DisplayDetails(manufacturer, modelName, null,
+                        displayType, null, null, null, usbProductId, usbVendorId);
+                display.busPath = busPath;
+                entries.put(busPath, new Entry(inode, display));
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.warning("Ignoring unreadable display cache " + cacheFile + ": " + ex.getMessage());
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void save(Map<String, Entry> entries) throws IOException {
+        Path parent = cacheFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporary = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+                Entry entry = cached.getValue();
+                LCDControl.DisplayDetails display = entry.display;
+                out.writeUTF(cached.getKey());
+                out.writeLong(entry.inode);
+                out.writeBoolean(display != null);
+                if (display == null) {
+                    continue;
+                }
+                out.writeUTF(display.manufacturer != null ? display.manufacturer : "");
+                out.writeUTF(display.modelName != null ? display.modelName : "");
+                out.writeByte(display.displayType.ordinal());
+                out.writeInt(display.usbProductId);
+                out.writeInt(display.usbVendorId);
+            }
+        }
+        // Rename so a crash mid-write never leaves a half written cache behind
+        Files.move(temporary, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getProbeCount() {
+        return probeCount;
+    }
+}
+
+class DisplayDiscoveryCacheTest {
+    private static final Duration DEADLINE = Duration.ofSeconds(2);
+
+    private Path usbDevicesRoot;
+    private Path cacheFile;
+
+    @Before
+    public void setup() throws IOException {
+        usbDevicesRoot = Files.createTempDirectory("usb-devices");
+        cacheFile = Files.createTempDirectory("display-cache").resolve("displays.bin");
+        writeUdev("1-1.udev", "0403", "6001");
+        // Too short to identify anything, so its probe answers with no display
+        Files.write(usbDevicesRoot.resolve("1-2.udev"), "N:ttyUSB1\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Path directory : new Path[] {usbDevicesRoot, cacheFile.getParent()}) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private Path writeUdev(String name, String vendorId, String productId) throws IOException {
+        String udev = "P:/devices/usb1\nN:ttyUSB0\nE:ID_VENDOR_ID=" + vendorId + "\nE:ID_MODEL_ID=" + productId + "\n";
+        return Files.write(usbDevicesRoot.resolve(name), udev.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String path(String name) {
+        return usbDevicesRoot.resolve(name).toString();
+    }
+
+    @Test
+    public void testWarmStartProbesNothing() {
+        DisplayDiscoveryCache cold = new DisplayDiscoveryCache(cacheFile, usbDevicesRoot);
+        List<LCDControl.DisplayDetails> found = cold.findDisplays(DEADLINE, DEADLINE, null);
+        assertEquals(1, found.size());
+        assertEquals(path("1-1.udev"), found.get(0).busPath);
+        assertEquals(2L, cold.getProbeCount());
+
+        DisplayDiscoveryCache warm = new DisplayDiscoveryCache(cacheFile, usbDevicesRoot);
+        found = warm.findDisplays(DEADLINE, DEADLINE, null);
+        assertEquals(1, found.size());
+        assertEquals(0x0403, found.get(0).usbVendorId);
+        // The display and the empty bus path both come from the cache
+        assertEquals(0L, warm.getProbeCount());
+        assertEquals(2L, warm.getHitCount());
+    }
+
+    @Test
+    public void testReplacedNodeIsProbedAgain() throws IOException {
+        new DisplayDiscoveryCache(cacheFile, usbDevicesRoot).findDisplays(DEADLINE, DEADLINE, null);
+
+        // A replug creates a new node, so the inode changes even if the contents look alike
+        Path replugged = writeUdev("replug.tmp", "1a86", "7523");
+        Files.move(replugged, usbDevicesRoot.resolve("1-2.udev"), StandardCopyOption.REPLACE_EXISTING);
+        writeUdev("1-3.udev", "10c4", "ea60");
+
+        DisplayDiscoveryCache warm = new DisplayDiscoveryCache(cacheFile, usbDevicesRoot);
+        List<LCDControl.DisplayDetails> found = warm.findDisplays(DEADLINE, DEADLINE, null);
+        assertEquals(3, found.size());
+        assertEquals(2L, warm.getProbeCount());
+        assertEquals(1L, warm.getHitCount());
+    }
+
+    @Test
+    public void testUnpluggedDisplayIsDropped() throws IOException {
+        new DisplayDiscoveryCache(cacheFile, usbDevicesRoot).findDisplays(DEADLINE, DEADLINE, null);
+        Files.delete(usbDevicesRoot.resolve("1-1.udev"));
+
+        DisplayDiscoveryCache warm = new DisplayDiscoveryCache(cacheFile, usbDevicesRoot);
+        assertEquals(0, warm.findDisplays(DEADLINE, DEADLINE, null).size());
+        assertEquals(1L, warm.getHitCount());
+
+        // A node created in its place is probed again rather than served from the cache
+        writeUdev("1-1.udev", "0403", "6001");
+        DisplayDiscoveryCache later = new DisplayDiscoveryCache(cacheFile, usbDevicesRoot);
+        assertEquals(1, later.findDisplays(DEADLINE, DEADLINE, null).size());
+        assertEquals(1L, later.getProbeCount());
+    }
+
+    @Test
+    public void testFingerprintIgnoresTimestamps() throws IOException {
+        Path node = usbDevicesRoot.resolve("1-1.udev");
+        Long before = DisplayDiscoveryCache.fingerprint(node.toString());
+        assertNotNull(before);
+        Files.setLastModifiedTime(node, FileTime.fromMillis(0L));
+        assertEquals(before, DisplayDiscoveryCache.fingerprint(node.toString()));
+        assertEquals(null, DisplayDiscoveryCache.fingerprint(path("missing.udev")));
+    }
+}
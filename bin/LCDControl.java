@@ -5,11 +5,13 @@ import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -17,7 +19,19 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.comm.CommPortIdentifier;
 import javax.comm.NoSuchPortException;
 import javax.comm.PortInUseException;
@@ -25,6 +39,7 @@ import javax.comm.SerialPort;
 import javax.comm.UnsupportedCommOperationException;
 import com.pi4j.io.spi.SpiChannel;
 import com.pi4j.io.spi.SpiDevice;
+import com.pi4j.io.spi.SpiFactory;
 import com.pi4j.wiringpi.Gpio;
 import com.pi4j.wiringpi.Serial;
 import com.pi4j.wiringpi.SoftwareSerial;
@@ -39,7 +54,7 @@ public class LCDControl {
         GRAPHICAL_DISPLAY
     }
 
-    private static class DisplayDetails {
+    public static class DisplayDetails {
         String manufacturer;
         String modelName;
         String currentText;
@@ -49,6 +64,8 @@ public class LCDControl {
         SoftwareSerial softwareSerial;
         int usbProductId;
         int usbVendorId;
+        // Device node or sysfs directory the display was found at, e.g. /dev/ttyUSB0
+        String busPath;
 
         DisplayDetails(String manufacturer, String modelName, String currentText, DisplayType displayType,
                 SerialPort serialPort, SpiDevice spiDevice, SoftwareSerial softwareSerial, int usbProductId,
@@ -65,111 +82,287 @@ public class LCDControl {
         }
     }
 
+    static final Pattern DISPLAY_MODEL_PATTERN = Pattern.compile("(?<=\\[)(.*?)(?=\\]:)");
+    private static final Pattern USB_VENDOR_ID_PATTERN = Pattern.compile("ID_VENDOR_ID=(\\p{XDigit}+)");
+    private static final Pattern USB_MODEL_ID_PATTERN = Pattern.compile("ID_MODEL_ID=(\\p{XDigit}+)");
+
+    // spidev<bus>.<chip select>; Pi4J opens chip selects on bus 0 only
+    private static final Pattern SPIDEV_PATTERN = Pattern.compile("spidev0\\.(\\d+)");
+
+    public static final Path DEFAULT_USB_DEVICES_ROOT = Paths.get("/sys/bus/usb/devices");
+    public static final Path DEFAULT_SPI_DEVICES_ROOT = Paths.get("/dev");
+    public static final Duration DEFAULT_DISCOVERY_DEADLINE = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_PROBE_TIMEOUT = Duration.ofSeconds(2);
+
+    // spidev's default bufsiz; probes run concurrently, so keep a few buffers per bus
+    private static final DirectBufferPool SPI_PROBE_BUFFERS = new DirectBufferPool(8, 4096);
+
+    /**
+     * Receives discovery results as each probe finishes, rather than when the whole scan is done.
+     */
+    public interface DiscoveryListener {
+        void onDisplayFound(DisplayDetails display);
+
+        void onProbeFailed(String target, Throwable cause);
+    }
+
     /**
      * Finds displays on available serial ports, USB devices, and SPI buses.
      */
     public static List<DisplayDetails> findDisplays() {
-        List<DisplayDetails> result = new ArrayList<>();
-
-        // Search for serial port displays
-        CommPortIdentifier[] ids = CommPortIdentifier.getPortIdentifiers();
-        while (ids != null && ids.length > 0) {
-            CommPortIdentifier id = ids[0];
-            ids = Arrays.copyOfRange(ids, 1, ids.length);
+        return findDisplays(DEFAULT_DISCOVERY_DEADLINE, DEFAULT_PROBE_TIMEOUT, null);
+    }
 
-            if (id.getPortType() != CommPortIdentifier.SERIAL_PORT) {
-                continue;
-            }
+    /**
+     * Probes every serial port, USB device and SPI bus concurrently. Each probe gets
+     * {@code probeTimeout}; whatever has not finished when {@code deadline} runs out is reported
+     * as failed, and the displays found so far are returned.
+     */
+    public static List<DisplayDetails> findDisplays(Duration deadline, Duration probeTimeout,
+            DiscoveryListener listener) {
+        return findDisplays(DEFAULT_USB_DEVICES_ROOT, deadline, probeTimeout, listener, busPath -> true);
+    }
 
-            try {
-                SerialPort serialPort = (SerialPort) id.open("LCDControl", 5000);
+    /**
+     * As {@link #findDisplays(Duration, Duration, DiscoveryListener)}, but USB devices are listed
+     * under {@code usbDevicesRoot} and only bus paths accepted by {@code shouldProbe} are probed.
+     */
+    public static List<DisplayDetails> findDisplays(Path usbDevicesRoot, Duration deadline, Duration probeTimeout,
+            DiscoveryListener listener, Predicate<String> shouldProbe) {
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        List<DisplayDetails> result = new CopyOnWriteArrayList<>();
+        Map<String, CompletableFuture<DisplayDetails>> probes = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "lcd-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-                BufferedReader reader = new BufferedReader(new InputStreamReader(serialPort.getInputStream()));
-                String line;
-                StringBuilder sb = new StringBuilder();
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line);
+        try {
+            // Search for serial port displays
+            CommPortIdentifier[] ids = CommPortIdentifier.getPortIdentifiers();
+            if (ids != null) {
+                for (CommPortIdentifier id : ids) {
+                    if (id.getPortType() == CommPortIdentifier.SERIAL_PORT && shouldProbe.test(id.getName())) {
+                        submitProbe(probes, id.getName(), () -> probeSerialPort(id, probeTimeout),
+                                executor, probeTimeout, result, listener);
+                    }
                 }
+            }
 
-                String decodedText = URLDecoder.decode(sb.toString(), "ASCII");
-                String displayModel = extractPattern(decodedText, "(?<=\\[)(.*?)(?=\\]:)");
-                if (displayModel == null) {
-                    logger.warning("Unable to parse display model from " + decodedText);
-                    continue;
+            // Search for USB devices
+            FileUtils.listFilesWithExtension(usbDevicesRoot, ".udev").forEach(usbFilePath -> {
+                String busPath = usbFilePath.toString();
+                if (shouldProbe.test(busPath)) {
+                    submitProbe(probes, busPath, () -> probeUsbDevice(usbFilePath),
+                            executor, probeTimeout, result, listener);
                 }
+            });
 
-                DisplayDetails display = new DisplayDetails("Unknown Manufacturer", displayModel, decodedText,
-                        DisplayType.TEXT_DISPLAY, serialPort, null, null, 0, 0);
-                result.add(display);
-
-            } catch (NoSuchPortException ex) {
-                logger.warning("No such port exception: " + ex.getMessage());
-            } catch (PortInUseException ex) {
-                logger.warning("Port already in use: " + ex.getMessage());
-            } catch (UnsupportedCommOperationException ex) {
-                logger.warning("Unsupported comm operation: " + ex.getMessage());
+            // Search for SPI displays; the spidev node is the bus path, so it is the same every run
+            try (DirectoryStream<Path> nodes = Files.newDirectoryStream(DEFAULT_SPI_DEVICES_ROOT, "spidev*")) {
+                for (Path node : nodes) {
+                    Matcher matcher = SPIDEV_PATTERN.matcher(node.getFileName().toString());
+                    SpiChannel channel = matcher.matches()
+                            ? SpiChannel.getByNumber(Integer.parseInt(matcher.group(1))) : null;
+                    String busPath = node.toString();
+                    if (channel != null && shouldProbe.test(busPath)) {
+                        submitProbe(probes, busPath, () -> probeSpiDevice(SpiFactory.getInstance(channel)),
+                                executor, probeTimeout, result, listener);
+                    }
+                }
             } catch (IOException ex) {
-                logger.warning("IO error: " + ex.getMessage());
+                logger.warning("Unable to list SPI devices in " + DEFAULT_SPI_DEVICES_ROOT + ": " + ex.getMessage());
             }
+
+            awaitProbes(probes, deadlineNanos);
+        } finally {
+            executor.shutdownNow();
         }
+        return new ArrayList<>(result);
+    }
 
-        // Search for USB devices
-        Path path = Paths.get("/sys/bus/usb/devices");
-        FileUtils.listFilesWithExtension(path, ".udev").forEach(usbFilePath -> {
+    private static void submitProbe(Map<String, CompletableFuture<DisplayDetails>> probes, String target,
+            Callable<DisplayDetails> probe, ExecutorService executor, Duration probeTimeout,
+            List<DisplayDetails> result, DiscoveryListener listener) {
+        CompletableFuture<DisplayDetails> future = new CompletableFuture<>();
+        executor.execute(() -> {
             try {
-                List<String> lines = Files.readAllLines(usbFilePath);
-                if (lines.isEmpty()) {
-                    return;
+                DisplayDetails display = probe.call();
+                if (!future.complete(display)) {
+                    // The probe timeout or the discovery deadline already failed this probe
+                    closeLateDisplay(target, display);
                 }
+            } catch (Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        future.orTimeout(probeTimeout.toMillis(), TimeUnit.MILLISECONDS);
 
-                int productId = Integer.parseInt(extractPattern(lines.get(2), "ID_VENDOR_ID=(.*?)"), 16);
-                int vendorId = Integer.parseInt(extractPattern(lines.get(3), "ID_MODEL_ID=(.*?)"), 16);
-
-                DisplayDetails display = new DisplayDetails("Unknown Manufacturer", "", "[USB]",
-                        DisplayType.UNKNOWN, null, null, null, productId, vendorId);
+        future.whenComplete((display, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                logger.warning("Probe of " + target + " failed: " + cause);
+                if (listener != null) {
+                    listener.onProbeFailed(target, cause);
+                }
+            } else if (display != null) {
+                display.busPath = target;
                 result.add(display);
-
-            } catch (IOException ex) {
-                logger.warning("IO error: " + ex.getMessage());
+                if (listener != null) {
+                    listener.onDisplayFound(display);
+                }
             }
         });
+        probes.put(target, future);
+    }
 
-        // Search for SPI displays
-        List<SpiDevice> spiDevices = SpiDevice.getSpiBuses();
-        spiDevices.forEach(spiDevice -> {
-            try {
-                byte[] buffer = new byte[spiDevice.getMaxTransferSize()];
-                spiDevice.transfer(buffer);
-
-                String decodedBuffer = new String(buffer, "ASCII");
-                String displayModel = extractPattern(decodedBuffer, "(?<=\\[)(.*?)(?=\\]:)");
-                if (displayModel == null) {
-                    logger.warning("Unable to parse display model from " + decodedBuffer);
-                    return;
-                }
+    /**
+     * Releases what a probe opened for a display that was identified after its probe had already
+     * been given up on, so the port is free for the next scan.
+     */
+    private static void closeLateDisplay(String target, DisplayDetails display) {
+        if (display == null) {
+            return;
+        }
+        logger.fine("Probe of " + target + " finished after its timeout; closing " + display.modelName);
+        if (display.serialPort != null) {
+            display.serialPort.close();
+        }
+    }
 
-                DisplayDetails display = new DisplayDetails("Unknown Manufacturer", displayModel, decodedBuffer,
-                        DisplayType.GRAPHICAL_DISPLAY, null, spiDevice, null, 0, 0);
-                result.add(display);
+    private static void awaitProbes(Map<String, CompletableFuture<DisplayDetails>> probes, long deadlineNanos) {
+        CompletableFuture<Void> all = CompletableFuture.allOf(probes.values().toArray(new CompletableFuture[0]));
+        try {
+            all.get(Math.max(0L, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            probes.forEach((target, future) ->
+                    future.completeExceptionally(new TimeoutException("Discovery deadline passed")));
+        } catch (ExecutionException ex) {
+            // Individual failures were already reported by their probes
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            } catch (IOException ex) {
-                logger.warning("IO error: " + ex.getMessage());
+    private static DisplayDetails probeSerialPort(CommPortIdentifier id, Duration probeTimeout)
+            throws PortInUseException, UnsupportedCommOperationException, IOException {
+        int timeoutMillis = (int) probeTimeout.toMillis();
+        SerialPort serialPort = (SerialPort) id.open("LCDControl", timeoutMillis);
+        boolean keepOpen = false;
+        try {
+            // A silent port must not block the probe forever, so reads time out and the banner
+            // is read only until the model tag turns up
+            serialPort.enableReceiveTimeout(timeoutMillis);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(serialPort.getInputStream()));
+            StringBuilder sb = new StringBuilder();
+            String displayModel = null;
+            String line;
+            while (displayModel == null && (line = reader.readLine()) != null) {
+                sb.append(line);
+                displayModel = extractPattern(URLDecoder.decode(sb.toString(), "ASCII"), DISPLAY_MODEL_PATTERN);
+            }
+
+            String decodedText = URLDecoder.decode(sb.toString(), "ASCII");
+            if (displayModel == null) {
+                logger.warning("Unable to parse display model from " + decodedText);
+                return null;
+            }
+
+            keepOpen = true;
+            return new DisplayDetails("Unknown Manufacturer", displayModel, decodedText,
+                    DisplayType.TEXT_DISPLAY, serialPort, null, null, 0, 0);
+        } finally {
+            if (!keepOpen) {
+                serialPort.close();
+            }
+        }
+    }
+
+    private static DisplayDetails probeUsbDevice(Path usbFilePath) throws IOException {
+        List<String> lines = Files.readAllLines(usbFilePath);
+        if (lines.size() < 4) {
+            return null;
+        }
+
+        int vendorId = Integer.parseInt(extractPattern(lines.get(2), USB_VENDOR_ID_PATTERN), 16);
+        int productId = Integer.parseInt(extractPattern(lines.get(3), USB_MODEL_ID_PATTERN), 16);
+
+        return new DisplayDetails("Unknown Manufacturer", "", "[USB]",
+                DisplayType.UNKNOWN, null, null, null, productId, vendorId);
+    }
+
+    private static DisplayDetails probeSpiDevice(SpiDevice spiDevice) throws IOException {
+        SpiTransferChannel channel = new SpiTransferChannel(new Pi4jSpiBackend(spiDevice), SPI_PROBE_BUFFERS);
+        ByteBuffer tx = channel.acquireBuffer();
+        ByteBuffer rx = channel.acquireBuffer();
+        try {
+            // Clock out zeros; the display answers with its identification string
+            int length = Math.min(spiDevice.getMaxTransferSize(), tx.capacity());
+            for (int i = 0; i < length; i++) {
+                tx.put((byte) 0);
+            }
+            tx.flip();
+            channel.transfer(tx, rx);
+            rx.flip();
+
+            String displayModel = extractPattern(new AsciiSequence(rx), DISPLAY_MODEL_PATTERN);
+            if (displayModel == null) {
+                logger.warning("Unable to parse display model from " + new AsciiSequence(rx));
+                return null;
             }
-        });
 
-        return result;
+            return new DisplayDetails("Unknown Manufacturer", displayModel, new AsciiSequence(rx).toString(),
+                    DisplayType.GRAPHICAL_DISPLAY, null, spiDevice, null, 0, 0);
+        } finally {
+            channel.releaseBuffer(tx);
+            channel.releaseBuffer(rx);
+        }
     }
 
-    private static String extractPattern(String subject, String regex) {
-        Matcher matcher = Pattern.compile(regex).matcher(subject);
+    static String extractPattern(CharSequence subject, Pattern pattern) {
+        Matcher matcher = pattern.matcher(subject);
         if (matcher.find()) {
             return matcher.group(1);
         }
         return null;
     }
 
+    /**
+     * Wraps whichever port the display was found on. Returns {@code null} for displays restored
+     * from the discovery cache, which have no port open yet.
+     */
+    public static DisplayTransport openTransport(DisplayDetails display) throws IOException {
+        if (display.serialPort != null) {
+            return new SerialPortTransport(display.serialPort, 64);
+        }
+        if (display.spiDevice != null) {
+            return new SpiDeviceTransport(display.spiDevice, null);
+        }
+        return null;
+    }
+
+    /**
+     * Creates a diffing renderer for the display: {@code columns} x {@code rows} cells for text
+     * displays, {@code columns} x {@code rows} pixels for graphical ones.
+     */
+    public static LcdRenderer createRenderer(DisplayDetails display, DisplayTransport transport, int columns,
+            int rows) {
+        switch (display.displayType) {
+            case TEXT_DISPLAY:
+                return new TextLcdRenderer(transport, rows, columns, TextLcdRenderer.rowOffsets(rows, columns));
+            case GRAPHICAL_DISPLAY:
+                return new GraphicalLcdRenderer(transport, columns, rows);
+            default:
+                throw new IllegalArgumentException("No renderer for display type " + display.displayType);
+        }
+    }
+
     public static void main(String[] args) {
-        List<DisplayDetails> displays = LCDControl.findDisplays();
+        DisplayDiscoveryCache cache = new DisplayDiscoveryCache(
+                Paths.get(System.getProperty("user.home"), ".robotics", "displays.cache"));
+        List<DisplayDetails> displays = cache.findDisplays(DEFAULT_DISCOVERY_DEADLINE, DEFAULT_PROBE_TIMEOUT, null);
         System.out.println("Detected displays: ");
         displays.forEach(System.out::println);
     }
@@ -0,0 +1,586 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.comm.SerialPort;
+import org.junit.Test;
+import com.pi4j.io.spi.SpiDevice;
+import com.bytetech.robotics.metrics.Counter;
+import com.bytetech.robotics.metrics.LatencyHistogram;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Where rendered bytes go. Text LCD backpacks take commands inline with the data; SPI panels
+ * tell them apart with a data/command pin, so the two are kept separate here.
+ */
+public interface DisplayTransport {
+    void writeCommand(ByteBuffer command) throws IOException;
+    void writeData(ByteBuffer data) throws IOException;
+}
+
+public class SerialPortTransport implements DisplayTransport {
+    private final OutputStream output;
+    private final byte[] scratch;
+
+    public SerialPortTransport(SerialPort serialPort, int maxWriteSize) throws IOException {
+        this.output = serialPort.getOutputStream();
+        this.scratch = new byte[maxWriteSize];
+    }
+
+    @Override
+    public void writeCommand(ByteBuffer command) throws IOException {
+        writeData(command);
+    }
+
+    @Override
+    public void writeData(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            int length = Math.min(data.remaining(), scratch.length);
+            data.get(scratch, 0, length);
+            output.write(scratch, 0, length);
+        }
+        output.flush();
+    }
+}
+
+public class SpiDeviceTransport implements DisplayTransport {
+    private final SpiDevice spiDevice;
+    private final OutputPinHandle dataCommandPin;
+    // Pi4J's write(ByteBuffer) sends the whole backing array rather than position to limit
+    private byte[] scratch = new byte[0];
+
+    public SpiDeviceTransport(SpiDevice spiDevice, OutputPinHandle dataCommandPin) {
+        this.spiDevice = spiDevice;
+        this.dataCommandPin = dataCommandPin;
+    }
+
+    @Override
+    public void writeCommand(ByteBuffer command) throws IOException {
+        if (dataCommandPin != null) {
+            dataCommandPin.setState(false);
+        }
+        write(command);
+    }
+
+    @Override
+    public void writeData(ByteBuffer data) throws IOException {
+        if (dataCommandPin != null) {
+            dataCommandPin.setState(true);
+        }
+        write(data);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        buffer.get(scratch, 0, length);
+        spiDevice.write(scratch, 0, length);
+    }
+}
+
+public interface LcdRenderer {
+    /**
+     * Sends only what changed since the last call and returns the number of bytes written.
+     */
+    int render() throws IOException;
+
+    long getFrameCount();
+
+    long getBytesWritten();
+}
+
+/**
+ * Character LCD with a shadow copy of the screen. Drawing only touches the shadow; {@link #render()}
+ * compares it with what the display already shows and sends each run of changed cells behind a
+ * single set-cursor command ({@code 0xFE, 0x80 | address}).
+ */
+public class TextLcdRenderer implements LcdRenderer {
+    private static final LatencyHistogram renderLatency = MetricsRegistry.getDefault().histogram("lcd.render");
+    private static final Counter renderedBytes = MetricsRegistry.getDefault().counter("lcd.bytes");
+
+    public static final int COMMAND_PREFIX = 0xFE;
+    public static final int SET_CURSOR = 0x80;
+    public static final int[] ROW_OFFSETS_20X4 = {0x00, 0x40, 0x14, 0x54};
+    public static final int[] ROW_OFFSETS_16X2 = {0x00, 0x40};
+
+    // An unchanged gap shorter than this is cheaper to resend than to skip with a cursor command
+    private static final int MIN_SKIP_CELLS = 3;
+
+    private final DisplayTransport transport;
+    private final int rows;
+    private final int columns;
+    private final int[] rowOffsets;
+    private final char[] shadow;
+    private final char[] shown;
+    private final ByteBuffer commandBuffer = ByteBuffer.allocate(2);
+    private final ByteBuffer dataBuffer;
+
+    private long frameCount;
+    private long bytesWritten;
+
+    public TextLcdRenderer(DisplayTransport transport, int rows, int columns, int[] rowOffsets) {
+        this.transport = transport;
+        this.rows = rows;
+        this.columns = columns;
+        this.rowOffsets = rowOffsets;
+        this.shadow = new char[rows * columns];
+        this.shown = new char[rows * columns];
+        this.dataBuffer = ByteBuffer.allocate(columns);
+        Arrays.fill(shadow, ' ');
+        // Nothing is known about the panel yet, so the first render sends every cell
+        Arrays.fill(shown, '\0');
+    }
+
+    /**
+     * DDRAM address of the first cell of each row on an HD44780-style controller: rows 0 and 1
+     * start at 0x00 and 0x40, and on four-line panels rows 2 and 3 continue those two lines
+     * {@code columns} cells further on (0x14 and 0x54 for 20x4, 0x10 and 0x50 for 16x4).
+     */
+    public static int[] rowOffsets(int rows, int columns) {
+        switch (rows) {
+            case 1:
+                return new int[] {0x00};
+            case 2:
+                return ROW_OFFSETS_16X2.clone();
+            case 4:
+                return new int[] {0x00, 0x40, columns, 0x40 + columns};
+            default:
+                throw new IllegalArgumentException("No row layout for a " + columns + "x" + rows + " text display");
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(shadow, ' ');
+    }
+
+    public void setText(int row, int column, CharSequence text) {
+        int start = row * columns;
+        for (int i = 0; i < text.length() && column + i < columns; i++) {
+            shadow[start + column + i] = text.charAt(i);
+        }
+    }
+
+    /**
+     * Replaces a whole line, padding with spaces.
+     */
+    public void setLine(int row, CharSequence text) {
+        int start = row * columns;
+        for (int column = 0; column < columns; column++) {
+            shadow[start + column] = column < text.length() ? text.charAt(column) : ' ';
+        }
+    }
+
+    public String getLine(int row) {
+        return new String(shadow, row * columns, columns);
+    }
+
+    @Override
+    public int render() throws IOException {
+        long renderStart = System.nanoTime();
+        int written = 0;
+        for (int row = 0; row < rows; row++) {
+            int start = row * columns;
+            int column = 0;
+            while (column < columns) {
+                if (shadow[start + column] == shown[start + column]) {
+                    column++;
+                    continue;
+                }
+                int runStart = column;
+                int runEnd = column + 1;
+                int unchanged = 0;
+                for (int next = runEnd; next < columns && unchanged < MIN_SKIP_CELLS; next++) {
+                    if (shadow[start + next] == shown[start + next]) {
+                        unchanged++;
+                    } else {
+                        runEnd = next + 1;
+                        unchanged = 0;
+                    }
+                }
+                written += sendRun(row, runStart, runEnd);
+                column = runEnd;
+            }
+        }
+        frameCount++;
+        bytesWritten += written;
+        renderLatency.recordSince(renderStart);
+        renderedBytes.add(written);
+        return written;
+    }
+
+    private int sendRun(int row, int from, int to) throws IOException {
+        commandBuffer.clear();
+        commandBuffer.put((byte) COMMAND_PREFIX).put((byte) (SET_CURSOR | (rowOffsets[row] + from)));
+        commandBuffer.flip();
+        transport.writeCommand(commandBuffer);
+
+        int start = row * columns;
+        dataBuffer.clear();
+        for (int column = from; column < to; column++) {
+            dataBuffer.put((byte) shadow[start + column]);
+        }
+        dataBuffer.flip();
+        transport.writeData(dataBuffer);
+        // Only once the panel has the cells; after a failed write the run is sent again next time
+        System.arraycopy(shadow, start + from, shown, start + from, to - from);
+        return 2 + to - from;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
+
+/**
+ * Monochrome panel laid out as 8-pixel-high pages (SSD1306 and friends). {@link #render()} finds
+ * the changed column span of each page and sends that rectangle only, after a column and page
+ * window command ({@code 0x21 start end}, {@code 0x22 start end}).
+ */
+public class GraphicalLcdRenderer implements LcdRenderer {
+    private static final LatencyHistogram renderLatency = MetricsRegistry.getDefault().histogram("lcd.render");
+    private static final Counter renderedBytes = MetricsRegistry.getDefault().counter("lcd.bytes");
+
+    public static final int SET_COLUMN_WINDOW = 0x21;
+    public static final int SET_PAGE_WINDOW = 0x22;
+
+    private final DisplayTransport transport;
+    private final int width;
+    private final int pages;
+    private final byte[] shadow;
+    private final byte[] shown;
+    private final ByteBuffer commandBuffer = ByteBuffer.allocate(6);
+    private final ByteBuffer dataBuffer;
+    private boolean firstFrame = true;
+
+    private long frameCount;
+    private long bytesWritten;
+
+    public GraphicalLcdRenderer(DisplayTransport transport, int width, int height) {
+        this.transport = transport;
+        this.width = width;
+        this.pages = (height + 7) / 8;
+        this.shadow = new byte[pages * width];
+        this.shown = new byte[pages * width];
+        this.dataBuffer = ByteBuffer.allocate(width);
+    }
+
+    public void clear() {
+        Arrays.fill(shadow, (byte) 0);
+    }
+
+    public void setPixel(int x, int y, boolean on) {
+        int index = (y >> 3) * width + x;
+        int bit = 1 << (y & 7);
+        shadow[index] = (byte) (on ? shadow[index] | bit : shadow[index] & ~bit);
+    }
+
+    public boolean getPixel(int x, int y) {
+        return (shadow[(y >> 3) * width + x] & (1 << (y & 7))) != 0;
+    }
+
+    public void fillRect(int x, int y, int rectWidth, int rectHeight, boolean on) {
+        for (int row = y; row < y + rectHeight; row++) {
+            for (int column = x; column < x + rectWidth; column++) {
+                setPixel(column, row, on);
+            }
+        }
+    }
+
+    @Override
+    public int render() throws IOException {
+        long renderStart = System.nanoTime();
+        int written = 0;
+        for (int page = 0; page < pages; page++) {
+            int start = page * width;
+            int first = -1;
+            int last = -1;
+            for (int column = 0; column < width; column++) {
+                if (firstFrame || shadow[start + column] != shown[start + column]) {
+                    if (first < 0) {
+                        first = column;
+                    }
+                    last = column;
+                }
+            }
+            if (first >= 0) {
+                written += sendRect(page, first, last);
+            }
+        }
+        firstFrame = false;
+        frameCount++;
+        bytesWritten += written;
+        renderLatency.recordSince(renderStart);
+        renderedBytes.add(written);
+        return written;
+    }
+
+    private int sendRect(int page, int firstColumn, int lastColumn) throws IOException {
+        commandBuffer.clear();
+        commandBuffer.put((byte) SET_COLUMN_WINDOW).put((byte) firstColumn).put((byte) lastColumn);
+        commandBuffer.put((byte) SET_PAGE_WINDOW).put((byte) page).put((byte) page);
+        commandBuffer.flip();
+        transport.writeCommand(commandBuffer);
+
+        int start = page * width;
+        int length = lastColumn - firstColumn + 1;
+        dataBuffer.clear();
+        dataBuffer.put(shadow, start + firstColumn, length);
+        dataBuffer.flip();
+        transport.writeData(dataBuffer);
+        // Only once the panel has the bytes; after a failed write the span is sent again next time
+        System.arraycopy(shadow, start + firstColumn, shown, start + firstColumn, length);
+        return 6 + length;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
+
+/**
+ * Off-device stand-in for a text or graphical panel. It applies the commands it receives to its
+ * own screen so tests can check what would be displayed. It also counts bytes and the time they
+ * would take at a given baud rate, so refresh rates can be estimated without hardware.
+ */
+public class SimulatedDisplay implements DisplayTransport {
+    private final int baudRate;
+    private final int width;
+    private final byte[] screen;
+    private final int[] rowOffsets;
+
+    private int cursor;
+    private int columnStart;
+    private int columnEnd;
+    private int page;
+    private boolean pendingCommand;
+
+    private long commandBytes;
+    private long dataBytes;
+
+    /**
+     * Text panel with {@code rows} x {@code columns} cells.
+     */
+    public static SimulatedDisplay text(int rows, int columns, int[] rowOffsets, int baudRate) {
+        return new SimulatedDisplay(baudRate, columns, rows * columns, rowOffsets);
+    }
+
+    /**
+     * Paged graphical panel of {@code width} x {@code height} pixels.
+     */
+    public static SimulatedDisplay graphical(int width, int height, int baudRate) {
+        return new SimulatedDisplay(baudRate, width, (height + 7) / 8 * width, null);
+    }
+
+    private SimulatedDisplay(int baudRate, int width, int size, int[] rowOffsets) {
+        this.baudRate = baudRate;
+        this.width = width;
+        this.screen = new byte[size];
+        this.rowOffsets = rowOffsets;
+    }
+
+    @Override
+    public void writeCommand(ByteBuffer command) {
+        commandBytes += command.remaining();
+        if (rowOffsets != null) {
+            // Text: FE, 80|address
+            while (command.hasRemaining()) {
+                int value = command.get() & 0xFF;
+                if (pendingCommand) {
+                    cursor = textIndex(value & ~TextLcdRenderer.SET_CURSOR);
+                    pendingCommand = false;
+                } else if (value == TextLcdRenderer.COMMAND_PREFIX) {
+                    pendingCommand = true;
+                }
+            }
+            return;
+        }
+        while (command.remaining() >= 3) {
+            int opcode = command.get() & 0xFF;
+            int start = command.get() & 0xFF;
+            command.get();
+            if (opcode == GraphicalLcdRenderer.SET_COLUMN_WINDOW) {
+                columnStart = start;
+            } else if (opcode == GraphicalLcdRenderer.SET_PAGE_WINDOW) {
+                page = start;
+            }
+        }
+        columnEnd = columnStart;
+    }
+
+    private int textIndex(int address) {
+        for (int row = rowOffsets.length - 1; row >= 0; row--) {
+            if (address >= rowOffsets[row] && address < rowOffsets[row] + width) {
+                return row * width + address - rowOffsets[row];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void writeData(ByteBuffer data) {
+        dataBytes += data.remaining();
+        if (rowOffsets != null) {
+            while (data.hasRemaining() && cursor < screen.length) {
+                screen[cursor++] = data.get();
+            }
+        } else {
+            while (data.hasRemaining()) {
+                screen[page * width + columnEnd++] = data.get();
+            }
+        }
+        data.position(data.limit());
+    }
+
+    public String getTextLine(int row) {
+        return new String(screen, row * width, width, java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    public boolean getPixel(int x, int y) {
+        return (screen[(y >> 3) * width + x] & (1 << (y & 7))) != 0;
+    }
+
+    public long getBytesWritten() {
+        return commandBytes + dataBytes;
+    }
+
+    public long getCommandBytes() {
+        return commandBytes;
+    }
+
+    /**
+     * Seconds the bytes written so far would take on the wire, at 10 bits per byte.
+     */
+    public double getTransferSeconds() {
+        return getBytesWritten() * 10.0 / baudRate;
+    }
+}
+
+class LcdRendererTest {
+    private static final int[] ROW_OFFSETS_2X16 = TextLcdRenderer.ROW_OFFSETS_16X2;
+
+    @Test
+    public void testTextRendererSendsOnlyChangedCells() throws IOException {
+        SimulatedDisplay display = SimulatedDisplay.text(2, 16, ROW_OFFSETS_2X16, 9600);
+        TextLcdRenderer renderer = new TextLcdRenderer(display, 2, 16, ROW_OFFSETS_2X16);
+        renderer.setLine(0, "Battery 87%");
+        renderer.setLine(1, "Speed 120");
+        assertEquals(2 * (2 + 16), renderer.render());
+
+        renderer.setText(0, 8, "86");
+        assertEquals(2 + 1, renderer.render());
+        assertEquals(0, renderer.render());
+        assertEquals("Battery 86%     ", display.getTextLine(0));
+        assertEquals("Speed 120       ", display.getTextLine(1));
+    }
+
+    @Test
+    public void testGraphicalRendererSendsDirtyColumnSpanPerPage() throws IOException {
+        SimulatedDisplay display = SimulatedDisplay.graphical(128, 64, 1_000_000);
+        GraphicalLcdRenderer renderer = new GraphicalLcdRenderer(display, 128, 64);
+        renderer.render();
+        long fullFrame = display.getBytesWritten();
+
+        renderer.fillRect(10, 6, 4, 4, true);
+        // Rows 6-9 straddle pages 0 and 1, columns 10-13 in each
+        assertEquals(2 * (6 + 4), renderer.render());
+        assertEquals(fullFrame + 20, display.getBytesWritten());
+        assertTrue(display.getPixel(10, 6));
+        assertTrue(display.getPixel(13, 9));
+        assertFalse(display.getPixel(14, 9));
+    }
+
+    @Test
+    public void testFailedWritesAreResent() throws IOException {
+        SimulatedDisplay textDisplay = SimulatedDisplay.text(2, 16, ROW_OFFSETS_2X16, 9600);
+        FlakyTransport textTransport = new FlakyTransport(textDisplay);
+        TextLcdRenderer text = new TextLcdRenderer(textTransport, 2, 16, ROW_OFFSETS_2X16);
+        text.render();
+        text.setText(1, 0, "Low battery");
+        textTransport.failNextWrite = true;
+        try {
+            text.render();
+            fail("The write should have failed");
+        } catch (IOException expected) {
+            assertEquals("                ", textDisplay.getTextLine(1));
+        }
+        assertEquals(2 + 11, text.render());
+        assertEquals("Low battery     ", textDisplay.getTextLine(1));
+
+        SimulatedDisplay pixelDisplay = SimulatedDisplay.graphical(128, 64, 1_000_000);
+        FlakyTransport pixelTransport = new FlakyTransport(pixelDisplay);
+        GraphicalLcdRenderer graphical = new GraphicalLcdRenderer(pixelTransport, 128, 64);
+        graphical.render();
+        graphical.setPixel(5, 5, true);
+        pixelTransport.failNextWrite = true;
+        try {
+            graphical.render();
+            fail("The write should have failed");
+        } catch (IOException expected) {
+            assertFalse(pixelDisplay.getPixel(5, 5));
+        }
+        assertEquals(6 + 1, graphical.render());
+        assertTrue(pixelDisplay.getPixel(5, 5));
+    }
+
+    @Test
+    public void testRowOffsetsFollowGeometry() throws IOException {
+        assertArrayEquals(TextLcdRenderer.ROW_OFFSETS_20X4, TextLcdRenderer.rowOffsets(4, 20));
+        assertArrayEquals(new int[] {0x00, 0x40, 0x10, 0x50}, TextLcdRenderer.rowOffsets(4, 16));
+        assertArrayEquals(ROW_OFFSETS_2X16, TextLcdRenderer.rowOffsets(2, 16));
+
+        int[] offsets = TextLcdRenderer.rowOffsets(4, 16);
+        SimulatedDisplay display = SimulatedDisplay.text(4, 16, offsets, 9600);
+        TextLcdRenderer renderer = new TextLcdRenderer(display, 4, 16, offsets);
+        renderer.setLine(2, "third");
+        renderer.setLine(3, "fourth");
+        renderer.render();
+        assertEquals("third           ", display.getTextLine(2));
+        assertEquals("fourth          ", display.getTextLine(3));
+    }
+
+    /**
+     * Passes writes through to a display, except for one data write that fails when asked to.
+     */
+    private static class FlakyTransport implements DisplayTransport {
+        private final DisplayTransport display;
+        boolean failNextWrite;
+
+        FlakyTransport(DisplayTransport display) {
+            this.display = display;
+        }
+
+        @Override
+        public void writeCommand(ByteBuffer command) throws IOException {
+            display.writeCommand(command);
+        }
+
+        @Override
+        public void writeData(ByteBuffer data) throws IOException {
+            if (failNextWrite) {
+                failNextWrite = false;
+                throw new IOException("Link dropped");
+            }
+            display.writeData(data);
+        }
+    }
+}
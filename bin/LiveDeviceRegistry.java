@@ -0,0 +1,284 @@
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Displays that are attached right now, kept current by a {@link DeviceHotplugWatcher}. When a
+ * device appears only its bus path is probed, on a background thread, so the watcher and the
+ * other displays are never held up. Removals go through the same thread, so a quick unplug and
+ * replug is handled in the order it happened. Bus paths rejected by {@code shouldProbe}, such as
+ * the ports of devices a {@link LiveDeviceRegistry} reconnects, are left alone.
+ */
+public class LiveDisplayRegistry implements HotplugListener {
+    private static final Logger logger = Logger.getLogger(LiveDisplayRegistry.class.getName());
+
+    private final ConcurrentMap<String, LCDControl.DisplayDetails> displays = new ConcurrentHashMap<>();
+    private final Path usbDevicesRoot;
+    private final Duration probeTimeout;
+    private final Predicate<String> shouldProbe;
+    private final ExecutorService prober = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "live-display-prober");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LiveDisplayRegistry(Path usbDevicesRoot, Duration probeTimeout,
+            Collection<LCDControl.DisplayDetails> initialDisplays) {
+        this(usbDevicesRoot, probeTimeout, initialDisplays, busPath -> true);
+    }
+
+    public LiveDisplayRegistry(Path usbDevicesRoot, Duration probeTimeout,
+            Collection<LCDControl.DisplayDetails> initialDisplays, Predicate<String> shouldProbe) {
+        this.usbDevicesRoot = usbDevicesRoot;
+        this.probeTimeout = probeTimeout;
+        this.shouldProbe = shouldProbe;
+        for (LCDControl.DisplayDetails display : initialDisplays) {
+            if (display.busPath != null) {
+                displays.put(display.busPath, display);
+            }
+        }
+    }
+
+    @Override
+    public void onDeviceAdded(String busPath) {
+        // Opening a port another device is using would disturb it, or fail with the port in use
+        if (!shouldProbe.test(busPath)) {
+            return;
+        }
+        prober.execute(() -> {
+            for (LCDControl.DisplayDetails display : LCDControl.findDisplays(usbDevicesRoot, probeTimeout,
+                    probeTimeout, null, busPath::equals)) {
+                displays.put(display.busPath, display);
+                logger.info("Display attached at " + display.busPath + ": " + display.modelName);
+            }
+        });
+    }
+
+    @Override
+    public void onDeviceRemoved(String busPath) {
+        prober.execute(() -> {
+            LCDControl.DisplayDetails display = displays.remove(busPath);
+            if (display == null) {
+                return;
+            }
+            if (display.serialPort != null) {
+                display.serialPort.close();
+            }
+            logger.info("Display detached from " + busPath);
+        });
+    }
+
+    public LCDControl.DisplayDetails getDisplay(String busPath) {
+        return displays.get(busPath);
+    }
+
+    public List<LCDControl.DisplayDetails> getDisplays() {
+        return new ArrayList<>(displays.values());
+    }
+
+    /**
+     * Stops probing and closes the ports of the displays found so far. A probe still running gets
+     * up to the probe timeout to finish, so the display it finds is closed too.
+     */
+    public void shutdown() {
+        prober.shutdownNow();
+        try {
+            prober.awaitTermination(probeTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LCDControl.DisplayDetails display : displays.values()) {
+            if (display.serialPort != null) {
+                display.serialPort.close();
+            }
+        }
+        displays.clear();
+    }
+}
+
+/**
+ * Reconnects {@link AbstractDevice}s configured with a {@code <name>.port} as their port comes and
+ * goes. Each bus path has a worker of its own: events for one device run one at a time and in
+ * order, so a disconnect always finishes before the reconnect that follows it, while a slow
+ * device does not delay the others. An idle worker's thread exits after {@link #IDLE_SECONDS}.
+ */
+public class LiveDeviceRegistry implements HotplugListener {
+    private static final Logger logger = Logger.getLogger(LiveDeviceRegistry.class.getName());
+    static final long IDLE_SECONDS = 30;
+
+    private final ConcurrentMap<String, AbstractDevice> devicesByBusPath = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ThreadPoolExecutor> workersByBusPath = new ConcurrentHashMap<>();
+
+    public void register(AbstractDevice device) {
+        if (device.getBusPath() != null) {
+            devicesByBusPath.put(device.getBusPath(), device);
+        }
+    }
+
+    public boolean isRegistered(String busPath) {
+        return devicesByBusPath.containsKey(busPath);
+    }
+
+    public void unregister(AbstractDevice device) {
+        if (device.getBusPath() != null) {
+            devicesByBusPath.remove(device.getBusPath(), device);
+        }
+    }
+
+    @Override
+    public void onDeviceAdded(String busPath) {
+        AbstractDevice device = devicesByBusPath.get(busPath);
+        if (device == null) {
+            return;
+        }
+        workerFor(busPath).execute(() -> {
+            try {
+                device.connect();
+                logger.info("Reconnected " + device.name + " on " + busPath);
+            } catch (RuntimeException ex) {
+                logger.warning("Unable to reconnect " + device.name + " on " + busPath + ": " + ex.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void onDeviceRemoved(String busPath) {
+        AbstractDevice device = devicesByBusPath.get(busPath);
+        if (device == null) {
+            return;
+        }
+        workerFor(busPath).execute(() -> {
+            try {
+                device.disconnect();
+            } catch (RuntimeException ex) {
+                logger.warning("Unable to disconnect " + device.name + ": " + ex.getMessage());
+            }
+        });
+    }
+
+    private ThreadPoolExecutor workerFor(String busPath) {
+        return workersByBusPath.computeIfAbsent(busPath, path -> {
+            // One thread and a FIFO queue keep this device's events in order
+            ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), task -> {
+                        Thread thread = new Thread(task, "live-device-" + path);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            worker.allowCoreThreadTimeOut(true);
+            return worker;
+        });
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor worker : workersByBusPath.values()) {
+            worker.shutdownNow();
+        }
+    }
+}
+
+class LiveDeviceRegistryTest {
+    private LiveDeviceRegistry registry;
+    private List<String> calls;
+
+    @Before
+    public void setup() {
+        registry = new LiveDeviceRegistry();
+        calls = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Test
+    public void testEventsForOneDeviceRunInOrder() throws Exception {
+        RecordingDevice device = new RecordingDevice("arm", "/dev/ttyACM0", 50);
+        registry.register(device);
+        // A quick unplug and replug: the slow disconnect must finish before the reconnect starts
+        registry.onDeviceRemoved("/dev/ttyACM0");
+        registry.onDeviceAdded("/dev/ttyACM0");
+        registry.onDeviceRemoved("/dev/ttyACM0");
+        registry.onDeviceAdded("/dev/ttyACM0");
+        awaitCalls(8);
+        assertEquals("[arm disconnect, arm disconnected, arm connect, arm connected, "
+                + "arm disconnect, arm disconnected, arm connect, arm connected]", calls.toString());
+    }
+
+    @Test
+    public void testSlowDeviceDoesNotHoldUpOthers() throws Exception {
+        registry.register(new RecordingDevice("slow", "/dev/ttyACM0", 300));
+        registry.register(new RecordingDevice("fast", "/dev/ttyUSB0", 0));
+        registry.onDeviceAdded("/dev/ttyACM0");
+        registry.onDeviceAdded("/dev/ttyUSB0");
+        awaitCalls(4);
+        assertEquals("fast connected", calls.get(2));
+        assertEquals("slow connected", calls.get(3));
+    }
+
+    @Test
+    public void testUnknownBusPathIsIgnored() throws Exception {
+        registry.register(new RecordingDevice("arm", "/dev/ttyACM0", 0));
+        registry.onDeviceAdded("/dev/ttyUSB9");
+        Thread.sleep(20);
+        assertEquals(0, calls.size());
+    }
+
+    private void awaitCalls(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (calls.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private class RecordingDevice extends AbstractDevice {
+        private final long delayMillis;
+
+        RecordingDevice(String name, String busPath, long delayMillis) {
+            super(name);
+            this.busPath = busPath;
+            this.delayMillis = delayMillis;
+        }
+
+        private void record(String call) {
+            calls.add(name + " " + call);
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            calls.add(name + " " + call + "ed");
+        }
+
+        @Override
+        public void connect() {
+            record("connect");
+        }
+
+        @Override
+        public void disconnect() {
+            record("disconnect");
+        }
+
+        @Override
+        public void sendCommand(String command) {}
+    }
+}
@@ -1,47 +1,104 @@
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Properties;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.logging.Logger;
+import com.bytetech.robotics.metrics.MetricsFileReporter;
+import com.bytetech.robotics.metrics.MetricsRegistry;
 
 public class Main {
+    private static final Logger logger = Logger.getLogger(Main.class.getName());
+    private static final int DRIVE_MOTOR_CHANNEL = 0;
+    private static final double MOTOR_CONTROLLER_RATE_HZ = 50.0;
+    private static final long HOTPLUG_SCAN_PERIOD_MILLIS = 500;
+    private static final long METRICS_DUMP_PERIOD_SECONDS = 10;
+
     public static void main(String[] args) {
         Properties properties = loadProperties();
 
+        // Stage latencies are recorded all the time; expose them over JMX and in a local file
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.registerMBean(MetricsRegistry.DEFAULT_OBJECT_NAME);
+        MetricsFileReporter metricsReporter = new MetricsFileReporter(metrics,
+                Paths.get(properties.getProperty("metrics.file", "metrics.txt")),
+                Duration.ofSeconds(METRICS_DUMP_PERIOD_SECONDS));
+        metricsReporter.start();
+
         Integration integration = new BluetoothIntegration();
 
         Api api = new Api(integration);
 
-        // Load devices based on property configuration
-        Set<AbstractDevice> devices = new TreeSet<>();
-        for (String devicePropertyKey : properties.stringPropertyNames()) {
-            if (devicePropertyKey.contains(".device")) {
-                String deviceClassName = properties.getProperty(devicePropertyKey);
-                String deviceName = devicePropertyKey.replace(".device", "");
-
-                try {
-                    Class<?> deviceClass = Class.forName(deviceClassName);
-                    AbstractDevice device = (AbstractDevice) deviceClass.getDeclaredConstructor().newInstance();
-                    device.initialize(properties, deviceName);
-                    devices.add(device);
-                } catch (ReflectiveOperationException e) {
-                    System.err.printf("Error loading device %s: %s%n", deviceName, e.getCause().getMessage());
-                }
-            }
+        // Fixed-rate tasks share one loop thread, optionally pinned to an isolated core
+        ControlLoopScheduler controlLoop = new ControlLoopScheduler();
+        controlLoop.setCpuAffinity(Integer.parseInt(properties.getProperty("control.cpu", "-1")));
+
+        // The control loop can set motor speeds at any rate; only the latest value goes out per flush
+        SetpointCoalescer motorSetpoints = new SetpointCoalescer(1, (channel, value) -> api.speedMotor(value));
+        motorSetpoints.schedule(controlLoop,
+                Math.min(SetpointCoalescer.linkRateHz(115200, 10, 1), MOTOR_CONTROLLER_RATE_HZ));
+        controlLoop.start();
+
+        // Load devices based on property configuration and connect them, independent ones concurrently
+        DeviceLifecycleManager deviceManager = new DeviceLifecycleManager();
+        deviceManager.load(properties);
+        LiveDeviceRegistry liveDevices = new LiveDeviceRegistry();
+        for (AbstractDevice device : deviceManager.connectAll()) {
+            liveDevices.register(device);
         }
 
-        // Connect devices
-        for (AbstractDevice device : devices) {
-            device.connect();
+        // Reconnect devices that are unplugged and plugged back in without restarting
+        DeviceHotplugWatcher hotplugWatcher = new DeviceHotplugWatcher(HOTPLUG_SCAN_PERIOD_MILLIS)
+                .watch(Paths.get("/dev"), "tty{USB,ACM}*")
+                .watch(LCDControl.DEFAULT_USB_DEVICES_ROOT, "*.udev");
+        hotplugWatcher.addHotplugListener(liveDevices);
+
+        // Displays start from the discovery cache and are kept current as they come and go; ports
+        // that belong to a configured device are never probed for a display
+        DisplayDiscoveryCache displayCache = new DisplayDiscoveryCache(
+                Paths.get(System.getProperty("user.home"), ".robotics", "displays.cache"));
+        LiveDisplayRegistry liveDisplays = new LiveDisplayRegistry(LCDControl.DEFAULT_USB_DEVICES_ROOT,
+                LCDControl.DEFAULT_PROBE_TIMEOUT, displayCache.findDisplays(LCDControl.DEFAULT_DISCOVERY_DEADLINE,
+                        LCDControl.DEFAULT_PROBE_TIMEOUT, null),
+                busPath -> !liveDevices.isRegistered(busPath));
+        hotplugWatcher.addHotplugListener(liveDisplays);
+        try {
+            hotplugWatcher.start();
+        } catch (IOException e) {
+            System.err.println("Hotplug watcher unavailable: " + e.getMessage());
         }
 
         // Perform operations
-        api.speedMotor(50);
+        motorSetpoints.set(DRIVE_MOTOR_CHANNEL, 50);
         api.paramRegister("custom, notCustom");
 
+        motorSetpoints.stop();
+        logger.info(motorSetpoints.toString());
+        try {
+            controlLoop.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info(controlLoop.toString());
+
+        try {
+            hotplugWatcher.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        liveDevices.shutdown();
+        liveDisplays.shutdown();
+
         // Disconnect devices
-        for (AbstractDevice device : devices) {
-            device.disconnect();
+        deviceManager.disconnectAll();
+        for (DeviceTiming timing : deviceManager.getTimings()) {
+            logger.info("Device " + timing);
+        }
+
+        try {
+            metricsReporter.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -0,0 +1,466 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPin;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.GpioPinPwmOutput;
+import com.pi4j.io.gpio.PinPullResistance;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.io.gpio.RaspiPin;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public interface PinHandle {
+    int getPinNumber();
+    String getName();
+}
+
+public interface PinStateListener {
+    void onPinStateChanged(int pinNumber, boolean high);
+}
+
+public interface InputPinHandle extends PinHandle {
+    boolean isHigh();
+    void addStateListener(PinStateListener listener);
+}
+
+public interface OutputPinHandle extends PinHandle {
+    boolean isHigh();
+    void setState(boolean high);
+    void toggle();
+}
+
+public interface PwmPinHandle extends PinHandle {
+    int getPwm();
+    void setPwm(int value);
+}
+
+public interface PinBackend {
+    InputPinHandle provisionInput(int pinNumber, String name);
+    OutputPinHandle provisionOutput(int pinNumber, String name, boolean initialState);
+    PwmPinHandle provisionPwm(int pinNumber, String name);
+    void release(PinHandle handle);
+    void shutdown();
+}
+
+/**
+ * Provisions each pin once and hands out the same typed handle on every later request, so hot
+ * paths such as a button callback toggling an LED go straight to the hardware. Also serves as the
+ * {@link GPIOPinAdapter} for the button sources, so they share the same provisioned pins.
+ */
+public class PinRegistry implements GPIOPinAdapter {
+    private static final int MAX_PINS = 64;
+
+    private final PinBackend backend;
+    private final AtomicReferenceArray<PinHandle> handles = new AtomicReferenceArray<>(MAX_PINS);
+
+    public PinRegistry(PinBackend backend) {
+        this.backend = backend;
+    }
+
+    public InputPinHandle input(int pinNumber, String name) {
+        PinHandle handle = handles.get(pinNumber);
+        if (handle == null) {
+            handle = provision(pinNumber, name, InputPinHandle.class, false);
+        }
+        return cast(handle, InputPinHandle.class);
+    }
+
+    public OutputPinHandle output(int pinNumber, String name, boolean initialState) {
+        PinHandle handle = handles.get(pinNumber);
+        if (handle == null) {
+            handle = provision(pinNumber, name, OutputPinHandle.class, initialState);
+        }
+        return cast(handle, OutputPinHandle.class);
+    }
+
+    public PwmPinHandle pwm(int pinNumber, String name) {
+        PinHandle handle = handles.get(pinNumber);
+        if (handle == null) {
+            handle = provision(pinNumber, name, PwmPinHandle.class, false);
+        }
+        return cast(handle, PwmPinHandle.class);
+    }
+
+    private synchronized PinHandle provision(int pinNumber, String name, Class<? extends PinHandle> type,
+            boolean initialState) {
+        PinHandle handle = handles.get(pinNumber);
+        if (handle != null) {
+            return handle;
+        }
+        if (type == InputPinHandle.class) {
+            handle = backend.provisionInput(pinNumber, name);
+        } else if (type == OutputPinHandle.class) {
+            handle = backend.provisionOutput(pinNumber, name, initialState);
+        } else {
+            handle = backend.provisionPwm(pinNumber, name);
+        }
+        handles.set(pinNumber, handle);
+        return handle;
+    }
+
+    private static <T extends PinHandle> T cast(PinHandle handle, Class<T> type) {
+        if (!type.isInstance(handle)) {
+            throw new IllegalStateException("Pin " + handle.getPinNumber() + " (" + handle.getName()
+                    + ") is already provisioned and is not a " + type.getSimpleName());
+        }
+        return type.cast(handle);
+    }
+
+    public synchronized void release(int pinNumber) {
+        PinHandle handle = handles.getAndSet(pinNumber, null);
+        if (handle != null) {
+            backend.release(handle);
+        }
+    }
+
+    /**
+     * Releases every provisioned pin and shuts the backend down.
+     */
+    public synchronized void shutdown() {
+        for (int pinNumber = 0; pinNumber < MAX_PINS; pinNumber++) {
+            release(pinNumber);
+        }
+        backend.shutdown();
+    }
+
+    @Override
+    public boolean readPinState(int pinNumber) {
+        PinHandle handle = handles.get(pinNumber);
+        if (handle instanceof OutputPinHandle) {
+            return ((OutputPinHandle) handle).isHigh();
+        }
+        return input(pinNumber, "GPIO " + pinNumber).isHigh();
+    }
+
+    @Override
+    public void writePinState(int pinNumber, boolean state) {
+        output(pinNumber, "GPIO " + pinNumber, state).setState(state);
+    }
+
+    @Override
+    public String getPinName(int pinNumber) {
+        PinHandle handle = handles.get(pinNumber);
+        return handle != null ? handle.getName() : "GPIO " + pinNumber;
+    }
+}
+
+public class Pi4jPinBackend implements PinBackend {
+    private final GpioController gpio;
+
+    public Pi4jPinBackend() {
+        this(GpioFactory.getInstance());
+    }
+
+    public Pi4jPinBackend(GpioController gpio) {
+        this.gpio = gpio;
+    }
+
+    @Override
+    public InputPinHandle provisionInput(int pinNumber, String name) {
+        GpioPinDigitalInput pin = gpio.provisionDigitalInputPin(RaspiPin.getPinByAddress(pinNumber), name,
+                PinPullResistance.PULL_DOWN);
+        return new InputPinHandle() {
+            @Override
+            public int getPinNumber() {
+                return pinNumber;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean isHigh() {
+                return pin.isHigh();
+            }
+
+            @Override
+            public void addStateListener(PinStateListener listener) {
+                pin.addListener((GpioPinListenerDigital) event ->
+                        listener.onPinStateChanged(pinNumber, event.getState() == PinState.HIGH));
+            }
+        };
+    }
+
+    @Override
+    public OutputPinHandle provisionOutput(int pinNumber, String name, boolean initialState) {
+        GpioPinDigitalOutput pin = gpio.provisionDigitalOutputPin(RaspiPin.getPinByAddress(pinNumber), name,
+                PinState.getState(initialState));
+        return new OutputPinHandle() {
+            @Override
+            public int getPinNumber() {
+                return pinNumber;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean isHigh() {
+                return pin.isHigh();
+            }
+
+            @Override
+            public void setState(boolean high) {
+                pin.setState(high);
+            }
+
+            @Override
+            public void toggle() {
+                pin.toggle();
+            }
+        };
+    }
+
+    @Override
+    public PwmPinHandle provisionPwm(int pinNumber, String name) {
+        GpioPinPwmOutput pin = gpio.provisionPwmOutputPin(RaspiPin.getPinByAddress(pinNumber), name);
+        return new PwmPinHandle() {
+            @Override
+            public int getPinNumber() {
+                return pinNumber;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public int getPwm() {
+                return pin.getPwm();
+            }
+
+            @Override
+            public void setPwm(int value) {
+                pin.setPwm(value);
+            }
+        };
+    }
+
+    @Override
+    public void release(PinHandle handle) {
+        GpioPin pin = gpio.getProvisionedPin(RaspiPin.getPinByAddress(handle.getPinNumber()));
+        if (pin != null) {
+            pin.removeAllListeners();
+            gpio.unprovisionPin(pin);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        gpio.shutdown();
+    }
+}
+
+/**
+ * In-memory backend for running and benchmarking pin code off the Pi. Inputs are driven with
+ * {@link #setInput(int, boolean)}; every output write is counted.
+ */
+public class MockPinBackend implements PinBackend {
+    private final boolean[] levels = new boolean[64];
+    private final int[] pwmValues = new int[64];
+    private final PinStateListener[][] listeners = new PinStateListener[64][0];
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong provisionCount = new AtomicLong();
+
+    public void setInput(int pinNumber, boolean high) {
+        if (levels[pinNumber] == high) {
+            return;
+        }
+        levels[pinNumber] = high;
+        for (PinStateListener listener : listeners[pinNumber]) {
+            listener.onPinStateChanged(pinNumber, high);
+        }
+    }
+
+    public boolean getLevel(int pinNumber) {
+        return levels[pinNumber];
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public long getProvisionCount() {
+        return provisionCount.get();
+    }
+
+    @Override
+    public InputPinHandle provisionInput(int pinNumber, String name) {
+        provisionCount.incrementAndGet();
+        return new InputPinHandle() {
+            @Override
+            public int getPinNumber() {
+                return pinNumber;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean isHigh() {
+                return levels[pinNumber];
+            }
+
+            @Override
+            public void addStateListener(PinStateListener listener) {
+                synchronized (listeners) {
+                    PinStateListener[] current = listeners[pinNumber];
+                    PinStateListener[] updated = Arrays.copyOf(current, current.length + 1);
+                    updated[current.length] = listener;
+                    listeners[pinNumber] = updated;
+                }
+            }
+        };
+    }
+
+    @Override
+    public OutputPinHandle provisionOutput(int pinNumber, String name, boolean initialState) {
+        provisionCount.incrementAndGet();
+        levels[pinNumber] = initialState;
+        return new OutputPinHandle() {
+            @Override
+            public int getPinNumber() {
+                return pinNumber;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean isHigh() {
+                return levels[pinNumber];
+            }
+
+            @Override
+            public void setState(boolean high) {
+                levels[pinNumber] = high;
+                writeCount.incrementAndGet();
+            }
+
+            @Override
+            public void toggle() {
+                levels[pinNumber] = !levels[pinNumber];
+                writeCount.incrementAndGet();
+            }
+        };
+    }
+
+    @Override
+    public PwmPinHandle provisionPwm(int pinNumber, String name) {
+        provisionCount.incrementAndGet();
+        return new PwmPinHandle() {
+            @Override
+            public int getPinNumber() {
+                return pinNumber;
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public int getPwm() {
+                return pwmValues[pinNumber];
+            }
+
+            @Override
+            public void setPwm(int value) {
+                pwmValues[pinNumber] = value;
+                writeCount.incrementAndGet();
+            }
+        };
+    }
+
+    @Override
+    public void release(PinHandle handle) {
+        synchronized (listeners) {
+            listeners[handle.getPinNumber()] = new PinStateListener[0];
+        }
+    }
+
+    @Override
+    public void shutdown() {}
+}
+
+class PinRegistryTest {
+    private MockPinBackend backend;
+    private PinRegistry pins;
+
+    @Before
+    public void setup() {
+        backend = new MockPinBackend();
+        pins = new PinRegistry(backend);
+    }
+
+    @Test
+    public void testPinsAreProvisionedOnce() {
+        OutputPinHandle led = pins.output(1, "LED", false);
+        assertSame(led, pins.output(1, "LED", false));
+        assertSame(led, pins.output(1, "other name", true));
+        assertEquals(1, backend.getProvisionCount());
+    }
+
+    @Test
+    public void testProvisioningAsAnotherTypeFails() {
+        pins.output(1, "LED", false);
+        try {
+            pins.input(1, "Button");
+            fail("Pin 1 is already an output");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains("LED"));
+        }
+    }
+
+    @Test
+    public void testToggleWritesThroughTheHandle() {
+        OutputPinHandle led = pins.output(1, "LED", false);
+        led.toggle();
+        assertTrue(backend.getLevel(1));
+        assertTrue(pins.readPinState(1));
+        led.toggle();
+        assertFalse(backend.getLevel(1));
+        assertEquals(2, backend.getWriteCount());
+    }
+
+    @Test
+    public void testInputListenersSeeStateChanges() {
+        boolean[] seen = new boolean[2];
+        pins.input(0, "Button").addStateListener((pinNumber, high) -> seen[high ? 1 : 0] = true);
+        backend.setInput(0, true);
+        assertTrue(pins.readPinState(0));
+        backend.setInput(0, false);
+        assertTrue(seen[0]);
+        assertTrue(seen[1]);
+        assertEquals("Button", pins.getPinName(0));
+    }
+
+    @Test
+    public void testReleaseAllowsReprovisioning() {
+        pins.output(1, "LED", false);
+        pins.release(1);
+        pins.input(1, "Button");
+        assertEquals(2, backend.getProvisionCount());
+        assertEquals("GPIO 2", pins.getPinName(2));
+    }
+}
@@ -0,0 +1,677 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public interface FrameListener {
+    /**
+     * Called on the transport's reader thread. The buffer is reused for the next frame, so copy
+     * anything that must outlive the call.
+     */
+    void onFrame(ByteBuffer frame);
+}
+
+/**
+ * Consistent overhead byte stuffing: frames are encoded without zero bytes so a single 0x00 can
+ * mark the end of each one, and a receiver that joins mid-stream resynchronises at the next zero.
+ */
+public final class Cobs {
+    public static final byte DELIMITER = 0;
+
+    private Cobs() {
+    }
+
+    public static int maxEncodedLength(int length) {
+        return length + length / 254 + 1;
+    }
+
+    /**
+     * Encodes {@code length} bytes into {@code dst} (without the delimiter) and returns the encoded
+     * length.
+     */
+    public static int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int codeIndex = dstOffset;
+        int out = dstOffset + 1;
+        int code = 1;
+        for (int i = offset; i < offset + length; i++) {
+            byte value = src[i];
+            if (value == 0) {
+                dst[codeIndex] = (byte) code;
+                codeIndex = out++;
+                code = 1;
+            } else {
+                dst[out++] = value;
+                if (++code == 0xFF) {
+                    dst[codeIndex] = (byte) code;
+                    codeIndex = out++;
+                    code = 1;
+                }
+            }
+        }
+        dst[codeIndex] = (byte) code;
+        return out - dstOffset;
+    }
+
+    /**
+     * Incremental decoder fed one byte at a time into a fixed frame buffer.
+     */
+    public static final class Decoder {
+        private final ByteBuffer frame;
+        private int remaining;
+        private int lastCode;
+        private boolean started;
+        private boolean discarding;
+
+        public Decoder(int maxFrameSize) {
+            this.frame = ByteBuffer.allocate(maxFrameSize);
+        }
+
+        /**
+         * Returns 1 when a frame is complete (see {@link #frame()}), -1 when a malformed or oversized
+         * frame was dropped, 0 otherwise.
+         */
+        public int feed(byte value) {
+            if (value == DELIMITER) {
+                int result = discarding || !started || remaining != 0 ? -1 : 1;
+                if (result == 1) {
+                    frame.flip();
+                } else {
+                    frame.clear();
+                }
+                // An empty gap between delimiters is idle line, not an error
+                if (!started && !discarding) {
+                    result = 0;
+                }
+                remaining = 0;
+                started = false;
+                discarding = false;
+                return result;
+            }
+            if (discarding) {
+                return 0;
+            }
+            if (remaining == 0) {
+                if (started && lastCode != 0xFF && !put((byte) 0)) {
+                    return 0;
+                }
+                lastCode = value & 0xFF;
+                remaining = lastCode - 1;
+                started = true;
+            } else {
+                put(value);
+                remaining--;
+            }
+            return 0;
+        }
+
+        private boolean put(byte value) {
+            if (!frame.hasRemaining()) {
+                discarding = true;
+                return false;
+            }
+            frame.put(value);
+            return true;
+        }
+
+        /**
+         * The last completed frame; valid until the next call to {@link #feed(byte)}.
+         */
+        public ByteBuffer frame() {
+            return frame;
+        }
+
+        /**
+         * Makes the frame buffer writable again after a completed frame has been consumed.
+         */
+        public void reset() {
+            frame.clear();
+        }
+    }
+}
+
+/**
+ * One serial link, whatever library opened it: a dedicated reader thread decodes COBS frames
+ * from the receive channel, and sends go into a preallocated transmit ring that a writer thread
+ * flushes once {@code flushThresholdBytes} are buffered or the oldest byte has waited
+ * {@code flushIntervalNanos}. When the ring is full, {@link #trySend} refuses the frame and
+ * {@link #send} waits, so a slow link pushes back on its callers instead of queueing without
+ * bound.
+ *
+ * <p>jSerialComm, Pi4J and javax.comm ports all expose streams, which can be wrapped with
+ * {@link java.nio.channels.Channels}; a tty device node (including either end of a pty pair) can
+ * be opened directly with {@link #open}.
+ */
+public class SerialTransport {
+    private static final Logger logger = Logger.getLogger(SerialTransport.class.getName());
+
+    private final String name;
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+    private final FrameListener listener;
+    private final int maxFrameSize;
+    private final int flushThresholdBytes;
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock txLock = new ReentrantLock();
+    private final Condition txNotEmpty = txLock.newCondition();
+    private final Condition txNotFull = txLock.newCondition();
+    private final byte[] txRing;
+    private final ByteBuffer txView;
+    private final byte[] encodeScratch;
+    private long txHead;
+    private long txTail;
+    private long oldestPendingNanos;
+
+    private final ByteBuffer rxBuffer;
+    private final Cobs.Decoder decoder;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framingErrors = new AtomicLong();
+    private final AtomicLong rejectedFrames = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalFlushLatencyNanos = new AtomicLong();
+    private final AtomicLong maxFlushLatencyNanos = new AtomicLong();
+
+    private volatile boolean running;
+    private Thread readerThread;
+    private Thread writerThread;
+
+    public SerialTransport(String name, ReadableByteChannel input, WritableByteChannel output,
+            FrameListener listener, int maxFrameSize, int txRingSize, int flushThresholdBytes,
+            long flushIntervalNanos) {
+        if (txRingSize < Cobs.maxEncodedLength(maxFrameSize) + 1) {
+            throw new IllegalArgumentException("Transmit ring of " + txRingSize
+                    + " bytes cannot hold one frame of " + maxFrameSize + " bytes");
+        }
+        this.name = name;
+        this.input = input;
+        this.output = output;
+        this.listener = listener;
+        this.maxFrameSize = maxFrameSize;
+        this.flushThresholdBytes = flushThresholdBytes;
+        this.flushIntervalNanos = flushIntervalNanos;
+        this.txRing = new byte[txRingSize];
+        this.txView = ByteBuffer.wrap(txRing);
+        this.encodeScratch = new byte[Cobs.maxEncodedLength(maxFrameSize) + 1];
+        this.rxBuffer = ByteBuffer.allocateDirect(Math.max(256, maxFrameSize));
+        this.decoder = new Cobs.Decoder(maxFrameSize);
+    }
+
+    /**
+     * Opens a tty device node for reading and writing. The line must already be in raw mode
+     * ({@code stty -F <device> raw -echo <baud>}).
+     */
+    public static SerialTransport open(Path device, FrameListener listener, int maxFrameSize, int txRingSize,
+            int flushThresholdBytes, long flushIntervalNanos) throws IOException {
+        // Separate channels, because one FileChannel serialises reads and writes on its position lock
+        FileChannel in = FileChannel.open(device, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(device, StandardOpenOption.WRITE);
+        return new SerialTransport(device.toString(), in, out, listener, maxFrameSize, txRingSize,
+                flushThresholdBytes, flushIntervalNanos);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        readerThread = new Thread(this::readLoop, "serial-reader-" + name);
+        readerThread.setDaemon(true);
+        readerThread.start();
+        writerThread = new Thread(this::writeLoop, "serial-writer-" + name);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a frame, or returns {@code false} at once if the transmit ring has no room for it.
+     */
+    public boolean trySend(byte[] frame, int offset, int length) {
+        try {
+            return enqueue(frame, offset, length, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queues a frame, waiting up to {@code timeout} for room in the transmit ring.
+     */
+    public boolean send(byte[] frame, int offset, int length, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return enqueue(frame, offset, length, unit.toNanos(timeout));
+    }
+
+    private boolean enqueue(byte[] frame, int offset, int length, long timeoutNanos) throws InterruptedException {
+        if (length > maxFrameSize) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes exceeds " + maxFrameSize);
+        }
+        if (!running) {
+            throw new IllegalStateException("Transport " + name + " is not running");
+        }
+        // Room for the worst case, so the frame can be encoded once there is space. Encoding first
+        // would leave encodeScratch to be overwritten by another sender while this one waits.
+        int needed = Cobs.maxEncodedLength(length) + 1;
+        txLock.lock();
+        try {
+            long wait = timeoutNanos;
+            while (txRing.length - (txTail - txHead) < needed) {
+                if (wait <= 0L) {
+                    rejectedFrames.incrementAndGet();
+                    return false;
+                }
+                wait = txNotFull.awaitNanos(wait);
+            }
+            int encoded = Cobs.encode(frame, offset, length, encodeScratch, 0);
+            encodeScratch[encoded++] = Cobs.DELIMITER;
+            boolean wasEmpty = txTail == txHead;
+            if (wasEmpty) {
+                oldestPendingNanos = System.nanoTime();
+            }
+            int start = (int) (txTail % txRing.length);
+            int first = Math.min(encoded, txRing.length - start);
+            System.arraycopy(encodeScratch, 0, txRing, start, first);
+            System.arraycopy(encodeScratch, first, txRing, 0, encoded - first);
+            txTail += encoded;
+            framesSent.incrementAndGet();
+            // An idle writer waits without a timeout, so it must hear about the first frame to
+            // start its flush interval
+            if (wasEmpty || txTail - txHead >= flushThresholdBytes) {
+                txNotEmpty.signal();
+            }
+            return true;
+        } finally {
+            txLock.unlock();
+        }
+    }
+
+    /**
+     * Asks the writer to send whatever is buffered without waiting for the flush interval.
+     */
+    public void flush() {
+        txLock.lock();
+        try {
+            oldestPendingNanos = System.nanoTime() - flushIntervalNanos;
+            txNotEmpty.signal();
+        } finally {
+            txLock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (running || txTail != txHead) {
+                long head;
+                long tail;
+                long pendingSince;
+                txLock.lock();
+                try {
+                    while (true) {
+                        long buffered = txTail - txHead;
+                        if (buffered > 0) {
+                            long waited = System.nanoTime() - oldestPendingNanos;
+                            if (buffered >= flushThresholdBytes || waited >= flushIntervalNanos || !running) {
+                                break;
+                            }
+                            txNotEmpty.awaitNanos(flushIntervalNanos - waited);
+                        } else if (!running) {
+                            return;
+                        } else {
+                            txNotEmpty.await();
+                        }
+                    }
+                    head = txHead;
+                    tail = txTail;
+                    pendingSince = oldestPendingNanos;
+                } finally {
+                    txLock.unlock();
+                }
+
+                // Only the writer moves txHead, so the bytes between head and tail stay put while
+                // they are written outside the lock
+                int start = (int) (head % txRing.length);
+                int length = (int) (tail - head);
+                int first = Math.min(length, txRing.length - start);
+                writeFully(start, first);
+                writeFully(0, length - first);
+                recordFlush(length, pendingSince);
+
+                txLock.lock();
+                try {
+                    txHead = tail;
+                    if (txTail != txHead) {
+                        oldestPendingNanos = System.nanoTime();
+                    }
+                    txNotFull.signalAll();
+                } finally {
+                    txLock.unlock();
+                }
+            }
+        } catch (InterruptedException | ClosedChannelException e) {
+            // Stopping
+        } catch (IOException e) {
+            logger.warning("Serial write failed on " + name + ": " + e.getMessage());
+        }
+    }
+
+    private void writeFully(int offset, int length) throws IOException {
+        txView.limit(offset + length).position(offset);
+        while (txView.hasRemaining()) {
+            output.write(txView);
+        }
+    }
+
+    private void recordFlush(int length, long pendingSinceNanos) {
+        long latency = System.nanoTime() - pendingSinceNanos;
+        bytesWritten.addAndGet(length);
+        flushCount.incrementAndGet();
+        totalFlushLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = maxFlushLatencyNanos.get()) && !maxFlushLatencyNanos.compareAndSet(max, latency)) {
+            // Retry until the max holds the larger value
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (running) {
+                rxBuffer.clear();
+                int read = input.read(rxBuffer);
+                if (read < 0) {
+                    logger.info("Serial port " + name + " closed by the other end");
+                    return;
+                }
+                bytesRead.addAndGet(read);
+                rxBuffer.flip();
+                while (rxBuffer.hasRemaining()) {
+                    int result = decoder.feed(rxBuffer.get());
+                    if (result > 0) {
+                        framesReceived.incrementAndGet();
+                        deliver(decoder.frame());
+                        decoder.reset();
+                    } else if (result < 0) {
+                        framingErrors.incrementAndGet();
+                    }
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // Stopping
+        } catch (IOException e) {
+            if (running) {
+                logger.warning("Serial read failed on " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void deliver(ByteBuffer frame) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.onFrame(frame);
+        } catch (RuntimeException e) {
+            logger.warning("Frame listener failed on " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends what is still buffered, then stops both threads and closes the channels.
+     */
+    public void stop() throws InterruptedException {
+        Thread reader;
+        Thread writer;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            reader = readerThread;
+            writer = writerThread;
+            readerThread = null;
+            writerThread = null;
+        }
+        txLock.lock();
+        try {
+            txNotEmpty.signal();
+        } finally {
+            txLock.unlock();
+        }
+        writer.join(TimeUnit.SECONDS.toMillis(1));
+        writer.interrupt();
+        // Interrupting a blocked channel read closes the channel and wakes the reader. A channel
+        // wrapped around a stream may stay blocked until the port itself is closed, so the wait
+        // is bounded
+        reader.interrupt();
+        reader.join(TimeUnit.SECONDS.toMillis(1));
+        try {
+            input.close();
+            output.close();
+        } catch (IOException e) {
+            logger.warning("Unable to close serial port " + name + ": " + e.getMessage());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    public long getFramingErrors() {
+        return framingErrors.get();
+    }
+
+    public long getRejectedFrames() {
+        return rejectedFrames.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Mean time from the oldest byte of a flush being queued to the flush completing.
+     */
+    public long getMeanFlushLatencyNanos() {
+        long flushes = flushCount.get();
+        return flushes == 0 ? 0 : totalFlushLatencyNanos.get() / flushes;
+    }
+
+    public long getMaxFlushLatencyNanos() {
+        return maxFlushLatencyNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SerialTransport[" + name + ", framesSent=" + getFramesSent() + ", framesReceived="
+                + getFramesReceived() + ", bytesWritten=" + getBytesWritten() + ", bytesRead=" + getBytesRead()
+                + ", framingErrors=" + getFramingErrors() + ", rejected=" + getRejectedFrames() + "]";
+    }
+}
+
+class SerialTransportTest {
+    private final java.util.List<byte[]> received = new java.util.concurrent.CopyOnWriteArrayList<>();
+    private SerialTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        // A pipe stands in for the wire; the transport reads back everything it writes
+        java.nio.channels.Pipe pipe = java.nio.channels.Pipe.open();
+        transport = new SerialTransport("loopback", pipe.source(), pipe.sink(), frame -> {
+            byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            received.add(copy);
+        }, 300, 1024, 64, TimeUnit.MILLISECONDS.toNanos(5));
+        transport.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        transport.stop();
+    }
+
+    @Test
+    public void testCobsRoundTripsFramesWithZerosAndLongRuns() {
+        byte[] frame = new byte[600];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i % 300 == 0 ? 0 : i);
+        }
+        byte[] encoded = new byte[Cobs.maxEncodedLength(frame.length)];
+        int length = Cobs.encode(frame, 0, frame.length, encoded, 0);
+        Cobs.Decoder decoder = new Cobs.Decoder(frame.length);
+        for (int i = 0; i < length; i++) {
+            assertNotEquals(0, encoded[i]);
+            assertEquals(0, decoder.feed(encoded[i]));
+        }
+        assertEquals(1, decoder.feed(Cobs.DELIMITER));
+        byte[] decoded = new byte[decoder.frame().remaining()];
+        decoder.frame().get(decoded);
+        assertArrayEquals(frame, decoded);
+    }
+
+    @Test
+    public void testFramesArriveIntactAfterBatchedFlush() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            byte[] frame = {(byte) i, 0, (byte) (i * 3)};
+            assertTrue(transport.send(frame, 0, frame.length, 1, TimeUnit.SECONDS));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (received.size() < 20 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(20, received.size());
+        assertArrayEquals(new byte[] {7, 0, 21}, received.get(7));
+        assertEquals(0, transport.getFramingErrors());
+        assertTrue(transport.getFlushCount() < 20);
+    }
+
+    @Test
+    public void testSingleShortFrameOnIdleLinkIsSent() throws InterruptedException {
+        // Let the writer reach its idle wait first; a frame queued before that is seen anyway
+        Thread.sleep(50);
+        // Well under the flush threshold, so only the age limit can send it
+        byte[] frame = {42, 0, 7};
+        assertTrue(transport.send(frame, 0, frame.length, 1, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (received.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, received.size());
+        assertArrayEquals(frame, received.get(0));
+    }
+
+    @Test
+    public void testSendersWaitingOnAFullRingKeepTheirOwnFrames() throws Exception {
+        java.nio.channels.Pipe pipe = java.nio.channels.Pipe.open();
+        java.util.concurrent.CountDownLatch gate = new java.util.concurrent.CountDownLatch(1);
+        WritableByteChannel gated = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new java.nio.channels.ClosedByInterruptException();
+                }
+                return pipe.sink().write(source);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return pipe.sink().isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                pipe.sink().close();
+            }
+        };
+        SerialTransport small = new SerialTransport("gated", pipe.source(), gated, frame -> {
+            byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            received.add(copy);
+        }, 300, Cobs.maxEncodedLength(300) + 1, 64, TimeUnit.MILLISECONDS.toNanos(5));
+        small.start();
+        try {
+            // Fills the ring; the writer holds it until the gate opens
+            assertTrue(small.send(filled(250, 'x'), 0, 250, 1, TimeUnit.SECONDS));
+            Thread[] senders = new Thread[2];
+            java.util.concurrent.atomic.AtomicInteger failures = new java.util.concurrent.atomic.AtomicInteger();
+            for (int i = 0; i < senders.length; i++) {
+                byte[] frame = filled(200, 'a' + i);
+                senders[i] = new Thread(() -> {
+                    try {
+                        if (!small.send(frame, 0, frame.length, 2, TimeUnit.SECONDS)) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    }
+                });
+                senders[i].start();
+            }
+            Thread.sleep(50);
+            gate.countDown();
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (received.size() < 3 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, failures.get());
+            assertEquals(3, received.size());
+            java.util.Set<Byte> contents = new java.util.HashSet<>();
+            for (byte[] frame : received) {
+                for (byte b : frame) {
+                    assertEquals(frame[0], b);
+                }
+                contents.add(frame[0]);
+            }
+            assertEquals(3, contents.size());
+        } finally {
+            gate.countDown();
+            small.stop();
+        }
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] frame = new byte[length];
+        java.util.Arrays.fill(frame, (byte) value);
+        return frame;
+    }
+}
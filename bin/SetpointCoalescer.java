@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import com.bytetech.robotics.metrics.MetricsRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public interface SetpointSink {
+    void sendSetpoint(int channel, int value);
+}
+
+/**
+ * Keeps only the latest setpoint per motor or servo channel and sends the changed ones on a
+ * fixed-rate flush. A control loop can call {@link #set(int, int)} as fast as it likes; the link
+ * only ever sees one value per channel per flush, so no queue builds up behind it.
+ */
+public class SetpointCoalescer {
+    private final int channelCount;
+    private final SetpointSink sink;
+    private final AtomicIntegerArray values;
+    // Bit n set = channel n has a setpoint that has not been sent yet
+    private final AtomicLong dirtyChannels = new AtomicLong();
+    // Held for a whole flush so two flushes never interleave their sends
+    private final Object flushLock = new Object();
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> flushTask;
+    private ControlLoopScheduler controlLoop;
+    private ControlLoopScheduler.Task controlTask;
+
+    public SetpointCoalescer(int channelCount, SetpointSink sink) {
+        if (channelCount < 1 || channelCount > Long.SIZE) {
+            throw new IllegalArgumentException("Channel count must be 1-64: " + channelCount);
+        }
+        this.channelCount = channelCount;
+        this.sink = sink;
+        this.values = new AtomicIntegerArray(channelCount);
+    }
+
+    /**
+     * Flush rate at which setpoints for every channel fit a serial link, assuming 10 bits per byte
+     * on the wire.
+     */
+    public static double linkRateHz(int baudRate, int bytesPerSetpoint, int channelCount) {
+        return baudRate / 10.0 / bytesPerSetpoint / channelCount;
+    }
+
+    /**
+     * Records the latest setpoint for {@code channel}. Never blocks; if the previous value has not
+     * been sent yet it is replaced and counted as coalesced.
+     */
+    public void set(int channel, int value) {
+        if (channel < 0 || channel >= channelCount) {
+            throw new IllegalArgumentException("Channel out of range 0-" + (channelCount - 1) + ": " + channel);
+        }
+        values.set(channel, value);
+        submittedCount.incrementAndGet();
+        long bit = 1L << channel;
+        long current;
+        do {
+            current = dirtyChannels.get();
+            if ((current & bit) != 0L) {
+                coalescedCount.incrementAndGet();
+                return;
+            }
+        } while (!dirtyChannels.compareAndSet(current, current | bit));
+    }
+
+    /**
+     * Sends the latest value of every channel that changed since the last flush. A flush that
+     * starts while another is sending waits for it, so an older value never goes out last.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            long dirty = dirtyChannels.getAndSet(0L);
+            while (dirty != 0L) {
+                int channel = Long.numberOfTrailingZeros(dirty);
+                dirty &= dirty - 1;
+                sink.sendSetpoint(channel, values.get(channel));
+                sentCount.incrementAndGet();
+            }
+            flushCount.incrementAndGet();
+        }
+    }
+
+    public synchronized void start(double flushRateHz) {
+        if (flushTask != null || controlTask != null) {
+            return;
+        }
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / flushRateHz);
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "setpoint-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushTask = scheduler.scheduleAtFixedRate(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                System.err.println("Failed to send setpoints: " + e.getMessage());
+            }
+        }, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Flushes as a task on {@code controlLoop} instead of on a thread of its own, so setpoints go
+     * out in step with the loops that compute them. Use either this or {@link #start(double)}.
+     */
+    public synchronized ControlLoopScheduler.Task schedule(ControlLoopScheduler controlLoop, double flushRateHz) {
+        if (flushTask != null || controlTask != null) {
+            return controlTask;
+        }
+        this.controlLoop = controlLoop;
+        controlTask = controlLoop.scheduleAtRate("setpoints", flushRateHz, deadline -> flush());
+        return controlTask;
+    }
+
+    /**
+     * Stops the scheduled flush and sends whatever is still pending. If a scheduled flush is
+     * running, the final one waits for it to finish.
+     */
+    public synchronized void stop() {
+        if (controlTask != null) {
+            controlLoop.cancel(controlTask);
+            controlTask = null;
+            controlLoop = null;
+            flush();
+            return;
+        }
+        if (flushTask == null) {
+            return;
+        }
+        flushTask.cancel(false);
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushTask = null;
+        scheduler = null;
+        flush();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SetpointCoalescer[submitted=" + getSubmittedCount() + ", coalesced=" + getCoalescedCount()
+                + ", sent=" + getSentCount() + ", flushes=" + getFlushCount() + "]";
+    }
+}
+
+class SetpointCoalescerTest {
+    private List<String> sent;
+    private SetpointCoalescer coalescer;
+
+    @Before
+    public void setup() {
+        sent = new ArrayList<>();
+        coalescer = new SetpointCoalescer(64, (channel, value) -> sent.add(channel + "=" + value));
+    }
+
+    @Test
+    public void testLatestValuePerChannelIsSentOnce() {
+        coalescer.set(0, 1);
+        coalescer.set(0, 2);
+        coalescer.set(63, 5);
+        coalescer.set(0, 3);
+        coalescer.flush();
+
+        assertEquals(2, sent.size());
+        assertEquals("0=3", sent.get(0));
+        assertEquals("63=5", sent.get(1));
+        assertEquals(4L, coalescer.getSubmittedCount());
+        assertEquals(2L, coalescer.getCoalescedCount());
+        assertEquals(2L, coalescer.getSentCount());
+    }
+
+    @Test
+    public void testFlushSendsOnlyChannelsSetSinceTheLastOne() {
+        coalescer.set(1, 10);
+        coalescer.set(2, 20);
+        coalescer.flush();
+        coalescer.flush();
+        assertEquals(2, sent.size());
+
+        coalescer.set(2, 21);
+        coalescer.flush();
+        assertEquals(3, sent.size());
+        assertEquals("2=21", sent.get(2));
+        assertEquals(3L, coalescer.getFlushCount());
+    }
+
+    @Test
+    public void testSetDuringFlushGoesOutOnTheNextFlush() {
+        SetpointCoalescer[] self = new SetpointCoalescer[1];
+        self[0] = new SetpointCoalescer(4, (channel, value) -> {
+            sent.add(channel + "=" + value);
+            if (channel == 0) {
+                self[0].set(3, 7);
+            }
+        });
+        self[0].set(0, 1);
+        self[0].flush();
+        assertEquals(1, sent.size());
+        self[0].flush();
+        assertEquals("3=7", sent.get(1));
+        assertEquals(0L, self[0].getCoalescedCount());
+    }
+
+    @Test
+    public void testChannelOutOfRangeIsRejected() {
+        SetpointCoalescer small = new SetpointCoalescer(2, (channel, value) -> {});
+        try {
+            small.set(2, 0);
+            fail("Channel 2 is out of range");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("0-1"));
+        }
+    }
+
+    @Test
+    public void testStopWaitsForTheRunningFlush() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        SetpointCoalescer loopFed = new SetpointCoalescer(4, (channel, value) -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            if (channel == 0) {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            delivered.add(channel + "=" + value);
+            active.decrementAndGet();
+        });
+        ControlLoopScheduler controlLoop = new ControlLoopScheduler("test-loop",
+                ControlLoopScheduler.DEFAULT_SPIN_NANOS, new MetricsRegistry());
+        loopFed.schedule(controlLoop, 1000);
+        loopFed.set(0, 1);
+        controlLoop.start();
+        try {
+            assertTrue(sending.await(2, TimeUnit.SECONDS));
+            loopFed.set(1, 2);
+            Thread stopper = new Thread(loopFed::stop);
+            stopper.start();
+            stopper.join(50);
+            assertTrue(stopper.isAlive());
+
+            release.countDown();
+            stopper.join(2000);
+            assertFalse(stopper.isAlive());
+        } finally {
+            release.countDown();
+            controlLoop.stop();
+        }
+        assertEquals(1, maxActive.get());
+        assertEquals(List.of("0=1", "1=2"), delivered);
+    }
+}
@@ -0,0 +1,461 @@
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import com.pi4j.io.spi.SpiDevice;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bus under a {@link SpiTransferChannel}. A transfer is full duplex: {@code tx.remaining()}
+ * bytes are shifted out and as many are stored into {@code rx}.
+ */
+public interface SpiBackend {
+    void transfer(ByteBuffer tx, ByteBuffer rx) throws IOException;
+
+    /**
+     * Runs {@code count} transfers back to back. Backends that can queue several segments in one
+     * bus message (spidev's {@code SPI_IOC_MESSAGE(n)}) should override this; the default just
+     * loops.
+     */
+    default void transferBatch(ByteBuffer[] tx, ByteBuffer[] rx, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            transfer(tx[i], rx[i]);
+        }
+    }
+
+    void close() throws IOException;
+}
+
+public class Pi4jSpiBackend implements SpiBackend {
+    private final SpiDevice spiDevice;
+    // Pi4J's write(ByteBuffer) sends the whole backing array, which direct buffers do not have,
+    // so the bytes to send are staged here instead
+    private byte[] txBytes = new byte[0];
+
+    public Pi4jSpiBackend(SpiDevice spiDevice) {
+        this.spiDevice = spiDevice;
+    }
+
+    @Override
+    public synchronized void transfer(ByteBuffer tx, ByteBuffer rx) throws IOException {
+        int length = tx.remaining();
+        if (txBytes.length < length) {
+            txBytes = new byte[length];
+        }
+        tx.get(txBytes, 0, length);
+        // Pi4J hands the received bytes back as a new array; copy them into the caller's buffer
+        byte[] received = spiDevice.write(txBytes, 0, length);
+        rx.put(received, 0, Math.min(received.length, rx.remaining()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        spiDevice.close();
+    }
+}
+
+/**
+ * Software loopback: every byte shifted out comes straight back, as with MOSI wired to MISO.
+ */
+public class LoopbackSpiBackend implements SpiBackend {
+    private final AtomicLong transferCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    @Override
+    public void transfer(ByteBuffer tx, ByteBuffer rx) {
+        int length = Math.min(tx.remaining(), rx.remaining());
+        ByteBuffer source = tx.duplicate();
+        source.limit(source.position() + length);
+        rx.put(source);
+        tx.position(tx.position() + length);
+        transferCount.incrementAndGet();
+    }
+
+    @Override
+    public void transferBatch(ByteBuffer[] tx, ByteBuffer[] rx, int count) {
+        for (int i = 0; i < count; i++) {
+            transfer(tx[i], rx[i]);
+        }
+        batchCount.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getTransferCount() {
+        return transferCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+}
+
+/**
+ * Fixed-size direct buffers handed out and returned, so transfers at sensor rates do not
+ * allocate. When the pool is empty a new buffer is allocated and counted as a miss.
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+    private final AtomicLong missCount = new AtomicLong();
+
+    public DirectBufferPool(int bufferCount, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            missCount.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer was not acquired from this pool");
+        }
+        buffer.clear();
+        // A full pool just lets the extra buffer go
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
+
+/**
+ * SPI transfers through pooled direct buffers, with optional batching of several transfers into
+ * one bus submission. Each submission is timed so latency and throughput can be watched at
+ * run time.
+ *
+ * <pre>
+ * SpiTransferChannel.Batch batch = channel.newBatch(4);
+ * for (int sensor = 0; sensor &lt; 4; sensor++) {
+ *     batch.add(requests[sensor], responses[sensor]);
+ * }
+ * channel.submit(batch);
+ * </pre>
+ */
+public class SpiTransferChannel implements AutoCloseable {
+    private final SpiBackend backend;
+    private final DirectBufferPool pool;
+
+    private final AtomicLong transferCount = new AtomicLong();
+    private final AtomicLong submissionCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public SpiTransferChannel(SpiBackend backend, DirectBufferPool pool) {
+        this.backend = backend;
+        this.pool = pool;
+    }
+
+    /**
+     * Transfers queued by the caller and sent together. Reusable: {@link #submit(Batch)} empties it.
+     */
+    public static final class Batch {
+        private final ByteBuffer[] tx;
+        private final ByteBuffer[] rx;
+        private int count;
+
+        Batch(int capacity) {
+            this.tx = new ByteBuffer[capacity];
+            this.rx = new ByteBuffer[capacity];
+        }
+
+        public Batch add(ByteBuffer txBuffer, ByteBuffer rxBuffer) {
+            if (count == tx.length) {
+                throw new IllegalStateException("Batch is full: " + count + " transfers");
+            }
+            tx[count] = txBuffer;
+            rx[count] = rxBuffer;
+            count++;
+            return this;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        void clear() {
+            for (int i = 0; i < count; i++) {
+                tx[i] = null;
+                rx[i] = null;
+            }
+            count = 0;
+        }
+    }
+
+    public Batch newBatch(int capacity) {
+        return new Batch(capacity);
+    }
+
+    /**
+     * The same transfers every cycle, e.g. one register read per sensor, as a control-loop task.
+     * Each cycle rewinds the requests, submits them as one batch and then calls {@code onSample}
+     * with the responses flipped for reading. The poll itself allocates nothing per cycle.
+     */
+    public ControlTask newSensorPoll(ByteBuffer[] requests, ByteBuffer[] responses, Runnable onSample) {
+        if (requests.length != responses.length) {
+            throw new IllegalArgumentException("Need one response buffer per request: " + requests.length
+                    + " requests, " + responses.length + " responses");
+        }
+        Batch batch = new Batch(requests.length);
+        return deadline -> {
+            for (int i = 0; i < requests.length; i++) {
+                requests[i].rewind();
+                responses[i].clear();
+                batch.add(requests[i], responses[i]);
+            }
+            submit(batch);
+            for (ByteBuffer response : responses) {
+                response.flip();
+            }
+            onSample.run();
+        };
+    }
+
+    public ByteBuffer acquireBuffer() {
+        return pool.acquire();
+    }
+
+    public void releaseBuffer(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    public void transfer(ByteBuffer tx, ByteBuffer rx) throws IOException {
+        int length = tx.remaining();
+        long start = System.nanoTime();
+        synchronized (backend) {
+            backend.transfer(tx, rx);
+        }
+        record(start, 1, length);
+    }
+
+    /**
+     * Sends every transfer in the batch in one submission and empties the batch.
+     */
+    public void submit(Batch batch) throws IOException {
+        if (batch.count == 0) {
+            return;
+        }
+        long length = 0;
+        for (int i = 0; i < batch.count; i++) {
+            length += batch.tx[i].remaining();
+        }
+        long start = System.nanoTime();
+        try {
+            synchronized (backend) {
+                backend.transferBatch(batch.tx, batch.rx, batch.count);
+            }
+            record(start, batch.count, length);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void record(long startNanos, int transfers, long length) {
+        long latency = System.nanoTime() - startNanos;
+        transferCount.addAndGet(transfers);
+        submissionCount.incrementAndGet();
+        byteCount.addAndGet(length);
+        totalLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+            // Retry until the max holds the larger value
+        }
+    }
+
+    public long getTransferCount() {
+        return transferCount.get();
+    }
+
+    public long getSubmissionCount() {
+        return submissionCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /**
+     * Mean time a transfer spent on the bus; a batch's time is shared among its transfers.
+     */
+    public long getMeanLatencyNanos() {
+        long transfers = transferCount.get();
+        return transfers == 0 ? 0 : totalLatencyNanos.get() / transfers;
+    }
+
+    public long getMaxSubmissionLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    /**
+     * Bytes per second while the bus was busy, excluding idle time between submissions.
+     */
+    public double getThroughputBytesPerSecond() {
+        long busy = totalLatencyNanos.get();
+        return busy == 0 ? 0.0 : byteCount.get() * 1e9 / busy;
+    }
+
+    @Override
+    public void close() throws IOException {
+        backend.close();
+    }
+
+    @Override
+    public String toString() {
+        return "SpiTransferChannel[transfers=" + getTransferCount() + ", submissions=" + getSubmissionCount()
+                + ", bytes=" + getByteCount() + ", meanLatencyNanos=" + getMeanLatencyNanos() + "]";
+    }
+}
+
+/**
+ * Read-only ASCII view of a buffer's remaining bytes, so received data can be matched with a
+ * {@link java.util.regex.Pattern} without copying it into a {@code String} first.
+ */
+public final class AsciiSequence implements CharSequence {
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+    public AsciiSequence(ByteBuffer buffer) {
+        this(buffer, buffer.position(), buffer.remaining());
+    }
+
+    private AsciiSequence(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside 0-" + (length - 1));
+        }
+        return (char) (buffer.get(offset + index) & 0x7F);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + "-" + end + " outside 0-" + length);
+        }
+        return new AsciiSequence(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+}
+
+class SpiTransferChannelTest {
+    private LoopbackSpiBackend loopback;
+    private SpiTransferChannel channel;
+
+    @Before
+    public void setUp() {
+        loopback = new LoopbackSpiBackend();
+        channel = new SpiTransferChannel(loopback, new DirectBufferPool(4, 32));
+    }
+
+    @Test
+    public void testBatchIsSubmittedOnceAndEchoed() throws IOException {
+        ByteBuffer[] tx = new ByteBuffer[3];
+        ByteBuffer[] rx = new ByteBuffer[3];
+        SpiTransferChannel.Batch batch = channel.newBatch(3);
+        for (int i = 0; i < 3; i++) {
+            tx[i] = channel.acquireBuffer();
+            tx[i].put((byte) (0x10 + i)).put((byte) i).flip();
+            rx[i] = channel.acquireBuffer();
+            batch.add(tx[i], rx[i]);
+        }
+        channel.submit(batch);
+
+        assertEquals(0, batch.size());
+        assertEquals(1, loopback.getBatchCount());
+        assertEquals(3, channel.getTransferCount());
+        assertEquals(1, channel.getSubmissionCount());
+        assertEquals(6, channel.getByteCount());
+        for (int i = 0; i < 3; i++) {
+            rx[i].flip();
+            assertEquals(0x10 + i, rx[i].get());
+            channel.releaseBuffer(tx[i]);
+            channel.releaseBuffer(rx[i]);
+        }
+    }
+
+    @Test
+    public void testAsciiSequenceMatchesWithoutDecoding() {
+        ByteBuffer buffer = ByteBuffer.wrap("xx[ST7920]: ready".getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+        java.util.regex.Matcher matcher = java.util.regex.Pattern.compile("(?<=\\[)(.*?)(?=\\]:)")
+                .matcher(new AsciiSequence(buffer));
+        assertTrue(matcher.find());
+        assertEquals("ST7920", matcher.group(1));
+    }
+
+    @Test
+    public void testPi4jBackendSendsOnlyTheRemainingBytes() throws IOException {
+        byte[][] sent = new byte[1][];
+        // Only write(byte[], int, int) is expected; the proxy fails any other SpiDevice call
+        SpiDevice device = (SpiDevice) Proxy.newProxyInstance(SpiDevice.class.getClassLoader(),
+                new Class<?>[] {SpiDevice.class}, (proxy, method, args) -> {
+                    assertEquals("write", method.getName());
+                    byte[] data = (byte[]) args[0];
+                    int start = (Integer) args[1];
+                    sent[0] = Arrays.copyOfRange(data, start, start + (Integer) args[2]);
+                    byte[] reply = sent[0].clone();
+                    for (int i = 0; i < reply.length; i++) {
+                        reply[i] ^= (byte) 0xFF;
+                    }
+                    return reply;
+                });
+        Pi4jSpiBackend backend = new Pi4jSpiBackend(device);
+
+        ByteBuffer tx = ByteBuffer.allocateDirect(16);
+        tx.put(new byte[] {9, 9, 1, 2, 3}).flip();
+        tx.position(2);
+        ByteBuffer rx = ByteBuffer.allocateDirect(16);
+        backend.transfer(tx, rx);
+
+        assertEquals(3, sent[0].length);
+        assertEquals(1, sent[0][0]);
+        assertFalse(tx.hasRemaining());
+        assertEquals(3, rx.position());
+        assertEquals((byte) ~1, rx.get(0));
+        assertEquals((byte) ~3, rx.get(2));
+    }
+}